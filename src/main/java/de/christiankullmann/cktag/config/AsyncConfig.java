@@ -0,0 +1,148 @@
+package de.christiankullmann.cktag.config;
+
+import de.christiankullmann.cktag.service.ZipArchiveAdmission;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Configuration of the executors the endpoints hand their work to, so no servlet thread waits for Solr or Dropbox.
+ * Requests to Solr and streaming transfers run on separate, bounded executors. Slow transfers can only exhaust their own
+ * executor, while the lookups keep being served. A request finding its executor and its queue full is rejected at once.
+ * Streamed zip-archives wait for the {@link ZipArchiveAdmission} on an executor of their own, the archives holding the
+ * budget are streamed on the transfer executor and must never wait behind the archives waiting for it.
+ */
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+
+  private final int solrThreads;
+
+  private final int solrQueueCapacity;
+
+  private final int transferThreads;
+
+  private final int transferQueueCapacity;
+
+  private final int admissionThreads;
+
+  private final int admissionQueueCapacity;
+
+  private final int zipJobThreads;
+
+  private final int zipJobQueueCapacity;
+
+  /**
+   * Create a new {@link AsyncConfig}
+   *
+   * @param solrThreads            the number of concurrent requests to Solr
+   * @param solrQueueCapacity      the number of requests to Solr waiting for a thread
+   * @param transferThreads        the number of concurrent streaming transfers
+   * @param transferQueueCapacity  the number of streaming transfers waiting for a thread
+   * @param admissionThreads       the number of streamed zip-archives waiting for the admission at the same time
+   * @param admissionQueueCapacity the number of streamed zip-archives waiting for a thread of the admission
+   * @param zipJobThreads          the number of zip jobs built concurrently
+   * @param zipJobQueueCapacity    the number of zip jobs waiting for a thread
+   */
+  public AsyncConfig(@Value("${async.solr.threads}") int solrThreads,
+                     @Value("${async.solr.queueCapacity}") int solrQueueCapacity,
+                     @Value("${async.transfer.threads}") int transferThreads,
+                     @Value("${async.transfer.queueCapacity}") int transferQueueCapacity,
+                     @Value("${zip.admission.threads}") int admissionThreads,
+                     @Value("${zip.admission.queueCapacity}") int admissionQueueCapacity,
+                     @Value("${zip.jobs.threads}") int zipJobThreads,
+                     @Value("${zip.jobs.queueCapacity}") int zipJobQueueCapacity) {
+    this.solrThreads = solrThreads;
+    this.solrQueueCapacity = solrQueueCapacity;
+    this.transferThreads = transferThreads;
+    this.transferQueueCapacity = transferQueueCapacity;
+    this.admissionThreads = admissionThreads;
+    this.admissionQueueCapacity = admissionQueueCapacity;
+    this.zipJobThreads = zipJobThreads;
+    this.zipJobQueueCapacity = zipJobQueueCapacity;
+  }
+
+  /**
+   * Create the executor answering the requests that query or write Solr
+   *
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor solrRequestExecutor() {
+    return createExecutor(solrThreads, solrQueueCapacity, "solr-request-");
+  }
+
+  /**
+   * Create the executor of the long running transfers: zip-archives, exports and bulk ingests.
+   * It is also the executor of all {@link org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody}s.
+   *
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor transferExecutor() {
+    return createExecutor(transferThreads, transferQueueCapacity, "transfer-");
+  }
+
+  /**
+   * Create the executor preparing streamed zip-archives: it selects the files, checks their size and waits for the
+   * {@link ZipArchiveAdmission}. The archive itself is streamed on the {@link #transferExecutor()}.
+   *
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor zipAdmissionExecutor() {
+    return createExecutor(admissionThreads, admissionQueueCapacity, "zip-admission-");
+  }
+
+  /**
+   * Create the executor building zip-archives in the background, see {@link de.christiankullmann.cktag.service.ZipJobService}
+   *
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor zipJobExecutor() {
+    return createExecutor(zipJobThreads, zipJobQueueCapacity, "zip-job-");
+  }
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(transferExecutor());
+    configurer.registerCallableInterceptors(ZipArchiveAdmission.permitReleasingInterceptor());
+    configurer.registerDeferredResultInterceptors(ZipArchiveAdmission.admissionReleasingInterceptor());
+  }
+
+  private static ThreadPoolTaskExecutor createExecutor(int threads, int queueCapacity, String threadNamePrefix) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix(threadNamePrefix);
+    executor.setTaskDecorator(requestContextDecorator());
+    return executor;
+  }
+
+  /**
+   * Run a task with the request of the thread submitting it, links to the controllers are built from the current request
+   *
+   * @return the {@link TaskDecorator}
+   */
+  private static TaskDecorator requestContextDecorator() {
+    return task -> {
+      RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+      return () -> {
+        RequestAttributes previous = RequestContextHolder.getRequestAttributes();
+        RequestContextHolder.setRequestAttributes(requestAttributes);
+        try {
+          task.run();
+        } finally {
+          RequestContextHolder.setRequestAttributes(previous);
+        }
+      };
+    };
+  }
+}
@@ -0,0 +1,130 @@
+package de.christiankullmann.cktag.config;
+
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.OkHttp3Requestor;
+import com.dropbox.core.v2.DbxClientV2;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the infrastructure used to talk to Dropbox
+ */
+@Configuration
+public class DropboxConfig {
+
+  private static final String CLIENT_IDENTIFIER = "CKTagger";
+
+  /**
+   * The up to 90 seconds Dropbox adds to a longpoll at random, plus a margin
+   */
+  private static final long LONGPOLL_READ_MARGIN_SECONDS = 120;
+
+  /**
+   * Create the connection pool shared by all Dropbox requests, its connections are closed when the context is closed.
+   * It bounds the idle connections only, the concurrency of the requests is bounded by the download and metadata
+   * executors and the {@link de.christiankullmann.cktag.service.DropboxRateLimiter}.
+   *
+   * @param maxConnections the maximum number of idle connections kept in the pool
+   * @param keepAlive      the time in seconds an idle connection is kept in the pool
+   * @return a new Bean {@link ConnectionPool}
+   */
+  @Bean(destroyMethod = "evictAll")
+  public ConnectionPool dropboxConnectionPool(@Value("${dropbox.http.maxConnections}") int maxConnections,
+                                              @Value("${dropbox.http.keepAlive}") long keepAlive) {
+    return new ConnectionPool(maxConnections, keepAlive, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Create the HTTP client shared by all Dropbox requests, so connections to the Dropbox API are kept alive and reused
+   *
+   * @param dropboxConnectionPool the {@link ConnectionPool}
+   * @param connectTimeout        the connect timeout in milliseconds
+   * @param readTimeout           the read and write timeout in milliseconds
+   * @return a new Bean {@link OkHttpClient}
+   */
+  @Bean
+  public OkHttpClient dropboxHttpClient(ConnectionPool dropboxConnectionPool,
+                                        @Value("${dropbox.http.connectTimeout}") long connectTimeout,
+                                        @Value("${dropbox.http.readTimeout}") long readTimeout) {
+    return OkHttp3Requestor.defaultOkHttpClientBuilder()
+        .connectionPool(dropboxConnectionPool)
+        .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+        .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+        .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Create the thread-safe Dropbox client shared by all requests
+   *
+   * @param dropboxHttpClient the {@link OkHttpClient} used for the requests
+   * @param accessToken       the Dropbox access token
+   * @return a new Bean {@link DbxClientV2}
+   */
+  @Bean
+  @Primary
+  public DbxClientV2 dropboxClient(OkHttpClient dropboxHttpClient, @Value("${dropbox.access.token}") String accessToken) {
+    DbxRequestConfig config = DbxRequestConfig.newBuilder(CLIENT_IDENTIFIER)
+        .withHttpRequestor(new OkHttp3Requestor(dropboxHttpClient))
+        .build();
+    return new DbxClientV2(config, accessToken);
+  }
+
+  /**
+   * Create the Dropbox client waiting for changes with longpolls for the {@link de.christiankullmann.cktag.service.DropboxSyncService}.
+   * Its read timeout exceeds the longpoll timeout, as Dropbox answers a longpoll up to 90 seconds late.
+   *
+   * @param dropboxHttpClient the {@link OkHttpClient} whose connection pool is shared
+   * @param accessToken       the Dropbox access token
+   * @param longpollTimeout   the longpoll timeout in seconds
+   * @return a new Bean {@link DbxClientV2}
+   */
+  @Bean
+  public DbxClientV2 dropboxLongpollClient(OkHttpClient dropboxHttpClient, @Value("${dropbox.access.token}") String accessToken,
+                                           @Value("${dropbox.sync.longpollTimeout}") long longpollTimeout) {
+    OkHttpClient longpollHttpClient = dropboxHttpClient.newBuilder()
+        .readTimeout(longpollTimeout + LONGPOLL_READ_MARGIN_SECONDS, TimeUnit.SECONDS)
+        .build();
+    DbxRequestConfig config = DbxRequestConfig.newBuilder(CLIENT_IDENTIFIER)
+        .withHttpRequestor(new OkHttp3Requestor(longpollHttpClient))
+        .build();
+    return new DbxClientV2(config, accessToken);
+  }
+
+  /**
+   * Create the executor that downloads files from Dropbox ahead of the zip-archive writer
+   *
+   * @param threads the number of concurrent downloads
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor dropboxDownloadExecutor(@Value("${dropbox.download.threads}") int threads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setThreadNamePrefix("dropbox-download-");
+    return executor;
+  }
+
+  /**
+   * Create the executor that resolves the Dropbox metadata of the files selected for a zip-archive
+   *
+   * @param threads the number of concurrent metadata requests
+   * @return a new Bean {@link ThreadPoolTaskExecutor}
+   */
+  @Bean
+  public ThreadPoolTaskExecutor dropboxMetadataExecutor(@Value("${dropbox.metadata.threads}") int threads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setThreadNamePrefix("dropbox-metadata-");
+    return executor;
+  }
+}
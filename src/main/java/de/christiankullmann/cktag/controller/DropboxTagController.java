@@ -1,22 +1,50 @@
 package de.christiankullmann.cktag.controller;
 
 import com.dropbox.core.DbxException;
+import de.christiankullmann.cktag.exception.ZipJobNotReadyException;
+import de.christiankullmann.cktag.service.BulkIngestResult;
 import de.christiankullmann.cktag.service.DropboxConnectionService;
+import de.christiankullmann.cktag.service.DropboxTagBulkService;
+import de.christiankullmann.cktag.service.DropboxTagExportService;
+import de.christiankullmann.cktag.service.DropboxTagSizeSum;
 import de.christiankullmann.cktag.service.DropboxTagSolrService;
+import de.christiankullmann.cktag.service.TagUpdate;
+import de.christiankullmann.cktag.service.TagUpdateResult;
+import de.christiankullmann.cktag.service.ZipArchiveAdmission;
+import de.christiankullmann.cktag.service.ZipJob;
+import de.christiankullmann.cktag.service.ZipJobService;
 import de.christiankullmann.cktag.solr.DropboxTag;
 import de.christiankullmann.cktag.solr.DropboxTagAssembler;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.hateoas.Resource;
 import org.springframework.hateoas.Resources;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.util.List;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+/**
+ * The endpoints of the {@link DropboxTag}s. No endpoint blocks a servlet thread waiting for Solr or Dropbox: requests to
+ * Solr are answered on the <code>solrRequestExecutor</code>, zip-archives, exports and bulk ingests on the
+ * <code>transferExecutor</code>. A zip-archive waits for its admission on the <code>zipAdmissionExecutor</code> before it
+ * is streamed, so no transfer thread waits for the archives it streams. Zip jobs are built on the executor of the
+ * {@link ZipJobService}.
+ */
 @RestController
 @Slf4j
 @RequestMapping("api/v1")
@@ -32,12 +60,41 @@ public class DropboxTagController {
 
   private final DropboxConnectionService dropboxConnectionService;
 
+  private final DropboxTagBulkService dropboxTagBulkService;
+
+  private final DropboxTagExportService dropboxTagExportService;
+
+  private final AsyncTaskExecutor solrRequestExecutor;
+
+  private final AsyncTaskExecutor transferExecutor;
+
+  private final AsyncTaskExecutor zipAdmissionExecutor;
+
+  private final ZipJobService zipJobService;
+
   @Autowired
-  public DropboxTagController(DropboxTagSolrService dropboxTagSolrService, DropboxTagAssembler assembler, DropboxConnectionService dropboxConnectionService) {
+  public DropboxTagController(DropboxTagSolrService dropboxTagSolrService, DropboxTagAssembler assembler, DropboxConnectionService dropboxConnectionService,
+                              DropboxTagBulkService dropboxTagBulkService, DropboxTagExportService dropboxTagExportService,
+                              @Qualifier("solrRequestExecutor") AsyncTaskExecutor solrRequestExecutor,
+                              @Qualifier("transferExecutor") AsyncTaskExecutor transferExecutor,
+                              @Qualifier("zipAdmissionExecutor") AsyncTaskExecutor zipAdmissionExecutor,
+                              ZipJobService zipJobService) {
     Assert.notNull(dropboxTagSolrService, "dropboxTagService must not be null");
     Assert.notNull(dropboxConnectionService, "dropboxConnectionService must not be null");
+    Assert.notNull(dropboxTagBulkService, "dropboxTagBulkService must not be null");
+    Assert.notNull(dropboxTagExportService, "dropboxTagExportService must not be null");
+    Assert.notNull(solrRequestExecutor, "solrRequestExecutor must not be null");
+    Assert.notNull(transferExecutor, "transferExecutor must not be null");
+    Assert.notNull(zipAdmissionExecutor, "zipAdmissionExecutor must not be null");
+    Assert.notNull(zipJobService, "zipJobService must not be null");
     this.dropboxTagSolrService = dropboxTagSolrService;
     this.dropboxConnectionService = dropboxConnectionService;
+    this.dropboxTagBulkService = dropboxTagBulkService;
+    this.dropboxTagExportService = dropboxTagExportService;
+    this.solrRequestExecutor = solrRequestExecutor;
+    this.transferExecutor = transferExecutor;
+    this.zipAdmissionExecutor = zipAdmissionExecutor;
+    this.zipJobService = zipJobService;
   }
 
   /**
@@ -47,11 +104,43 @@ public class DropboxTagController {
    * @return all entries returned by Solr matching the search-tags
    */
   @GetMapping(path = "dropboxtags", produces = {MediaType.APPLICATION_JSON_VALUE})
-  public Resources<Resource<DropboxTag>> getAllDropboxTagsResourcesByTags(@RequestParam(value = "tags", defaultValue = "*") String tags,
+  public CompletableFuture<Resources<Resource<DropboxTag>>> getAllDropboxTagsResourcesByTags(@RequestParam(value = "tags", defaultValue = "*") String tags,
                                                                           @RequestParam(value = "offset", defaultValue = "0") String start,
                                                                           @RequestParam(value = "limit", defaultValue = "10") String rows) {
     log.debug("Calling getAllDropboxTagsResourcesByTags with tags [{}], start [{}], rows [{}]", tags, start, rows);
-    return dropboxTagSolrService.getAllByTags(tags, start, rows);
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.getAllByTags(tags, start, rows));
+  }
+
+  /**
+   * Get one page of the entries found in Solr as {@link Resources} containing the tags.
+   * Pass <code>*</code> as cursor for the first page and follow the next link for the following pages.
+   *
+   * @param tags   the tags to be searched for
+   * @param cursor the opaque cursor of the page
+   * @param rows   the number of entries per page
+   * @return the entries of the page returned by Solr matching the search-tags
+   */
+  @GetMapping(path = "dropboxtags", params = "cursor", produces = {MediaType.APPLICATION_JSON_VALUE})
+  public CompletableFuture<Resources<Resource<DropboxTag>>> getDropboxTagsResourcesByTagsWithCursor(@RequestParam(value = "tags", defaultValue = "*") String tags,
+                                                                                 @RequestParam(value = "cursor") String cursor,
+                                                                                 @RequestParam(value = "limit", defaultValue = "10") String rows) {
+    log.debug("Calling getDropboxTagsResourcesByTagsWithCursor with tags [{}], cursor [{}], rows [{}]", tags, cursor, rows);
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.getPageByTags(tags, cursor, rows));
+  }
+
+  /**
+   * Export all entries found in Solr containing the tags, without paging and without links.
+   * The entries are streamed to the client while they are read from Solr.
+   *
+   * @param tags   the tags to be searched for
+   * @param format <code>ndjson</code> for one JSON object per line or <code>csv</code>
+   * @return a {@link ResponseEntity} streaming the entries
+   */
+  @GetMapping(path = "dropboxtags/export")
+  public CompletableFuture<ResponseEntity<StreamingResponseBody>> exportDropboxTagsByTags(@RequestParam(value = "tags", defaultValue = "*") String tags,
+                                                                      @RequestParam(value = "format", defaultValue = DropboxTagExportService.FORMAT_NDJSON) String format) {
+    log.debug("Calling exportDropboxTagsByTags with tags [{}], format [{}]", tags, format);
+    return supplyAsync(transferExecutor, () -> dropboxTagExportService.exportByTags(tags, format));
   }
 
   /**
@@ -61,8 +150,8 @@ public class DropboxTagController {
    * @return a {@link Resource}
    */
   @GetMapping("dropboxtags/{id}")
-  public Resource<DropboxTag> getOneDropboxTagResourceById(@PathVariable String id) {
-    return dropboxTagSolrService.getDropboxTagById(id);
+  public CompletableFuture<Resource<DropboxTag>> getOneDropboxTagResourceById(@PathVariable String id) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.getDropboxTagById(id));
 
   }
 
@@ -74,20 +163,57 @@ public class DropboxTagController {
    * @return a {@link ResponseEntity}
    */
   @PostMapping("dropboxtags")
-  ResponseEntity<?> addTagEntry(@RequestBody DropboxTag newDropboxTagItem) {
-    return dropboxTagSolrService.addDropboxTagEntry(newDropboxTagItem);
+  CompletableFuture<ResponseEntity<?>> addTagEntry(@RequestBody DropboxTag newDropboxTagItem) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.addDropboxTagEntry(newDropboxTagItem));
+  }
+
+  /**
+   * Add many DropboxItems to Solr at once, each with a randomly generated ID.
+   * The body is either a JSON array or newline delimited JSON objects, it is read incrementally.
+   *
+   * @param body the {@link DropboxTag}s in JSON format
+   * @return the {@link BulkIngestResult} with the id or the error of every entry
+   */
+  @PostMapping(path = "dropboxtags/bulk",
+      consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE, "application/x-ndjson"},
+      produces = {MediaType.APPLICATION_JSON_VALUE})
+  CompletableFuture<BulkIngestResult> addTagEntries(InputStream body) {
+    return supplyAsync(transferExecutor, () -> dropboxTagBulkService.addDropboxTagEntries(body));
   }
 
   /**
-   * Patch/Update a {@link DropboxTag} by id
+   * Patch/Update a {@link DropboxTag} by id, optionally only if its version is unchanged
    *
    * @param id         the id of the dropboxtag to update
-   * @param dropBoxTag the new dropboxtag
+   * @param dropBoxTag the fields to replace
    * @return a {@link ResponseEntity}
    */
   @PatchMapping("dropboxtags/{id}")
-  ResponseEntity<?> updateTags(@PathVariable String id, @RequestBody DropboxTag dropBoxTag) {
-    return dropboxTagSolrService.patchUpdateDropboxTag(id, dropBoxTag);
+  CompletableFuture<ResponseEntity<?>> updateTags(@PathVariable String id, @RequestBody DropboxTag dropBoxTag) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.patchUpdateDropboxTag(id, dropBoxTag));
+  }
+
+  /**
+   * Add tags to and remove tags from a {@link DropboxTag} by id, optionally only if its version is unchanged
+   *
+   * @param id        the id of the dropboxtag to update
+   * @param tagUpdate the tags to add and to remove
+   * @return a {@link ResponseEntity} containing the new version
+   */
+  @PatchMapping(path = "dropboxtags/{id}/tags", produces = {MediaType.APPLICATION_JSON_VALUE})
+  CompletableFuture<ResponseEntity<TagUpdateResult>> updateTagsById(@PathVariable String id, @RequestBody TagUpdate tagUpdate) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.updateTags(id, tagUpdate));
+  }
+
+  /**
+   * Add tags to and remove tags from many {@link DropboxTag}s with one request to Solr
+   *
+   * @param tagUpdate the ids of the dropboxtags and the tags to add and to remove
+   * @return a {@link ResponseEntity} containing the new versions
+   */
+  @PatchMapping(path = "dropboxtags/tags", produces = {MediaType.APPLICATION_JSON_VALUE})
+  CompletableFuture<ResponseEntity<TagUpdateResult>> updateTagsByIds(@RequestBody TagUpdate tagUpdate) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.updateTags(tagUpdate));
   }
 
   /**
@@ -97,20 +223,101 @@ public class DropboxTagController {
    * @return a {@link ResponseEntity}
    */
   @DeleteMapping("dropboxtags/{id}")
-  ResponseEntity<?> deleteDropboxTag(@PathVariable String id) {
-    return dropboxTagSolrService.deleteDropboxTag(id);
+  CompletableFuture<ResponseEntity<?>> deleteDropboxTag(@PathVariable String id) {
+    return supplyAsync(solrRequestExecutor, () -> dropboxTagSolrService.deleteDropboxTag(id));
   }
 
   /**
-   * Download all files that are tagged with <b>tags</b> in Solr from Dropbox as a zipfile to the provided download location
+   * Download all files that are tagged with <b>tags</b> in Solr from Dropbox as a zipfile to the provided download location.
+   * The archive is admitted on the <code>zipAdmissionExecutor</code> and streamed on the <code>transferExecutor</code>.
    *
-   * @param tags the tags
-   * @return a {@link ResponseEntity} when finished
+   * @param tags           the tags
+   * @param requestHeaders the headers of the request, a <code>Range</code> is answered if the archive can be laid out up front
+   * @return a {@link ResponseEntity} streaming the zipfile or a part of it
    */
   @GetMapping(path = "dropboxtags/zipped")
-  public ResponseEntity<?> zipFilesByTag(@RequestParam(value = "tags", defaultValue = "*") String tags) {
+  public CompletableFuture<ResponseEntity<StreamingResponseBody>> zipFilesByTag(@RequestParam(value = "tags", defaultValue = "*") String tags,
+                                                                                @RequestHeader HttpHeaders requestHeaders) {
+    ZipArchiveAdmission.PermitHolder permitHolder = ZipArchiveAdmission.holdPermitOfCurrentRequest();
+    return supplyAsync(zipAdmissionExecutor, () -> {
+      Iterable<DropboxTag> dropboxTags = dropboxTagSolrService.iterateAllByTags(tags);
+      DropboxTagSizeSum indexedSize = dropboxTagSolrService.sumSizesByTags(tags);
+      return dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox(tags, dropboxTags, indexedSize, requestHeaders, permitHolder);
+    });
+  }
+
+  /**
+   * Start to build the zip-archive of all files that are tagged with <b>tags</b> in the background.
+   * An identical request for the same revisions of the same files gets the job that is already there.
+   *
+   * @param tags the tags
+   * @return a {@link ResponseEntity} with the {@link ZipJob} and its location
+   */
+  @PostMapping(path = "zip-jobs", produces = {MediaType.APPLICATION_JSON_VALUE})
+  public CompletableFuture<ResponseEntity<Resource<ZipJob>>> createZipJob(@RequestParam(value = "tags", defaultValue = "*") String tags) {
+    log.debug("Calling createZipJob with tags [{}]", tags);
+    return supplyAsync(transferExecutor, () -> {
+      Resource<ZipJob> zipJob = toZipJobResource(zipJobService.submit(tags));
+      return ResponseEntity.accepted().location(URI.create(zipJob.getId().getHref())).body(zipJob);
+    });
+  }
 
-    List<DropboxTag> dropboxTagList = dropboxTagSolrService.getAllByTagsAsList(tags, "0", Integer.toString(Integer.MAX_VALUE));
-    return dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox(tags, dropboxTagList);
+  /**
+   * Get the status and the progress of a zip job
+   *
+   * @param id the id of the job
+   * @return a {@link Resource} of the {@link ZipJob}, linking to the zip-archive once it is done
+   */
+  @GetMapping(path = "zip-jobs/{id}", produces = {MediaType.APPLICATION_JSON_VALUE})
+  public Resource<ZipJob> getZipJob(@PathVariable String id) {
+    return toZipJobResource(zipJobService.getJob(id));
+  }
+
+  /**
+   * Download the zip-archive of a finished zip job. It is served from disk, so a <code>Range</code> is answered as well.
+   *
+   * @param id the id of the job
+   * @return a {@link ResponseEntity} with the zip-archive
+   */
+  @GetMapping(path = "zip-jobs/{id}/file")
+  public ResponseEntity<FileSystemResource> getZipJobFile(@PathVariable String id) {
+    ZipJob zipJob = zipJobService.getJob(id);
+    if (zipJob.getStatus() != ZipJob.Status.DONE) {
+      throw new ZipJobNotReadyException(id, zipJob.getStatus().name());
+    }
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType("application/zip"))
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"cktag.zip\"")
+        .body(new FileSystemResource(zipJob.getFile().toFile()));
+  }
+
+  private Resource<ZipJob> toZipJobResource(ZipJob zipJob) {
+    Resource<ZipJob> resource = new Resource<>(zipJob, linkTo(methodOn(DropboxTagController.class).getZipJob(zipJob.getId())).withSelfRel());
+    if (zipJob.getStatus() == ZipJob.Status.DONE) {
+      resource.add(linkTo(methodOn(DropboxTagController.class).getZipJobFile(zipJob.getId())).withRel("file"));
+    }
+    return resource;
+  }
+
+  /**
+   * Run the work of a request on an executor, the servlet thread is released until the result is there.
+   * Exceptions complete the {@link CompletableFuture} as they are, so they reach the exception handlers unwrapped.
+   *
+   * @param executor the executor
+   * @param supplier the work of the request
+   * @param <T>      the type of the result
+   * @return the {@link CompletableFuture} of the result
+   * @throws org.springframework.core.task.TaskRejectedException if the executor is saturated
+   */
+  private static <T> CompletableFuture<T> supplyAsync(AsyncTaskExecutor executor, Supplier<T> supplier) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        result.complete(supplier.get());
+      } catch (RuntimeException | Error e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
   }
 }
@@ -0,0 +1,62 @@
+package de.christiankullmann.cktag.controller;
+
+import de.christiankullmann.cktag.service.TagCount;
+import de.christiankullmann.cktag.service.TagFacetService;
+import de.christiankullmann.cktag.service.TagSuggestIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.hateoas.Resources;
+import org.springframework.http.MediaType;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@Slf4j
+@RequestMapping("api/v1")
+public class TagController {
+
+  private final TagFacetService tagFacetService;
+
+  private final TagSuggestIndex tagSuggestIndex;
+
+  @Autowired
+  public TagController(TagFacetService tagFacetService, TagSuggestIndex tagSuggestIndex) {
+    Assert.notNull(tagFacetService, "tagFacetService must not be null");
+    Assert.notNull(tagSuggestIndex, "tagSuggestIndex must not be null");
+    this.tagFacetService = tagFacetService;
+    this.tagSuggestIndex = tagSuggestIndex;
+  }
+
+  /**
+   * Get the tags in use with the number of entries carrying each tag, the most frequent first
+   *
+   * @param prefix only return tags starting with the prefix
+   * @param limit  the maximum number of tags, -1 for all
+   * @return the {@link TagCount}s
+   */
+  @GetMapping(path = "tags", produces = {MediaType.APPLICATION_JSON_VALUE})
+  public Resources<TagCount> getTagCounts(@RequestParam(value = "prefix", defaultValue = "") String prefix,
+                                          @RequestParam(value = "limit", defaultValue = "100") int limit) {
+    log.debug("Calling getTagCounts with prefix [{}], limit [{}]", prefix, limit);
+    return tagFacetService.getTagCounts(prefix, limit);
+  }
+
+  /**
+   * Suggest tags for type-ahead from the in-memory index, the most frequent first
+   *
+   * @param prefix the prefix typed so far, ignoring case
+   * @param limit  the maximum number of tags
+   * @return the {@link TagCount}s
+   */
+  @GetMapping(path = "tags/suggest", produces = {MediaType.APPLICATION_JSON_VALUE})
+  public List<TagCount> suggestTags(@RequestParam(value = "prefix", defaultValue = "") String prefix,
+                                    @RequestParam(value = "limit", defaultValue = "10") int limit) {
+    log.debug("Calling suggestTags with prefix [{}], limit [{}]", prefix, limit);
+    return tagSuggestIndex.suggest(prefix, limit);
+  }
+}
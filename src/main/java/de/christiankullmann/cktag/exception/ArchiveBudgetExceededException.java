@@ -0,0 +1,21 @@
+package de.christiankullmann.cktag.exception;
+
+/**
+ * Thrown if a zip-archive cannot be admitted within the service-wide budget of concurrent builds and in-flight bytes
+ */
+public class ArchiveBudgetExceededException extends RuntimeException {
+
+  private final long retryAfter;
+
+  public ArchiveBudgetExceededException(String message, long retryAfter) {
+    super(message);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * @return the time in seconds after which the client should try again
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
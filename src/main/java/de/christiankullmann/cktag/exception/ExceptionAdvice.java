@@ -3,12 +3,16 @@ package de.christiankullmann.cktag.exception;
 import com.dropbox.core.DbxException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.solr.common.SolrException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.RejectedExecutionException;
+
 @ControllerAdvice
 @Slf4j
 class ExceptionAdvice {
@@ -93,4 +97,61 @@ class ExceptionAdvice {
     return new ErrorResponse("UpdateException", ex.getMessage());
   }
 
+  @ResponseBody
+  @ExceptionHandler(UnsupportedFormatException.class)
+  @ResponseStatus(HttpStatus.BAD_REQUEST)
+  ErrorResponse handleUnsupportedFormatException(UnsupportedFormatException ex) {
+    log.error("A UnsupportedFormatException occurred: [{}]", ex.getMessage(), ex);
+    return new ErrorResponse("UNSUPPORTED_FORMAT", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(VersionConflictException.class)
+  @ResponseStatus(HttpStatus.CONFLICT)
+  ErrorResponse handleVersionConflictException(VersionConflictException ex) {
+    log.error("A VersionConflictException occurred: [{}]", ex.getMessage(), ex);
+    return new ErrorResponse("VERSION_CONFLICT", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(InvalidTagUpdateException.class)
+  @ResponseStatus(HttpStatus.BAD_REQUEST)
+  ErrorResponse handleInvalidTagUpdateException(InvalidTagUpdateException ex) {
+    log.error("A InvalidTagUpdateException occurred: [{}]", ex.getMessage(), ex);
+    return new ErrorResponse("INVALID_TAG_UPDATE", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(ZipJobNotFoundException.class)
+  @ResponseStatus(HttpStatus.NOT_FOUND)
+  ErrorResponse handleZipJobNotFoundException(ZipJobNotFoundException ex) {
+    log.error("A ZipJobNotFoundException occurred: [{}]", ex.getMessage(), ex);
+    return new ErrorResponse("ZIP_JOB_NOT_FOUND", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(ZipJobNotReadyException.class)
+  @ResponseStatus(HttpStatus.CONFLICT)
+  ErrorResponse handleZipJobNotReadyException(ZipJobNotReadyException ex) {
+    log.error("A ZipJobNotReadyException occurred: [{}]", ex.getMessage(), ex);
+    return new ErrorResponse("ZIP_JOB_NOT_READY", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(ArchiveBudgetExceededException.class)
+  @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+  ErrorResponse handleArchiveBudgetExceededException(ArchiveBudgetExceededException ex, HttpServletResponse response) {
+    log.warn("A ArchiveBudgetExceededException occurred: [{}]", ex.getMessage());
+    response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+    return new ErrorResponse("ARCHIVE_BUDGET_EXCEEDED", ex.getMessage());
+  }
+
+  @ResponseBody
+  @ExceptionHandler(RejectedExecutionException.class)
+  @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+  ErrorResponse handleRejectedExecutionException(RejectedExecutionException ex) {
+    log.warn("A RejectedExecutionException occurred: [{}]", ex.getMessage());
+    return new ErrorResponse("SERVICE_BUSY", "Too many concurrent requests. Please try again later.");
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package de.christiankullmann.cktag.exception;
+
+/**
+ * An exception for updates that name nothing to change or no entries to update
+ */
+public class InvalidTagUpdateException extends RuntimeException {
+
+  public InvalidTagUpdateException(String message) {
+    super(message);
+  }
+}
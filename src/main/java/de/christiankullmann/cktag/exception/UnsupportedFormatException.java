@@ -0,0 +1,11 @@
+package de.christiankullmann.cktag.exception;
+
+/**
+ * An exception for requests asking for a representation the service does not provide
+ */
+public class UnsupportedFormatException extends RuntimeException {
+
+  public UnsupportedFormatException(String format) {
+    super("Format [" + format + "] is not supported.");
+  }
+}
@@ -0,0 +1,21 @@
+package de.christiankullmann.cktag.exception;
+
+/**
+ * An exception for updates rejected by Solr's optimistic concurrency, because the entry has been changed or does not exist
+ */
+public class VersionConflictException extends RuntimeException {
+
+  private final boolean documentMissing;
+
+  public VersionConflictException(String message, boolean documentMissing) {
+    super(message);
+    this.documentMissing = documentMissing;
+  }
+
+  /**
+   * @return true if the update has been rejected because the entry does not exist
+   */
+  public boolean isDocumentMissing() {
+    return documentMissing;
+  }
+}
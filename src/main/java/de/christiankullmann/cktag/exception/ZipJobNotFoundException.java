@@ -0,0 +1,7 @@
+package de.christiankullmann.cktag.exception;
+
+public class ZipJobNotFoundException extends RuntimeException {
+  public ZipJobNotFoundException(String id) {
+    super("No zip job with id [" + id + "] found, it may have expired.");
+  }
+}
@@ -0,0 +1,7 @@
+package de.christiankullmann.cktag.exception;
+
+public class ZipJobNotReadyException extends RuntimeException {
+  public ZipJobNotReadyException(String id, String status) {
+    super("The zip-archive of job [" + id + "] is not available, the job is [" + status + "].");
+  }
+}
@@ -0,0 +1,74 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a bulk ingest of {@link de.christiankullmann.cktag.solr.DropboxTag}s, with one {@link Item} per parsed entry
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkIngestResult {
+
+  private int succeeded;
+
+  private int failed;
+
+  /**
+   * Set if the request body could not be read to its end, all entries before the error have been processed
+   */
+  private String error;
+
+  private final List<Item> items = new ArrayList<>();
+
+  /**
+   * Record an entry that has been added to Solr
+   *
+   * @param index the position of the entry in the request body
+   * @param id    the id of the new {@link de.christiankullmann.cktag.solr.DropboxTag}
+   */
+  void succeeded(int index, String id) {
+    items.add(new Item(index, id, null));
+    succeeded++;
+  }
+
+  /**
+   * Record an entry that has not been added to Solr
+   *
+   * @param index the position of the entry in the request body
+   * @param id    the id assigned to the entry, null if it has been rejected before
+   * @param error the reason
+   */
+  void failed(int index, String id, String error) {
+    items.add(new Item(index, id, error));
+    failed++;
+  }
+
+  /**
+   * Record that the request body could not be read to its end
+   *
+   * @param error the reason
+   */
+  void aborted(String error) {
+    this.error = error;
+  }
+
+  /**
+   * The outcome of a single entry
+   */
+  @Getter
+  @AllArgsConstructor
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class Item {
+
+    private final int index;
+
+    private final String id;
+
+    private final String error;
+  }
+}
@@ -0,0 +1,28 @@
+package de.christiankullmann.cktag.service;
+
+/**
+ * The ways in which {@link SolrClientService} makes its writes to Apache Solr visible
+ */
+public enum CommitPolicy {
+
+  /**
+   * Send a hard commit after every write, the change is visible once the request returns
+   */
+  IMMEDIATE,
+
+  /**
+   * Send every write with commitWithin, Solr makes the change visible within the configured time
+   */
+  COMMIT_WITHIN,
+
+  /**
+   * Send a soft commit after every write, the change is visible once the request returns and durable with Solr's next hard (auto) commit
+   */
+  SOFT_COMMIT,
+
+  /**
+   * Let a background thread send one commit for all writes of the configured interval,
+   * every request waits for the commit covering its change, so the change is visible once the request returns
+   */
+  GROUP_COMMIT
+}
@@ -0,0 +1,42 @@
+package de.christiankullmann.cktag.service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for the {@link MessageDigest}s identifying zip-archives by their content
+ */
+final class Digests {
+
+  private Digests() {
+  }
+
+  /**
+   * Create a {@link MessageDigest} of an algorithm every JVM supports
+   *
+   * @param algorithm the name of the algorithm, e.g. <code>MD5</code> or <code>SHA-256</code>
+   * @return a new {@link MessageDigest}
+   * @throws IllegalStateException if the algorithm is not supported
+   */
+  static MessageDigest create(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " is not supported", e);
+    }
+  }
+
+  /**
+   * Format a digest as lower case hex
+   *
+   * @param bytes the digest
+   * @return the hex string
+   */
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,147 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import de.christiankullmann.cktag.solr.DropboxTag;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file that has been downloaded from Dropbox and is waiting to be added to a zip-archive.
+ * The content is read from a file of the {@link DropboxFileCache} or, if the file is not cached, from a temporary file
+ * that is deleted when this object is closed. The content is never held in memory, so the prefetched files of a
+ * zip-archive are limited by the disk instead of the heap.
+ */
+class DownloadedDropboxFile implements Closeable {
+
+  private final DropboxTag dropboxTag;
+
+  private final FileMetadata metadata;
+
+  private final FileChannel channel;
+
+  private DownloadedDropboxFile(DropboxTag dropboxTag, FileMetadata metadata, FileChannel channel) {
+    this.dropboxTag = dropboxTag;
+    this.metadata = metadata;
+    this.channel = channel;
+  }
+
+  /**
+   * Create a {@link DownloadedDropboxFile} with its content spooled to a temporary file
+   *
+   * @param dropboxTag the {@link DropboxTag}
+   * @param metadata   the {@link FileMetadata}
+   * @param content    the content being downloaded, it is read to the end but not closed
+   * @return a new {@link DownloadedDropboxFile}
+   * @throws IOException if the content cannot be read or the temporary file cannot be written
+   */
+  static DownloadedDropboxFile spooled(DropboxTag dropboxTag, FileMetadata metadata, InputStream content) throws IOException {
+    Path tempFile = Files.createTempFile("cktag-download", ".tmp");
+    try {
+      Files.copy(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      return onDisk(dropboxTag, metadata, FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE));
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+  }
+
+  /**
+   * Create a {@link DownloadedDropboxFile} with its content on disk
+   *
+   * @param dropboxTag the {@link DropboxTag}
+   * @param metadata   the {@link FileMetadata}
+   * @param channel    an open {@link FileChannel} of the content, it is closed with this object
+   * @return a new {@link DownloadedDropboxFile}
+   */
+  static DownloadedDropboxFile onDisk(DropboxTag dropboxTag, FileMetadata metadata, FileChannel channel) {
+    return new DownloadedDropboxFile(dropboxTag, metadata, channel);
+  }
+
+  DropboxTag getDropboxTag() {
+    return dropboxTag;
+  }
+
+  FileMetadata getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * Return the number of downloaded bytes
+   *
+   * @return the size in bytes
+   * @throws IOException if the size of the file on disk cannot be read
+   */
+  long getSize() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Write the downloaded content to the provided {@link OutputStream}.
+   * The content is transferred by the {@link FileChannel}, the outputStream is not closed.
+   *
+   * @param outputStream the {@link OutputStream}
+   * @throws IOException if writing fails
+   */
+  void writeTo(OutputStream outputStream) throws IOException {
+    WritableByteChannel target = Channels.newChannel(outputStream);
+    long size = channel.size();
+    long position = 0;
+    while (position < size) {
+      position += channel.transferTo(position, size - position, target);
+    }
+  }
+
+  /**
+   * Calculate the CRC-32 checksum of the downloaded content
+   *
+   * @return the CRC-32 checksum
+   * @throws IOException if the file on disk cannot be read
+   */
+  long getCrc32() throws IOException {
+    CRC32 crc32 = new CRC32();
+    writeTo(new OutputStream() {
+      @Override
+      public void write(int b) {
+        crc32.update(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        crc32.update(b, off, len);
+      }
+    });
+    return crc32.getValue();
+  }
+
+  /**
+   * Open an {@link InputStream} of the downloaded content.
+   * Closing the stream releases the file on disk as well.
+   *
+   * @return an {@link InputStream}
+   */
+  InputStream openStream() {
+    try {
+      channel.position(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return Channels.newInputStream(channel);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -2,142 +2,744 @@ package de.christiankullmann.cktag.service;
 
 import com.dropbox.core.DbxDownloader;
 import com.dropbox.core.DbxException;
-import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.Metadata;
 import de.christiankullmann.cktag.exception.DropboxDownloadException;
 import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 import org.springframework.util.MimeType;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 /**
  * The DroboxConnectionService provides all necessary functions to retrieve data from DropBox
- * To work properly it needs a Dropbox Access Token issued by Dropbox for an application.
+ * To work properly it needs a Dropbox Access Token issued by Dropbox for an application, which is used by the shared {@link DbxClientV2}.
  */
 @Service
 @Slf4j
 public class DropboxConnectionService {
 
-  private final String accessToken;
+  private static final String ZIP_FILE_NAME = "cktag.zip";
 
+  private static final int METADATA_WINDOW = 256;
 
-  private final int maxDownloadFilesize;
+  private final DbxClientV2 client;
 
-  private DropboxConnectionService(@Value("${dropbox.access.token}") String accessToken,
-                                   @Value("${dropbox.max.downloadSize}") int maxDownloadFilesize) {
-    this.accessToken = accessToken;
+  private final long maxDownloadFilesize;
+
+  private final AsyncTaskExecutor downloadExecutor;
+
+  private final int prefetchSize;
+
+  private final AsyncTaskExecutor metadataExecutor;
+
+  private final DropboxMetadataCache metadataCache;
+
+  private final DropboxFileCache fileCache;
+
+  private final ZipCompressionPolicy compressionPolicy;
+
+  private final DropboxTagSolrService solrService;
+
+  private final ZipArchiveAdmission admission;
+
+  private final DropboxRateLimiter rateLimiter;
+
+  private final boolean rangesEnabled;
+
+  private final MeterRegistry meterRegistry;
+
+  private final Counter downloadedBytes;
+
+  private final DistributionSummary downloadThroughput;
+
+  private final DistributionSummary compressionRatio;
+
+  /**
+   * Create a new {@link DropboxConnectionService}
+   *
+   * @param client              the shared {@link DbxClientV2}
+   * @param maxDownloadFilesize the maximum size in bytes of all files in one zip-archive
+   * @param downloadExecutor    the {@link AsyncTaskExecutor} downloading files ahead of the zip-archive writer
+   * @param prefetchSize        the maximum number of files that are downloaded or waiting to be written per zip-archive
+   * @param metadataExecutor    the {@link AsyncTaskExecutor} resolving the metadata of the selected files
+   * @param metadataCache       the {@link DropboxMetadataCache}
+   * @param fileCache           the {@link DropboxFileCache}
+   * @param compressionPolicy   the {@link ZipCompressionPolicy}
+   * @param solrService         the {@link DropboxTagSolrService} the metadata of the files is recorded with
+   * @param admission           the {@link ZipArchiveAdmission} every zip-archive is admitted by
+   * @param rateLimiter         the {@link DropboxRateLimiter} every request to Dropbox goes through
+   * @param rangesEnabled       whether zip-archives are laid out as STORED with a Content-Length and support for Range requests if possible
+   * @param meterRegistry       the {@link MeterRegistry} the requests to Dropbox and the zip-archives are reported to
+   */
+  @Autowired
+  public DropboxConnectionService(DbxClientV2 client,
+                                  @Value("${dropbox.max.downloadSize}") long maxDownloadFilesize,
+                                  @Qualifier("dropboxDownloadExecutor") AsyncTaskExecutor downloadExecutor,
+                                  @Value("${dropbox.download.prefetch}") int prefetchSize,
+                                  @Qualifier("dropboxMetadataExecutor") AsyncTaskExecutor metadataExecutor,
+                                  DropboxMetadataCache metadataCache,
+                                  DropboxFileCache fileCache,
+                                  ZipCompressionPolicy compressionPolicy,
+                                  DropboxTagSolrService solrService,
+                                  ZipArchiveAdmission admission,
+                                  DropboxRateLimiter rateLimiter,
+                                  @Value("${zip.ranges.enabled}") boolean rangesEnabled,
+                                  MeterRegistry meterRegistry) {
+    Assert.notNull(client, "client must not be null");
+    Assert.notNull(downloadExecutor, "downloadExecutor must not be null");
+    Assert.isTrue(prefetchSize > 0, "prefetchSize must be greater than 0");
+    Assert.notNull(metadataExecutor, "metadataExecutor must not be null");
+    Assert.notNull(metadataCache, "metadataCache must not be null");
+    Assert.notNull(fileCache, "fileCache must not be null");
+    Assert.notNull(compressionPolicy, "compressionPolicy must not be null");
+    Assert.notNull(solrService, "DropboxTagSolrService must not be null");
+    Assert.notNull(admission, "admission must not be null");
+    Assert.notNull(rateLimiter, "rateLimiter must not be null");
+    Assert.notNull(meterRegistry, "meterRegistry must not be null");
+    this.client = client;
     this.maxDownloadFilesize = maxDownloadFilesize;
+    this.downloadExecutor = downloadExecutor;
+    this.prefetchSize = prefetchSize;
+    this.metadataExecutor = metadataExecutor;
+    this.metadataCache = metadataCache;
+    this.fileCache = fileCache;
+    this.compressionPolicy = compressionPolicy;
+    this.solrService = solrService;
+    this.admission = admission;
+    this.rateLimiter = rateLimiter;
+    this.rangesEnabled = rangesEnabled;
+    this.meterRegistry = meterRegistry;
+    this.downloadedBytes = Counter.builder("cktag.dropbox.download.bytes")
+        .description("Bytes of files downloaded from Dropbox")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    this.downloadThroughput = DistributionSummary.builder("cktag.dropbox.download.throughput")
+        .description("Bytes per second of the files downloaded from Dropbox")
+        .register(meterRegistry);
+    this.compressionRatio = DistributionSummary.builder("cktag.zip.compression.ratio")
+        .description("Size of the dynamically built zip-archives relative to the size of their files")
+        .register(meterRegistry);
   }
 
   /**
-   * Download the files referenced in the provided {@link List}&lt;{@link DropboxTag}&gt; from Dropbox, compress these using ZIP and return as part of the Response for download
+   * Download the files referenced by the provided {@link DropboxTag}s from Dropbox, compress these using ZIP and return as part of the Response for download.
+   * The archive is not built in memory: each file is piped from Dropbox through the ZIP encoder straight into the response stream.
+   * The overall size is checked against the sizes indexed in Solr, only the files without an indexed size are looked up
+   * in Dropbox, iterating the dropboxTags once more. Files changed in Dropbox since are verified again while they are written.
+   * <p>
+   * If {@link #rangesEnabled} and the size, rev and CRC-32 of all files are indexed, the archive is laid out as a
+   * {@link StoredZipLayout} instead and a Range request is answered with that part of the archive only.
+   * Otherwise the archive is built dynamically, which records the CRC-32s for the next request.
    *
    * @param tags           the tags used to select the DropboxTag-Entities from Solr
-   * @param dropboxTagList the list of {@link DropboxTag}s containing the information of the files to be downloaded and compressed
-   * @return a {@link ResponseEntity} containing the zip-archive
+   * @param dropboxTags    the {@link DropboxTag}s containing the information of the files to be downloaded and compressed
+   * @param indexedSize    the {@link DropboxTagSizeSum} of the dropboxTags
+   * @param requestHeaders the headers of the request with its <code>Range</code> and <code>If-Range</code>
+   * @param permitHolder   the {@link ZipArchiveAdmission.PermitHolder} of the request, it releases the budget of the
+   *                       archive if the response is never written
+   * @return a {@link ResponseEntity} streaming the zip-archive
    */
-  public ResponseEntity<?> downloadTaggedFilesToZipFileFromDropbox(String tags, List<DropboxTag> dropboxTagList) {
-    DbxRequestConfig config = DbxRequestConfig.newBuilder("CKTagger").build();
-    DbxClientV2 client = new DbxClientV2(config, accessToken);
+  public ResponseEntity<StreamingResponseBody> downloadTaggedFilesToZipFileFromDropbox(String tags, Iterable<DropboxTag> dropboxTags,
+                                                                                      DropboxTagSizeSum indexedSize,
+                                                                                      HttpHeaders requestHeaders,
+                                                                                      ZipArchiveAdmission.PermitHolder permitHolder) {
+    long downloadFileSize = checkDownloadSize(dropboxTags, indexedSize);
+
+    if (rangesEnabled && indexedSize.getUnknown() == 0) {
+      StoredZipLayout layout = StoredZipLayout.create(dropboxTags);
+      if (null != layout) {
+        return storedZipArchiveResponse(tags, layout, requestHeaders, permitHolder);
+      }
+      log.debug("The zip-archive for tags [{}] cannot be laid out, building it dynamically", tags);
+    }
+
+    long checkedSize = downloadFileSize;
+    ZipArchiveAdmission.Permit permit = admit(tags, checkedSize, permitHolder);
+    StreamingResponseBody body = outputStream -> {
+      try (ZipArchiveAdmission.Permit admitted = permit) {
+        writeZipArchive(tags, dropboxTags, checkedSize, outputStream);
+      }
+    };
+    return ResponseEntity.ok()
+        .contentType(MediaType.asMediaType(MimeType.valueOf("application/zip")))
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + ZIP_FILE_NAME + "\"")
+        .body(body);
+  }
 
-    List<Metadata> metadataList = collectDropboxMetadataForDropboxTags(dropboxTagList, client);
-    Optional<Integer> overallSize = metadataList.stream()
-        .map(data -> new JSONObject((data.toString())))
-        .filter(json -> json.has("size"))
-        .map(json -> json.getInt("size"))
-        .reduce((size1, size2) -> size1 + size2);
-    int downloadFileSize = overallSize.isPresent() ? overallSize.get() : 0;
+  /**
+   * Check the overall size of the files of the {@link DropboxTag}s against the {@link #maxDownloadFilesize}.
+   * Only the files without an indexed size are looked up in Dropbox.
+   *
+   * @param dropboxTags the {@link DropboxTag}s containing the information of the files to be downloaded and compressed
+   * @param indexedSize the {@link DropboxTagSizeSum} of the dropboxTags
+   * @return the overall size in bytes
+   * @throws DropboxDownloadException if the overall size exceeds the {@link #maxDownloadFilesize}
+   */
+  long checkDownloadSize(Iterable<DropboxTag> dropboxTags, DropboxTagSizeSum indexedSize) {
+    long downloadFileSize = indexedSize.getSize();
+    if (downloadFileSize <= maxDownloadFilesize && indexedSize.getUnknown() > 0) {
+      downloadFileSize += sumUnknownDropboxFileSizes(dropboxTags, maxDownloadFilesize - downloadFileSize);
+    }
 
-    log.debug("OverallSize [{}]", overallSize.isPresent() ? overallSize.get() : "unknown size");
+    log.debug("OverallSize [{}]", downloadFileSize);
 
     if (downloadFileSize > maxDownloadFilesize) {
       throw new DropboxDownloadException("Size of selected files exceeds the maximum allowed size of [" + maxDownloadFilesize + "]");
     }
+    return downloadFileSize;
+  }
 
-    try (
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ZipArchiveOutputStream zipArchiveOutputStream = new ZipArchiveOutputStream(bos)) {
-      for (DropboxTag dropboxTag : dropboxTagList) {
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-          addDropboxFileToZip(client, zipArchiveOutputStream, dropboxTag, byteArrayOutputStream);
-        } catch (IOException | DbxException e) {
-          throw new DropboxDownloadException("Error occurred during download of [" + dropboxTag.path + "]", e);
+  /**
+   * Write the zip-archive for the {@link DropboxTag}s to the provided {@link OutputStream}
+   *
+   * @param tags         the tags used to select the DropboxTag-Entities from Solr
+   * @param dropboxTags  the {@link DropboxTag}s containing the information of the files to be downloaded and compressed
+   * @param checkedSize  the overall size in bytes the dropboxTags have been checked with
+   * @param outputStream the {@link OutputStream} to write the archive to, it is flushed but not closed
+   * @throws IOException if writing to the outputStream fails
+   * @see #writeZipArchive(String, Iterable, long, OutputStream, LongConsumer)
+   */
+  void writeZipArchive(String tags, Iterable<DropboxTag> dropboxTags, long checkedSize, OutputStream outputStream) throws IOException {
+    writeZipArchive(tags, dropboxTags, checkedSize, outputStream, size -> {
+    });
+  }
+
+  /**
+   * Write the zip-archive for the {@link DropboxTag}s to the provided {@link OutputStream}.
+   * Up to {@link #prefetchSize} files are downloaded concurrently on the {@link #downloadExecutor}, while this thread
+   * adds them to the archive in the order of the dropboxTags.
+   * A file whose rev differs from the indexed one has changed since the size check: its new size replaces the indexed one
+   * in the overall size, which must still not exceed the {@link #maxDownloadFilesize}. The metadata and the CRC-32 of
+   * changed files and of files without an indexed CRC-32 are recorded.
+   *
+   * @param tags         the tags used to select the DropboxTag-Entities from Solr
+   * @param dropboxTags  the {@link DropboxTag}s containing the information of the files to be downloaded and compressed
+   * @param checkedSize  the overall size in bytes the dropboxTags have been checked with
+   * @param outputStream the {@link OutputStream} to write the archive to, it is flushed but not closed
+   * @param fileAdded    called with the size of every file once it has been added to the archive
+   * @throws IOException if writing to the outputStream fails
+   */
+  void writeZipArchive(String tags, Iterable<DropboxTag> dropboxTags, long checkedSize, OutputStream outputStream,
+                       LongConsumer fileAdded) throws IOException {
+    Iterator<DropboxTag> pending = dropboxTags.iterator();
+    Deque<Future<DownloadedDropboxFile>> prefetched = new ArrayDeque<>(prefetchSize);
+    List<DropboxTag> changedFiles = new ArrayList<>();
+    long downloadFileSize = checkedSize;
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try (ZipArchiveBuilder zipArchiveBuilder = new ZipArchiveBuilder(outputStream, compressionPolicy, prefetchSize)) {
+      while (pending.hasNext() || !prefetched.isEmpty()) {
+        while (pending.hasNext() && prefetched.size() < prefetchSize) {
+          DropboxTag dropboxTag = pending.next();
+          prefetched.add(downloadExecutor.submit(() -> downloadDropboxFile(dropboxTag)));
+        }
+        DownloadedDropboxFile downloadedFile = awaitDownload(tags, prefetched.poll());
+        DropboxTag dropboxTag = downloadedFile.getDropboxTag();
+        FileMetadata metadata = downloadedFile.getMetadata();
+        boolean changed = !metadata.getRev().equals(dropboxTag.rev);
+        if (changed || null == dropboxTag.crc32) {
+          DropboxTag change = fileMetadataChange(dropboxTag.id, null, null, metadata);
+          change.crc32 = downloadedFile.getCrc32();
+          changedFiles.add(change);
         }
+        if (changed && null != dropboxTag.size) {
+          downloadFileSize += metadata.getSize() - dropboxTag.size;
+          if (downloadFileSize > maxDownloadFilesize) {
+            downloadedFile.close();
+            throw new DropboxDownloadException("Size of selected files exceeds the maximum allowed size of [" + maxDownloadFilesize
+                + "] after [" + dropboxTag.path + "] has changed");
+          }
+        }
+        zipArchiveBuilder.add(downloadedFile);
+        fileAdded.accept(metadata.getSize());
       }
-      zipArchiveOutputStream.close();
-      byte[] zipFile = bos.toByteArray();
-      if (null != zipFile && zipFile.length > 0) {
-        ByteArrayResource resource = new ByteArrayResource(zipFile);
-        return ResponseEntity.ok()
-            .contentLength(zipFile.length)
-            .contentType(MediaType.asMediaType(MimeType.valueOf("application/zip")))
-            .body(resource);
-      } else {
-        return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No zipfile has been created. Please contact your provider.");
+      zipArchiveBuilder.finish();
+      success = true;
+      recordArchiveEntries("dynamic", zipArchiveBuilder.getEntries());
+      if (zipArchiveBuilder.getUncompressedSize() > 0) {
+        compressionRatio.record((double) zipArchiveBuilder.getArchiveSize() / zipArchiveBuilder.getUncompressedSize());
       }
-    } catch (IOException e) {
-      throw new DropboxDownloadException("Error occurred during creation of zipfile for tags [" + tags + "]");
+    } finally {
+      prefetched.forEach(this::discardDownload);
+      recordFileMetadata(changedFiles);
+      recordZipBuild(sample, "dynamic", success);
     }
+    outputStream.flush();
   }
 
   /**
-   * Retrieve the {@link Metadata} objects for the {@link DropboxTag} objects
+   * Create the response for a {@link StoredZipLayout}: the whole archive, or the requested part of it if the request
+   * carries a single byte range and its <code>If-Range</code>, if any, matches the ETag of the archive
    *
-   * @param dropboxTagList a {@link List} of {@link DropboxTag}s
-   * @param client         the {@link DbxClientV2} to use for the retrieval
-   * @return a {@link List} of {@link Metadata}
+   * @param tags           the tags used to select the DropboxTag-Entities from Solr
+   * @param layout         the {@link StoredZipLayout}
+   * @param requestHeaders the headers of the request
+   * @param permitHolder   the {@link ZipArchiveAdmission.PermitHolder} of the request
+   * @return a {@link ResponseEntity} streaming the zip-archive or the part of it
    */
-  private List<Metadata> collectDropboxMetadataForDropboxTags(List<DropboxTag> dropboxTagList, DbxClientV2 client) {
-    return dropboxTagList.stream()
-        .map(tag -> tag.path)
-        .map(path -> {
-          Metadata result;
-          try {
-            result = client.files().getMetadata(path);
-          } catch (DbxException e) {
-            throw new DropboxDownloadException("Unable to retrieve metadata for path [" + path + "]");
+  private ResponseEntity<StreamingResponseBody> storedZipArchiveResponse(String tags, StoredZipLayout layout, HttpHeaders requestHeaders,
+                                                                         ZipArchiveAdmission.PermitHolder permitHolder) {
+    long length = layout.getLength();
+    HttpRange range = requestedRange(requestHeaders, layout.getETag());
+    long start = 0;
+    long end = length - 1;
+    ResponseEntity.BodyBuilder response;
+    if (null == range) {
+      response = ResponseEntity.ok();
+    } else {
+      start = range.getRangeStart(length);
+      end = range.getRangeEnd(length);
+      if (start >= length || start > end) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+            .build();
+      }
+      response = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+          .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+    }
+    log.debug("Stored zip-archive for tags [{}], length [{}], range [{}-{}]", tags, length, start, end);
+
+    List<StoredZipLayout.Slice> slices = layout.slices(start, end);
+    ZipArchiveAdmission.Permit permit = admit(tags, end - start + 1, permitHolder);
+    StreamingResponseBody body = outputStream -> {
+      try (ZipArchiveAdmission.Permit admitted = permit) {
+        writeStoredZipArchive(tags, slices, outputStream);
+      }
+    };
+    return response
+        .contentType(MediaType.asMediaType(MimeType.valueOf("application/zip")))
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + ZIP_FILE_NAME + "\"")
+        .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+        .eTag(layout.getETag())
+        .contentLength(end - start + 1)
+        .body(body);
+  }
+
+  /**
+   * Admit a zip-archive streamed to a request by the {@link #admission}
+   *
+   * @param tags         the tags used to select the DropboxTag-Entities from Solr
+   * @param size         the size in bytes of the files of the archive
+   * @param permitHolder the {@link ZipArchiveAdmission.PermitHolder} of the request
+   * @return the {@link ZipArchiveAdmission.Permit}, released once the archive has been written or the request has completed
+   */
+  private ZipArchiveAdmission.Permit admit(String tags, long size, ZipArchiveAdmission.PermitHolder permitHolder) {
+    ZipArchiveAdmission.Permit permit = admission.admit(tags, size);
+    try {
+      permitHolder.hold(permit);
+    } catch (RuntimeException e) {
+      permit.close();
+      throw e;
+    }
+    return permit;
+  }
+
+  /**
+   * Return the byte range a request asks for. Several ranges, invalid ranges and an outdated <code>If-Range</code>
+   * are answered with the whole archive, as HTTP allows.
+   *
+   * @param requestHeaders the headers of the request
+   * @param eTag           the ETag of the archive
+   * @return the {@link HttpRange} or null for the whole archive
+   */
+  private static HttpRange requestedRange(HttpHeaders requestHeaders, String eTag) {
+    String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+    if (null != ifRange && !ifRange.equals(eTag)) {
+      return null;
+    }
+    try {
+      List<HttpRange> ranges = requestHeaders.getRange();
+      return ranges.size() == 1 ? ranges.get(0) : null;
+    } catch (IllegalArgumentException e) {
+      log.debug("Ignoring invalid Range [{}]", requestHeaders.getFirst(HttpHeaders.RANGE));
+      return null;
+    }
+  }
+
+  /**
+   * Write the slices of a {@link StoredZipLayout} to the provided {@link OutputStream}.
+   * Up to {@link #prefetchSize} ranges of files are requested ahead on the {@link #downloadExecutor}, while this thread
+   * copies them in the order of the archive.
+   *
+   * @param tags         the tags used to select the DropboxTag-Entities from Solr
+   * @param slices       the {@link StoredZipLayout.Slice}s
+   * @param outputStream the {@link OutputStream} to write the archive to, it is flushed but not closed
+   * @throws IOException if writing to the outputStream fails or a file ends early
+   */
+  void writeStoredZipArchive(String tags, List<StoredZipLayout.Slice> slices, OutputStream outputStream) throws IOException {
+    Iterator<StoredZipLayout.Slice> pending = slices.stream().filter(slice -> null == slice.getBytes()).iterator();
+    Deque<Future<InputStream>> prefetched = new ArrayDeque<>(prefetchSize);
+    byte[] buffer = new byte[8192];
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      for (StoredZipLayout.Slice slice : slices) {
+        if (null != slice.getBytes()) {
+          outputStream.write(slice.getBytes());
+          continue;
+        }
+        while (pending.hasNext() && prefetched.size() < prefetchSize) {
+          StoredZipLayout.Slice next = pending.next();
+          prefetched.add(downloadExecutor.submit(() -> openDropboxFileRange(next)));
+        }
+        try (InputStream content = awaitDownload(tags, prefetched.poll())) {
+          long remaining = slice.getLength();
+          while (remaining > 0) {
+            int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+              throw new DropboxDownloadException("[" + slice.getDropboxTag().path + "] ended [" + remaining + "] bytes early");
+            }
+            outputStream.write(buffer, 0, read);
+            remaining -= read;
           }
-          return result;
-        })
-        .collect(Collectors.toList());
+        }
+      }
+      success = true;
+      recordArchiveEntries("stored", slices.stream().filter(slice -> null == slice.getBytes()).count());
+    } finally {
+      prefetched.forEach(this::discardDownload);
+      recordZipBuild(sample, "stored", success);
+    }
+    outputStream.flush();
   }
 
+  /**
+   * Open a range of a file at its indexed rev, from the {@link #fileCache} if its content is there, otherwise from Dropbox
+   *
+   * @param slice the {@link StoredZipLayout.Slice} of the file
+   * @return an {@link InputStream} of the range, closing it releases the download or the file on disk
+   * @throws DropboxDownloadException if Dropbox or the file on disk cause an error
+   */
+  private InputStream openDropboxFileRange(StoredZipLayout.Slice slice) {
+    DropboxTag dropboxTag = slice.getDropboxTag();
+    try {
+      FileChannel cachedFile = null == dropboxTag.contentHash ? null : fileCache.open(dropboxTag.contentHash);
+      if (null != cachedFile) {
+        log.debug("Reading [{}] from the file cache", dropboxTag.path);
+        cachedFile.position(slice.getOffset());
+        return Channels.newInputStream(cachedFile);
+      }
+      // the rev pins the content the archive has been laid out for, wherever the file has moved since
+      Timer.Sample sample = Timer.start(meterRegistry);
+      boolean success = false;
+      DbxDownloader<FileMetadata> downloader;
+      try {
+        downloader = rateLimiter.call("download of " + dropboxTag.path,
+            () -> client.files().downloadBuilder("rev:" + dropboxTag.rev)
+                .range(slice.getOffset(), slice.getLength())
+                .start());
+        success = true;
+      } finally {
+        recordDropboxRequest(sample, "range", success);
+      }
+      return new FilterInputStream(downloader.getInputStream()) {
+        @Override
+        public void close() {
+          downloader.close();
+        }
+      };
+    } catch (IOException | DbxException e) {
+      throw new DropboxDownloadException("Error occurred during download of [" + dropboxTag.path + "]", e);
+    }
+  }
+
+  /**
+   * Create the change of a {@link DropboxTag} recording the metadata of its file
+   *
+   * @param id   the id of the DropboxTag
+   * @param name the new name or null to leave it unchanged
+   * @param path the new path or null to leave it unchanged
+   * @param file the {@link FileMetadata}
+   * @return the {@link DropboxTag} holding the changed fields
+   */
+  static DropboxTag fileMetadataChange(String id, String name, String path, FileMetadata file) {
+    DropboxTag change = new DropboxTag(id, name, path, null);
+    change.fileId = file.getId();
+    change.size = file.getSize();
+    change.rev = file.getRev();
+    change.contentHash = file.getContentHash();
+    change.serverModified = file.getServerModified();
+    return change;
+  }
+
+  /**
+   * Record the metadata of files seen during a download in Solr, so the next size check finds them.
+   * A failure is only logged, the metadata is captured again with the next download.
+   *
+   * @param changes the changes recording the metadata
+   */
+  private void recordFileMetadata(List<DropboxTag> changes) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    try {
+      solrService.syncDropboxTags(changes, Collections.emptyList());
+    } catch (RuntimeException e) {
+      log.warn("Unable to record the metadata of [{}] files", changes.size(), e);
+    }
+  }
+
+  /**
+   * Sum up the sizes of the files referenced by the {@link DropboxTag}s without an indexed size and record their metadata.
+   * Metadata of the indexed rev found in the {@link #metadataCache} is used directly, all other paths are resolved
+   * concurrently on the {@link #metadataExecutor}.
+   * At most {@link #METADATA_WINDOW} lookups are outstanding, and the sum stops as soon as it exceeds the remaining size.
+   *
+   * @param dropboxTags   the {@link DropboxTag}s
+   * @param remainingSize the size in bytes left for the files without an indexed size
+   * @return the overall size in bytes, once it exceeds the remainingSize the sum of the files checked so far
+   */
+  private long sumUnknownDropboxFileSizes(Iterable<DropboxTag> dropboxTags, long remainingSize) {
+    Deque<Future<FileMetadata>> resolvedMetadata = new ArrayDeque<>(METADATA_WINDOW);
+    Deque<DropboxTag> resolvedDropboxTags = new ArrayDeque<>(METADATA_WINDOW);
+    List<DropboxTag> capturedFiles = new ArrayList<>();
+    long size = 0;
+    try {
+      Iterator<DropboxTag> pending = dropboxTags.iterator();
+      while ((pending.hasNext() || !resolvedMetadata.isEmpty()) && size <= remainingSize) {
+        while (pending.hasNext() && resolvedMetadata.size() < METADATA_WINDOW) {
+          DropboxTag dropboxTag = pending.next();
+          if (null != dropboxTag.size) {
+            continue;
+          }
+          FileMetadata cachedMetadata = cachedMetadata(dropboxTag);
+          resolvedMetadata.add(null != cachedMetadata
+              ? CompletableFuture.completedFuture(cachedMetadata)
+              : metadataExecutor.submit(() -> getFileMetadata(dropboxTag.path)));
+          resolvedDropboxTags.add(dropboxTag);
+        }
+        if (resolvedMetadata.isEmpty()) {
+          break;
+        }
+        FileMetadata metadata = resolvedMetadata.poll().get();
+        size += metadata.getSize();
+        capturedFiles.add(fileMetadataChange(resolvedDropboxTags.poll().id, null, null, metadata));
+      }
+      return size;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DropboxDownloadException("Interrupted while retrieving metadata", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof DropboxDownloadException) {
+        throw (DropboxDownloadException) e.getCause();
+      }
+      throw new DropboxDownloadException("Unable to retrieve metadata: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      resolvedMetadata.forEach(metadata -> metadata.cancel(true));
+      recordFileMetadata(capturedFiles);
+    }
+  }
+
+  /**
+   * Retrieve the {@link FileMetadata} of a path from Dropbox and add it to the {@link #metadataCache}
+   *
+   * @param path the Dropbox path
+   * @return the {@link FileMetadata}
+   * @throws DropboxDownloadException if the metadata cannot be retrieved or the path is not a file
+   */
+  private FileMetadata getFileMetadata(String path) {
+    Metadata metadata;
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      metadata = rateLimiter.call("metadata of " + path, () -> client.files().getMetadata(path));
+      success = true;
+    } catch (DbxException | IOException e) {
+      throw new DropboxDownloadException("Unable to retrieve metadata for path [" + path + "]", e);
+    } finally {
+      recordDropboxRequest(sample, "metadata", success);
+    }
+    if (!(metadata instanceof FileMetadata)) {
+      throw new DropboxDownloadException("Path [" + path + "] does not reference a file");
+    }
+    metadataCache.put(path, (FileMetadata) metadata);
+    return (FileMetadata) metadata;
+  }
+
+
+  /**
+   * Return the cached {@link FileMetadata} of a {@link DropboxTag} if it is of the indexed rev. The metadata is cached by
+   * path for a while, after the file has been overwritten in Dropbox it would still point to the old content otherwise.
+   *
+   * @param dropboxTag the {@link DropboxTag}
+   * @return the {@link FileMetadata} or null if none of the indexed rev is cached
+   */
+  private FileMetadata cachedMetadata(DropboxTag dropboxTag) {
+    FileMetadata metadata = metadataCache.getIfPresent(dropboxTag.path);
+    return null != metadata && metadata.getRev().equals(dropboxTag.rev) ? metadata : null;
+  }
 
   /**
-   * Add downloaded file to the zip archive
+   * Download a file from Dropbox.
+   * If the content of the indexed rev of the file is in the {@link #fileCache}, it is read from disk instead.
+   * Otherwise it is downloaded into the fileCache or, if the file cannot be cached, into a temporary file, so the
+   * prefetched files do not hold their content on the heap.
    *
-   * @param client                 the {@link DbxClientV2}
-   * @param zipArchiveOutputStream a {@link ZipArchiveOutputStream}
-   * @param dropboxTag             a {@link DropboxTag}
-   * @param byteArrayOutputStream  a {@link ByteArrayOutputStream}
-   * @throws DbxException if DropBox causes an error, a {@link DbxException} is thrown
-   * @throws IOException  if the Streams cause an error, an {@link IOException} is thrown
+   * @param dropboxTag a {@link DropboxTag}
+   * @return the {@link DownloadedDropboxFile}
+   * @throws DropboxDownloadException if Dropbox or the Streams cause an error
    */
-  private void addDropboxFileToZip(DbxClientV2 client, ZipArchiveOutputStream zipArchiveOutputStream, DropboxTag dropboxTag, ByteArrayOutputStream byteArrayOutputStream) throws DbxException, IOException {
-    DbxDownloader downloader = client.files().download(dropboxTag.path);
-    downloader.download(byteArrayOutputStream);
+  private DownloadedDropboxFile downloadDropboxFile(DropboxTag dropboxTag) {
+    try {
+      FileMetadata knownMetadata = cachedMetadata(dropboxTag);
+      if (null != knownMetadata) {
+        FileChannel cachedFile = fileCache.open(knownMetadata.getContentHash());
+        if (null != cachedFile) {
+          log.debug("Reading [{}] from the file cache", dropboxTag.path);
+          return DownloadedDropboxFile.onDisk(dropboxTag, knownMetadata, cachedFile);
+        }
+      }
+      Timer.Sample sample = Timer.start(meterRegistry);
+      long downloadedSize = -1;
+      try (DbxDownloader<FileMetadata> downloader = rateLimiter.call("download of " + dropboxTag.path,
+          () -> client.files().download(dropboxTag.path))) {
+        FileMetadata metadata = downloader.getResult();
+        metadataCache.put(dropboxTag.path, metadata);
+        DownloadedDropboxFile downloadedFile;
+        if (fileCache.isCacheable(metadata.getContentHash())) {
+          downloadedFile = DownloadedDropboxFile.onDisk(dropboxTag, metadata, fileCache.store(metadata.getContentHash(), downloader.getInputStream()));
+        } else {
+          downloadedFile = DownloadedDropboxFile.spooled(dropboxTag, metadata, downloader.getInputStream());
+        }
+        downloadedSize = metadata.getSize();
+        return downloadedFile;
+      } finally {
+        recordDownload(sample, downloadedSize);
+      }
+    } catch (IOException | DbxException e) {
+      throw new DropboxDownloadException("Error occurred during download of [" + dropboxTag.path + "]", e);
+    }
+  }
 
-    ZipArchiveEntry archiveEntry = new ZipArchiveEntry(dropboxTag.name);
-    archiveEntry.setSize(byteArrayOutputStream.size());
-    zipArchiveOutputStream.putArchiveEntry(archiveEntry);
-    zipArchiveOutputStream.write(byteArrayOutputStream.toByteArray());
-    zipArchiveOutputStream.closeArchiveEntry();
-    log.debug("Name [{}], Compressed size [{}], size [{}]", dropboxTag.name, archiveEntry.getCompressedSize(), archiveEntry.getSize());
+  /**
+   * Record the duration of a request to Dropbox by operation and outcome
+   *
+   * @param sample    the {@link Timer.Sample} started before the request
+   * @param operation the operation of the request
+   * @param success   whether the request succeeded
+   * @return the duration in nanoseconds
+   */
+  private long recordDropboxRequest(Timer.Sample sample, String operation, boolean success) {
+    return sample.stop(Timer.builder("cktag.dropbox.requests")
+        .description("Duration of requests to Dropbox, downloads of whole files including their content")
+        .tags("operation", operation, "outcome", success ? "success" : "error")
+        .register(meterRegistry));
+  }
+
+  /**
+   * Record the duration, the bytes and the throughput of the download of a whole file
+   *
+   * @param sample the {@link Timer.Sample} started before the download
+   * @param size   the size in bytes of the file, negative if the download failed
+   */
+  private void recordDownload(Timer.Sample sample, long size) {
+    long duration = recordDropboxRequest(sample, "download", size >= 0);
+    if (size < 0) {
+      return;
+    }
+    downloadedBytes.increment(size);
+    if (duration > 0) {
+      downloadThroughput.record(size * (double) TimeUnit.SECONDS.toNanos(1) / duration);
+    }
+  }
+
+  /**
+   * Record the duration of writing a zip-archive by layout and outcome
+   *
+   * @param sample  the {@link Timer.Sample} started before the archive
+   * @param layout  <code>dynamic</code> or <code>stored</code>
+   * @param success whether the archive has been written completely
+   */
+  private void recordZipBuild(Timer.Sample sample, String layout, boolean success) {
+    sample.stop(Timer.builder("cktag.zip.builds")
+        .description("Duration of writing zip-archives, including the downloads of their files")
+        .tags("layout", layout, "outcome", success ? "success" : "error")
+        .register(meterRegistry));
+  }
+
+  private void recordArchiveEntries(String layout, long entries) {
+    DistributionSummary.builder("cktag.zip.entries")
+        .description("Number of files in the zip-archives written")
+        .tags("layout", layout)
+        .register(meterRegistry)
+        .record(entries);
+  }
+
+  /**
+   * Cancel a prefetched download that is not needed anymore and release its file
+   *
+   * @param download the {@link Future} of the download
+   */
+  private void discardDownload(Future<? extends Closeable> download) {
+    if (download.cancel(true) || !download.isDone()) {
+      return;
+    }
+    try {
+      download.get().close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | IOException e) {
+      log.debug("Discarded download failed", e);
+    }
+  }
+
+  /**
+   * Wait for a prefetched download to finish
+   *
+   * @param tags     the tags used to select the DropboxTag-Entities from Solr
+   * @param download the {@link Future} of the download
+   * @param <T>      the type of the download
+   * @return the download
+   */
+  private <T> T awaitDownload(String tags, Future<T> download) {
+    try {
+      return download.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DropboxDownloadException("Interrupted during creation of zipfile for tags [" + tags + "]", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      log.error("Aborting zipfile for tags [{}], a download failed", tags, cause);
+      if (cause instanceof DropboxDownloadException) {
+        throw (DropboxDownloadException) cause;
+      }
+      throw new DropboxDownloadException("Error occurred during download for tags [" + tags + "]: " + cause.getMessage(), cause);
+    }
   }
 
 
@@ -0,0 +1,215 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A local disk cache of files downloaded from Dropbox, addressed by their Dropbox content_hash.
+ * <p>
+ * The cache is limited by the size of all stored files, the least recently used files are evicted first.
+ * The order of use is kept in the last modified time of the files, so it survives a restart of the service.
+ * Files are handed out as open {@link FileChannel}s, an evicted file stays readable until its channel is closed.
+ */
+@Component
+@Slf4j
+public class DropboxFileCache {
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("[0-9a-fA-F]+");
+
+  private final boolean enabled;
+
+  private final Path directory;
+
+  private final long maximumSize;
+
+  private final Map<String, Long> fileSizes = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long currentSize;
+
+  /**
+   * Create a new {@link DropboxFileCache}
+   *
+   * @param enabled     whether downloaded files are cached
+   * @param directory   the directory to store the files in
+   * @param maximumSize the maximum size in bytes of all cached files
+   */
+  @Autowired
+  public DropboxFileCache(@Value("${dropbox.cache.enabled}") boolean enabled,
+                          @Value("${dropbox.cache.directory}") String directory,
+                          @Value("${dropbox.cache.maxSize}") long maximumSize) {
+    this.enabled = enabled;
+    this.directory = Paths.get(directory);
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Create the cache directory and register the files that are already stored in it
+   *
+   * @throws IOException if the directory cannot be read
+   */
+  @PostConstruct
+  public void init() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    Files.createDirectories(directory);
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      files = stream.collect(Collectors.toList());
+    }
+    files.sort(Comparator.comparing(DropboxFileCache::lastModifiedTime));
+    for (Path file : files) {
+      if (file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)) {
+        Files.deleteIfExists(file);
+      } else {
+        register(file.getFileName().toString(), Files.size(file));
+      }
+    }
+    log.info("Dropbox file cache in [{}] contains [{}] files with [{}] bytes", directory, fileSizes.size(), currentSize);
+  }
+
+  /**
+   * @return true if downloaded files are cached
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Open the cached file with the provided content_hash for reading
+   *
+   * @param contentHash the Dropbox content_hash of the file
+   * @return an open {@link FileChannel} or null if the file is not cached
+   */
+  public FileChannel open(String contentHash) {
+    if (!isCacheable(contentHash)) {
+      return null;
+    }
+    synchronized (this) {
+      if (null == fileSizes.get(contentHash)) {
+        return null;
+      }
+    }
+    Path file = directory.resolve(contentHash);
+    try {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return channel;
+    } catch (NoSuchFileException e) {
+      unregister(contentHash);
+      return null;
+    } catch (IOException e) {
+      log.warn("Unable to read cached file [{}]", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Store the content of a file in the cache and open it for reading.
+   * Files larger than the cache are not kept, they are deleted once the returned channel is closed.
+   *
+   * @param contentHash the Dropbox content_hash of the file
+   * @param content     the content of the file
+   * @return an open {@link FileChannel} of the stored file
+   * @throws IOException if the content cannot be read or written
+   */
+  public FileChannel store(String contentHash, InputStream content) throws IOException {
+    Assert.isTrue(isCacheable(contentHash), "contentHash must be a hex string");
+    Path tempFile = Files.createTempFile(directory, contentHash, TEMP_FILE_SUFFIX);
+    try {
+      long size = Files.copy(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      if (size > maximumSize) {
+        return FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+      }
+      Path file = Files.move(tempFile, directory.resolve(contentHash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      register(contentHash, size);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+  }
+
+  /**
+   * Check whether a content_hash can be used as a file name in the cache
+   *
+   * @param contentHash the Dropbox content_hash
+   * @return true if the content_hash is a hex string
+   */
+  public boolean isCacheable(String contentHash) {
+    return enabled && null != contentHash && CONTENT_HASH_PATTERN.matcher(contentHash).matches();
+  }
+
+  /**
+   * Register a stored file and evict the least recently used files until the cache fits into {@link #maximumSize}
+   *
+   * @param contentHash the content_hash and file name
+   * @param size        the size of the file in bytes
+   */
+  private synchronized void register(String contentHash, long size) {
+    Long previousSize = fileSizes.put(contentHash, size);
+    currentSize += size - (null == previousSize ? 0 : previousSize);
+    Iterator<Map.Entry<String, Long>> eldest = fileSizes.entrySet().iterator();
+    while (currentSize > maximumSize && eldest.hasNext()) {
+      Map.Entry<String, Long> entry = eldest.next();
+      if (entry.getKey().equals(contentHash)) {
+        continue;
+      }
+      eldest.remove();
+      currentSize -= entry.getValue();
+      try {
+        Files.deleteIfExists(directory.resolve(entry.getKey()));
+      } catch (IOException e) {
+        log.warn("Unable to delete evicted file [{}]", entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Remove a file that vanished from the directory
+   *
+   * @param contentHash the content_hash and file name
+   */
+  private synchronized void unregister(String contentHash) {
+    Long size = fileSizes.remove(contentHash);
+    if (null != size) {
+      currentSize -= size;
+    }
+  }
+
+  /**
+   * @return the size in bytes of all cached files
+   */
+  synchronized long getCurrentSize() {
+    return currentSize;
+  }
+
+  private static FileTime lastModifiedTime(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+}
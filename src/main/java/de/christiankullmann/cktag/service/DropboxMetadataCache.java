@@ -0,0 +1,68 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of the latest Dropbox {@link FileMetadata} of a path.
+ * <p>
+ * The entries expire after the configured time to live, as the file might have been changed in Dropbox in the meantime.
+ * The metadata of the indexed rev of a file is kept in Solr, so it is not cached here.
+ */
+@Component
+public class DropboxMetadataCache {
+
+  private final Cache<String, FileMetadata> cache;
+
+  /**
+   * Create a new {@link DropboxMetadataCache}
+   *
+   * @param maximumSize      the maximum number of cached entries
+   * @param latestTtlSeconds the time to live in seconds of the latest metadata of a path
+   */
+  @Autowired
+  public DropboxMetadataCache(@Value("${dropbox.metadata.cache.maxSize}") long maximumSize,
+                              @Value("${dropbox.metadata.cache.ttl}") long latestTtlSeconds) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(latestTtlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Return the latest cached metadata for a path
+   *
+   * @param path the Dropbox path
+   * @return the cached {@link FileMetadata} or null
+   */
+  public FileMetadata getIfPresent(String path) {
+    return cache.getIfPresent(normalize(path));
+  }
+
+  /**
+   * Store the metadata of a file as the latest metadata for the path
+   *
+   * @param path     the Dropbox path that has been requested
+   * @param metadata the {@link FileMetadata}
+   */
+  public void put(String path, FileMetadata metadata) {
+    cache.put(normalize(path), metadata);
+  }
+
+  /**
+   * Dropbox paths are case insensitive
+   *
+   * @param path the path
+   * @return the lower case path
+   */
+  private static String normalize(String path) {
+    return path.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,305 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.RetryException;
+import com.dropbox.core.ServerException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The layer every idempotent request to Dropbox goes through, adapting the number of concurrent requests to the rate
+ * limit of the Dropbox account.
+ * <p>
+ * The concurrency limit follows additive increase, multiplicative decrease: every successful request raises it by
+ * <code>1 / limit</code>, so by one per round of requests, a rate-limited request lowers it by the decrease factor.
+ * Only one decrease is applied per round, the requests started before a decrease do not lower the limit again.
+ * The <code>Retry-After</code> of a rate limit pauses all requests. Rate-limited requests, server errors and network
+ * errors are retried with jittered exponential backoff.
+ */
+@Component
+@Slf4j
+public class DropboxRateLimiter {
+
+  /**
+   * A request to Dropbox that may be sent more than once
+   *
+   * @param <T> the type of the result
+   */
+  @FunctionalInterface
+  public interface DropboxCall<T> {
+    T call() throws DbxException;
+  }
+
+  private final int minConcurrency;
+
+  private final int maxConcurrency;
+
+  private final double decreaseFactor;
+
+  private final int maxRetries;
+
+  private final long backoff;
+
+  private final long maxBackoff;
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+
+  private final Condition changed = lock.newCondition();
+
+  private double limit;
+
+  private int inFlight;
+
+  /**
+   * The number of decreases so far, a request only lowers the limit if no decrease happened since it started
+   */
+  private long decreases;
+
+  private long pausedUntil = System.nanoTime();
+
+  private final Counter rateLimited;
+
+  private final Counter retries;
+
+  /**
+   * Create a new {@link DropboxRateLimiter}
+   *
+   * @param minConcurrency the lower bound of the concurrency limit
+   * @param maxConcurrency the upper bound of the concurrency limit, which is also the initial limit
+   * @param decreaseFactor the factor the limit is multiplied with on a rate limit, between 0 and 1
+   * @param maxRetries     the maximum number of retries of a request
+   * @param backoff        the time in milliseconds before the first retry of a request without Retry-After
+   * @param maxBackoff     the maximum time in milliseconds between two attempts of a request without Retry-After
+   * @param meterRegistry  the {@link MeterRegistry} the limit and the rate limits are reported to
+   */
+  @Autowired
+  public DropboxRateLimiter(@Value("${dropbox.ratelimit.minConcurrency}") int minConcurrency,
+                            @Value("${dropbox.ratelimit.maxConcurrency}") int maxConcurrency,
+                            @Value("${dropbox.ratelimit.decreaseFactor}") double decreaseFactor,
+                            @Value("${dropbox.ratelimit.maxRetries}") int maxRetries,
+                            @Value("${dropbox.ratelimit.backoff}") long backoff,
+                            @Value("${dropbox.ratelimit.maxBackoff}") long maxBackoff,
+                            MeterRegistry meterRegistry) {
+    Assert.isTrue(minConcurrency > 0, "minConcurrency must be positive");
+    Assert.isTrue(maxConcurrency >= minConcurrency, "maxConcurrency must not be less than minConcurrency");
+    Assert.isTrue(decreaseFactor > 0 && decreaseFactor < 1, "decreaseFactor must be between 0 and 1");
+    Assert.isTrue(maxRetries >= 0, "maxRetries must not be negative");
+    Assert.isTrue(backoff > 0 && maxBackoff >= backoff, "backoff must be positive and not exceed maxBackoff");
+    Assert.notNull(meterRegistry, "meterRegistry must not be null");
+    this.minConcurrency = minConcurrency;
+    this.maxConcurrency = maxConcurrency;
+    this.decreaseFactor = decreaseFactor;
+    this.maxRetries = maxRetries;
+    this.backoff = backoff;
+    this.maxBackoff = maxBackoff;
+    this.limit = maxConcurrency;
+    Gauge.builder("cktag.dropbox.concurrency.limit", this, DropboxRateLimiter::getLimit)
+        .description("Number of concurrent requests to Dropbox currently allowed")
+        .register(meterRegistry);
+    Gauge.builder("cktag.dropbox.concurrency.inflight", this, DropboxRateLimiter::getInFlight)
+        .description("Number of requests to Dropbox in flight")
+        .register(meterRegistry);
+    this.rateLimited = Counter.builder("cktag.dropbox.ratelimited")
+        .description("Number of requests to Dropbox answered with a rate limit")
+        .register(meterRegistry);
+    this.retries = Counter.builder("cktag.dropbox.retries")
+        .description("Number of retried requests to Dropbox")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Send a request to Dropbox within the concurrency limit and retry it while Dropbox asks for it
+   *
+   * @param description the description of the request for the log
+   * @param call        the {@link DropboxCall}, it must be idempotent
+   * @param <T>         the type of the result
+   * @return the result of the request
+   * @throws DbxException           if the request fails, after the last retry for retryable errors
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  public <T> T call(String description, DropboxCall<T> call) throws DbxException, InterruptedIOException {
+    return call(description, call, true);
+  }
+
+  /**
+   * Send a request to Dropbox that waits on the server, like a longpoll, outside of the concurrency limit.
+   * It waits for the pause of a rate limit, lowers the limit on a rate limit and is retried like any other request,
+   * but it does not occupy one of the concurrent requests allowed while it waits.
+   *
+   * @param description the description of the request for the log
+   * @param call        the {@link DropboxCall}, it must be idempotent
+   * @param <T>         the type of the result
+   * @return the result of the request
+   * @throws DbxException           if the request fails, after the last retry for retryable errors
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  public <T> T callOutsideLimit(String description, DropboxCall<T> call) throws DbxException, InterruptedIOException {
+    return call(description, call, false);
+  }
+
+  private <T> T call(String description, DropboxCall<T> call, boolean limited) throws DbxException, InterruptedIOException {
+    for (int attempt = 1; ; attempt++) {
+      long round = acquire(limited);
+      DbxException failure;
+      try {
+        T result = call.call();
+        if (limited) {
+          increase();
+        }
+        return result;
+      } catch (RateLimitException e) {
+        rateLimited.increment();
+        decrease(round, e.getBackoffMillis());
+        failure = e;
+      } catch (RetryException | ServerException | NetworkIOException e) {
+        failure = e;
+      } finally {
+        if (limited) {
+          release();
+        }
+      }
+      if (attempt > maxRetries) {
+        throw failure;
+      }
+      long delay = backoff(attempt, failure);
+      log.debug("Retrying [{}] in [{}] ms after [{}]", description, delay, failure.toString());
+      retries.increment();
+      sleep(delay);
+    }
+  }
+
+  /**
+   * @return the number of concurrent requests currently allowed
+   */
+  public double getLimit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of requests in flight
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until a request is allowed: the pause of a rate limit is over and, for a limited request, fewer requests than
+   * the limit are in flight
+   *
+   * @param limited whether the request counts against the limit
+   * @return the number of decreases before the request
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  private long acquire(boolean limited) throws InterruptedIOException {
+    lock.lock();
+    try {
+      while (true) {
+        long pause = pausedUntil - System.nanoTime();
+        if (pause > 0) {
+          changed.awaitNanos(pause);
+        } else if (!limited) {
+          return decreases;
+        } else if (inFlight >= (int) limit) {
+          changed.await();
+        } else {
+          inFlight++;
+          return decreases;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a request to Dropbox");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release() {
+    lock.lock();
+    try {
+      inFlight--;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void increase() {
+    lock.lock();
+    try {
+      limit = Math.min(maxConcurrency, limit + 1 / limit);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lower the limit, unless it has been lowered since the request started, and pause all requests for the Retry-After
+   *
+   * @param round      the number of decreases before the request
+   * @param retryAfter the Retry-After of the rate limit in milliseconds
+   */
+  private void decrease(long round, long retryAfter) {
+    lock.lock();
+    try {
+      if (round == decreases) {
+        decreases++;
+        limit = Math.max(minConcurrency, limit * decreaseFactor);
+        log.info("Dropbox rate limit reached, allowing [{}] concurrent requests", (int) limit);
+      }
+      pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfter));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the time to wait before the next attempt: the Retry-After of Dropbox plus some jitter, so the paused requests
+   * do not return all at once, or an exponential backoff of which a random half is waited
+   *
+   * @param attempt the number of the failed attempt
+   * @param failure the failure
+   * @return the time in milliseconds
+   */
+  private long backoff(int attempt, DbxException failure) {
+    long retryAfter = failure instanceof RetryException ? ((RetryException) failure).getBackoffMillis() : 0;
+    if (retryAfter > 0) {
+      return retryAfter + ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+    long exponential = Math.min(maxBackoff, backoff << Math.min(attempt - 1, 30));
+    return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a request to Dropbox");
+    }
+  }
+}
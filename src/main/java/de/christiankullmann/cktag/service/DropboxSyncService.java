@@ -0,0 +1,456 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.GetMetadataErrorException;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollError;
+import com.dropbox.core.v2.files.ListFolderLongpollErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollResult;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.dropbox.core.v2.files.Metadata;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the paths and the file metadata of the {@link DropboxTag}s in line with Dropbox, so renamed, changed and deleted
+ * files do not go stale in Solr.
+ * <p>
+ * The service follows the changes of a Dropbox folder with a <code>list_folder</code> cursor: it waits for changes with
+ * a longpoll and fetches only the changed entries with <code>list_folder/continue</code>. Dropbox reports a rename as
+ * the deletion of the old path and a file with the same file id at the new path, so the changes are matched to the
+ * DropboxTags by the file id they carry, deletions by path. A file with a new rev replaces the size, rev, content hash
+ * and modification time of its DropboxTags. Every page of changes is applied with one request to Solr.
+ * <p>
+ * The cursor is saved in a file after every page, so a restart resumes where it stopped. Without a cursor, or when
+ * Dropbox resets it, the folder is listed once in full, which also records the metadata of every tagged file.
+ * DropboxTags added later, or given a new path, get their metadata resolved as a {@link DropboxTagWriteListener}. A DropboxTag that is renamed
+ * before its file id is known cannot be told from a deleted one and is deleted.
+ */
+@Service
+@Slf4j
+public class DropboxSyncService implements DropboxTagWriteListener {
+
+  /**
+   * The maximum number of file ids or paths looked up in Solr with one query
+   */
+  private static final int LOOKUP_CHUNK_SIZE = 50;
+
+  /**
+   * The maximum number of DropboxTags waiting for their file metadata, DropboxTags beyond are left to the next full listing
+   */
+  private static final int MAX_PENDING_FILES = 10000;
+
+  private final DbxClientV2 client;
+
+  private final DbxClientV2 longpollClient;
+
+  private final DropboxRateLimiter rateLimiter;
+
+  private final DropboxTagSolrService solrService;
+
+  private final String collectionName;
+
+  private final boolean enabled;
+
+  private final String folderPath;
+
+  private final Path cursorFile;
+
+  private final long longpollTimeout;
+
+  private final long retryInterval;
+
+  private final Map<String, String> pendingFiles = new ConcurrentHashMap<>();
+
+  private ScheduledExecutorService syncScheduler;
+
+  /**
+   * Create a new {@link DropboxSyncService}
+   *
+   * @param client          the {@link DbxClientV2}
+   * @param longpollClient  the {@link DbxClientV2} for longpolls, with a read timeout exceeding the longpoll timeout
+   * @param rateLimiter     the {@link DropboxRateLimiter} shared with the other requests to Dropbox
+   * @param solrService     the {@link DropboxTagSolrService}, lazy as this service is one of its {@link DropboxTagWriteListener}s
+   * @param collectionName  the collectionName
+   * @param enabled         whether the DropboxTags are synced
+   * @param folderPath      the Dropbox folder whose changes are followed, empty for the whole Dropbox
+   * @param cursorFile      the file the cursor is saved in
+   * @param longpollTimeout the time in seconds a longpoll waits for changes, between 30 and 480
+   * @param retryInterval   the time in seconds before the sync is resumed after a failure
+   */
+  @Autowired
+  public DropboxSyncService(DbxClientV2 client,
+                            @Qualifier("dropboxLongpollClient") DbxClientV2 longpollClient,
+                            DropboxRateLimiter rateLimiter,
+                            @Lazy DropboxTagSolrService solrService,
+                            @Value("${solr.tag.collection}") String collectionName,
+                            @Value("${dropbox.sync.enabled}") boolean enabled,
+                            @Value("${dropbox.sync.path}") String folderPath,
+                            @Value("${dropbox.sync.cursorFile}") String cursorFile,
+                            @Value("${dropbox.sync.longpollTimeout}") long longpollTimeout,
+                            @Value("${dropbox.sync.retryInterval}") long retryInterval) {
+    Assert.notNull(client, "DbxClientV2 must not be null");
+    Assert.notNull(longpollClient, "longpollClient must not be null");
+    Assert.notNull(rateLimiter, "DropboxRateLimiter must not be null");
+    Assert.notNull(solrService, "DropboxTagSolrService must not be null");
+    Assert.hasText(cursorFile, "cursorFile must not be empty");
+    Assert.isTrue(longpollTimeout >= 30 && longpollTimeout <= 480, "longpollTimeout must be between 30 and 480 seconds");
+    Assert.isTrue(retryInterval > 0, "retryInterval must be positive");
+    this.client = client;
+    this.longpollClient = longpollClient;
+    this.rateLimiter = rateLimiter;
+    this.solrService = solrService;
+    this.collectionName = collectionName;
+    this.enabled = enabled;
+    this.folderPath = null == folderPath ? "" : folderPath.trim();
+    this.cursorFile = Paths.get(cursorFile);
+    this.longpollTimeout = longpollTimeout;
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * Start the sync in the background, so the startup does not depend on Dropbox or Solr being available
+   */
+  @PostConstruct
+  public void init() {
+    if (enabled) {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("dropbox-sync-");
+      // a longpoll cannot be interrupted and must not delay the shutdown
+      threadFactory.setDaemon(true);
+      syncScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+      syncScheduler.scheduleWithFixedDelay(this::syncQuietly, 0, retryInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void preDestroy() {
+    if (null != syncScheduler) {
+      syncScheduler.shutdownNow();
+    }
+  }
+
+  @Override
+  public void onWrite(String collectionName, DropboxTag previous, DropboxTag current) {
+    if (!enabled || !this.collectionName.equals(collectionName)) {
+      return;
+    }
+    if (null == current) {
+      pendingFiles.remove(previous.id);
+    } else if (null == current.rev && null != current.path) {
+      addPendingFile(current.id, current.path);
+    }
+  }
+
+  @Override
+  public void onUpdate(String collectionName, String id, DropboxTag changes, Collection<String> addedTags, Collection<String> removedTags) {
+    if (enabled && this.collectionName.equals(collectionName) && null == changes.rev && null != changes.path) {
+      addPendingFile(id, changes.path);
+    }
+  }
+
+  /**
+   * Follow the changes until the thread is interrupted, a failure ends the sync until the next run of the scheduler
+   */
+  private void syncQuietly() {
+    try {
+      String cursor = readCursor();
+      if (null == cursor) {
+        cursor = scan();
+      }
+      while (!Thread.currentThread().isInterrupted()) {
+        cursor = syncChanges(cursor);
+      }
+    } catch (ListFolderContinueErrorException e) {
+      resetCursorIf(e.errorValue.isReset(), e);
+    } catch (ListFolderLongpollErrorException e) {
+      resetCursorIf(e.errorValue == ListFolderLongpollError.RESET, e);
+    } catch (InterruptedException | InterruptedIOException e) {
+      Thread.currentThread().interrupt();
+    } catch (DbxException | IOException | RuntimeException e) {
+      log.warn("Dropbox sync failed, resuming in [{}] seconds: [{}]", retryInterval, e.getMessage());
+    }
+  }
+
+  /**
+   * List the folder in full, apply every page and save the cursor after it
+   *
+   * @return the cursor following the listing
+   * @throws DbxException if a request to Dropbox fails
+   * @throws IOException  if the cursor cannot be saved
+   */
+  String scan() throws DbxException, IOException {
+    log.info("Listing Dropbox folder [{}] in full", folderPath);
+    ListFolderResult result = rateLimiter.call("listing of " + folderPath, () -> client.files().listFolderBuilder(folderPath)
+        .withRecursive(true)
+        .start());
+    apply(result.getEntries());
+    writeCursor(result.getCursor());
+    while (result.getHasMore()) {
+      result = listFolderContinue(result.getCursor());
+      apply(result.getEntries());
+      writeCursor(result.getCursor());
+    }
+    return result.getCursor();
+  }
+
+  /**
+   * Resolve the pending file metadata, wait for changes with a longpoll and apply them page by page
+   *
+   * @param cursor the current cursor
+   * @return the cursor following the changes
+   * @throws DbxException         if a request to Dropbox fails
+   * @throws IOException          if the cursor cannot be saved
+   * @throws InterruptedException if the thread is interrupted during a backoff
+   */
+  String syncChanges(String cursor) throws DbxException, IOException, InterruptedException {
+    resolvePendingFiles();
+    String longpollCursor = cursor;
+    // the longpoll waits on Dropbox for minutes and must not take a concurrent request from the downloads meanwhile
+    ListFolderLongpollResult longpoll = rateLimiter.callOutsideLimit("longpoll of " + folderPath,
+        () -> longpollClient.files().listFolderLongpoll(longpollCursor, longpollTimeout));
+    if (longpoll.getChanges()) {
+      ListFolderResult result;
+      do {
+        result = listFolderContinue(cursor);
+        apply(result.getEntries());
+        cursor = result.getCursor();
+        writeCursor(cursor);
+      } while (result.getHasMore());
+    }
+    if (null != longpoll.getBackoff()) {
+      TimeUnit.SECONDS.sleep(longpoll.getBackoff());
+    }
+    return cursor;
+  }
+
+  private ListFolderResult listFolderContinue(String cursor) throws DbxException, InterruptedIOException {
+    return rateLimiter.call("listing of " + folderPath, () -> client.files().listFolderContinue(cursor));
+  }
+
+  /**
+   * Apply a page of changes to the DropboxTags of the changed files: renames replace path and name, files with
+   * another rev than indexed record their metadata and deletions of files or folders delete the DropboxTags.
+   * Only the last change of a path in the page counts, as the entries of a page are in order.
+   *
+   * @param entries the changed entries
+   */
+  void apply(List<Metadata> entries) {
+    Map<String, Metadata> latest = new LinkedHashMap<>();
+    entries.forEach(entry -> latest.put(entry.getPathLower(), entry));
+    Map<String, FileMetadata> filesById = new HashMap<>();
+    Map<String, FileMetadata> filesByPath = new HashMap<>();
+    List<String> deletedPaths = new ArrayList<>();
+    for (Metadata entry : latest.values()) {
+      if (entry instanceof FileMetadata) {
+        FileMetadata file = (FileMetadata) entry;
+        filesById.put(file.getId(), file);
+        filesByPath.put(file.getPathLower(), file);
+      } else if (entry instanceof DeletedMetadata) {
+        deletedPaths.add(entry.getPathLower());
+      }
+    }
+    if (filesById.isEmpty() && deletedPaths.isEmpty()) {
+      return;
+    }
+
+    Map<String, DropboxTag> dropboxTags = findDropboxTags(filesById.values(), latest, deletedPaths);
+    List<DropboxTag> changes = new ArrayList<>();
+    List<DropboxTag> deletions = new ArrayList<>();
+    for (DropboxTag dropboxTag : dropboxTags.values()) {
+      String path = null == dropboxTag.path ? null : dropboxTag.path.toLowerCase(Locale.ROOT);
+      FileMetadata file = null == dropboxTag.fileId ? null : filesById.get(dropboxTag.fileId);
+      if (null != file) {
+        if (!file.getPathDisplay().equals(dropboxTag.path)) {
+          changes.add(DropboxConnectionService.fileMetadataChange(dropboxTag.id, renamedName(dropboxTag, file), file.getPathDisplay(), file));
+        } else if (!file.getRev().equals(dropboxTag.rev)) {
+          changes.add(DropboxConnectionService.fileMetadataChange(dropboxTag.id, null, null, file));
+        }
+      } else if (null != path && filesByPath.containsKey(path)) {
+        file = filesByPath.get(path);
+        if (!file.getId().equals(dropboxTag.fileId) || !file.getRev().equals(dropboxTag.rev)) {
+          changes.add(DropboxConnectionService.fileMetadataChange(dropboxTag.id, null, null, file));
+        }
+      } else if (null != path && isDeleted(path, deletedPaths)) {
+        deletions.add(dropboxTag);
+      }
+    }
+    if (!changes.isEmpty() || !deletions.isEmpty()) {
+      log.info("Dropbox sync updates [{}] and deletes [{}] DropboxTags", changes.size(), deletions.size());
+      solrService.syncDropboxTags(changes, deletions);
+    }
+  }
+
+  /**
+   * Find the DropboxTags of changed files by file id and by path and of deleted files and folders by path,
+   * in chunks that keep the Solr queries short
+   *
+   * @param files        the changed files
+   * @param latest       the last change of every path
+   * @param deletedPaths the lower case paths of the deleted files and folders
+   * @return the {@link DropboxTag}s by id
+   */
+  private Map<String, DropboxTag> findDropboxTags(Collection<FileMetadata> files, Map<String, Metadata> latest, List<String> deletedPaths) {
+    Map<String, DropboxTag> dropboxTags = new LinkedHashMap<>();
+    List<FileMetadata> fileList = new ArrayList<>(files);
+    for (int i = 0; i < fileList.size(); i += LOOKUP_CHUNK_SIZE) {
+      List<FileMetadata> chunk = fileList.subList(i, Math.min(i + LOOKUP_CHUNK_SIZE, fileList.size()));
+      List<String> fileIds = new ArrayList<>();
+      List<String> paths = new ArrayList<>();
+      for (FileMetadata file : chunk) {
+        fileIds.add(file.getId());
+        paths.add(file.getPathDisplay());
+      }
+      solrService.findAllByFileIdsOrPaths(fileIds, paths, new ArrayList<>())
+          .forEach(dropboxTag -> dropboxTags.put(dropboxTag.id, dropboxTag));
+    }
+    for (int i = 0; i < deletedPaths.size(); i += LOOKUP_CHUNK_SIZE) {
+      List<String> paths = new ArrayList<>();
+      for (String deletedPath : deletedPaths.subList(i, Math.min(i + LOOKUP_CHUNK_SIZE, deletedPaths.size()))) {
+        paths.add(deletedPath);
+        String pathDisplay = latest.get(deletedPath).getPathDisplay();
+        if (null != pathDisplay && !pathDisplay.equals(deletedPath)) {
+          paths.add(pathDisplay);
+        }
+      }
+      solrService.findAllByFileIdsOrPaths(new ArrayList<>(), paths, paths)
+          .forEach(dropboxTag -> dropboxTags.put(dropboxTag.id, dropboxTag));
+    }
+    return dropboxTags;
+  }
+
+  /**
+   * Record the file metadata of the DropboxTags written since the last longpoll, a path that is no file is skipped.
+   * A DropboxTag stays pending until its change is applied, so the files resolved before a failing request are still
+   * recorded and the others are resolved with the next longpoll.
+   *
+   * @throws DbxException           if a request to Dropbox fails
+   * @throws InterruptedIOException if the thread is interrupted while waiting for the rate limiter
+   */
+  private void resolvePendingFiles() throws DbxException, InterruptedIOException {
+    List<DropboxTag> changes = new ArrayList<>();
+    Map<String, String> resolved = new HashMap<>();
+    try {
+      for (Map.Entry<String, String> pendingFile : new ArrayList<>(pendingFiles.entrySet())) {
+        String id = pendingFile.getKey();
+        String path = pendingFile.getValue();
+        try {
+          Metadata metadata = rateLimiter.call("metadata of " + path, () -> client.files().getMetadata(path));
+          if (metadata instanceof FileMetadata) {
+            changes.add(DropboxConnectionService.fileMetadataChange(id, null, null, (FileMetadata) metadata));
+          }
+        } catch (GetMetadataErrorException e) {
+          log.debug("No file metadata for DropboxTag [{}], path [{}] not found in Dropbox", id, path);
+        }
+        resolved.put(id, path);
+      }
+    } finally {
+      if (!changes.isEmpty()) {
+        solrService.syncDropboxTags(changes, new ArrayList<>());
+      }
+      // a DropboxTag written again meanwhile has another path and stays pending
+      resolved.forEach(pendingFiles::remove);
+    }
+  }
+
+  private void addPendingFile(String id, String path) {
+    if (pendingFiles.size() < MAX_PENDING_FILES) {
+      pendingFiles.put(id, path);
+    }
+  }
+
+  /**
+   * Return the name of a renamed file, the name of a DropboxTag is only replaced if it was the old file name
+   *
+   * @param dropboxTag the {@link DropboxTag}
+   * @param file       the renamed file
+   * @return the new name or null to leave the name unchanged
+   */
+  private static String renamedName(DropboxTag dropboxTag, FileMetadata file) {
+    if (null == dropboxTag.path || null == dropboxTag.name) {
+      return null;
+    }
+    String oldName = dropboxTag.path.substring(dropboxTag.path.lastIndexOf('/') + 1);
+    return oldName.equals(dropboxTag.name) && !file.getName().equals(dropboxTag.name) ? file.getName() : null;
+  }
+
+  private static boolean isDeleted(String path, List<String> deletedPaths) {
+    return deletedPaths.stream().anyMatch(deletedPath -> path.equals(deletedPath) || path.startsWith(deletedPath + "/"));
+  }
+
+  private void resetCursorIf(boolean reset, DbxException e) {
+    if (reset) {
+      log.warn("Dropbox reset the sync cursor, the folder is listed in full again");
+      try {
+        Files.deleteIfExists(cursorFile);
+      } catch (IOException ex) {
+        log.error("Unable to delete the sync cursor [{}]", cursorFile, ex);
+      }
+    } else {
+      log.warn("Dropbox sync failed, resuming in [{}] seconds: [{}]", retryInterval, e.getMessage());
+    }
+  }
+
+  /**
+   * Read the saved cursor, a cursor of another folder is ignored
+   *
+   * @return the cursor or null if there is none
+   * @throws IOException if the file cannot be read
+   */
+  String readCursor() throws IOException {
+    if (!Files.exists(cursorFile)) {
+      return null;
+    }
+    List<String> lines = Files.readAllLines(cursorFile, StandardCharsets.UTF_8);
+    if (lines.size() < 2 || !folderPath.equals(lines.get(0)) || lines.get(1).isEmpty()) {
+      return null;
+    }
+    return lines.get(1);
+  }
+
+  /**
+   * Save the cursor with the folder it belongs to, the file is replaced atomically
+   *
+   * @param cursor the cursor
+   * @throws IOException if the file cannot be written
+   */
+  private void writeCursor(String cursor) throws IOException {
+    Path directory = cursorFile.toAbsolutePath().getParent();
+    if (null != directory) {
+      Files.createDirectories(directory);
+    }
+    Path temporaryFile = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+    Files.write(temporaryFile, (folderPath + "\n" + cursor + "\n").getBytes(StandardCharsets.UTF_8));
+    Files.move(temporaryFile, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
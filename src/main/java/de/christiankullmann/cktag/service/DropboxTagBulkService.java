@@ -0,0 +1,151 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Adds large numbers of {@link DropboxTag}s to Solr.
+ * The request body is parsed incrementally and sent to Solr in batches with one commit per batch.
+ * Bulk ingest only inserts, every entry gets a new id, so sending the same body twice adds the entries twice.
+ */
+@Service
+@Slf4j
+public class DropboxTagBulkService {
+
+  private final SolrClientService clientService;
+
+  private final ObjectMapper objectMapper;
+
+  private final String collectionName;
+
+  private final int batchSize;
+
+  private final List<DropboxTagWriteListener> writeListeners;
+
+  /**
+   * Create a new {@link DropboxTagBulkService}
+   *
+   * @param clientService  the {@link SolrClientService}
+   * @param objectMapper   the {@link ObjectMapper} reading the {@link DropboxTag}s
+   * @param collectionName the collectionName
+   * @param batchSize      the maximum number of {@link DropboxTag}s sent to Solr with one request
+   * @param writeListeners the {@link DropboxTagWriteListener}s notified after every accepted batch
+   */
+  @Autowired
+  public DropboxTagBulkService(SolrClientService clientService, ObjectMapper objectMapper,
+                               @Value("${solr.tag.collection}") String collectionName,
+                               @Value("${solr.bulk.batchSize}") int batchSize,
+                               List<DropboxTagWriteListener> writeListeners) {
+    Assert.notNull(clientService, "SolrClientService must not be null");
+    Assert.notNull(objectMapper, "ObjectMapper must not be null");
+    Assert.isTrue(batchSize > 0, "batchSize must be positive");
+    Assert.notNull(writeListeners, "writeListeners must not be null");
+    this.clientService = clientService;
+    this.objectMapper = objectMapper;
+    this.collectionName = collectionName;
+    this.batchSize = batchSize;
+    this.writeListeners = writeListeners;
+  }
+
+  /**
+   * Add all {@link DropboxTag}s of a JSON array or of newline delimited JSON objects to Solr.
+   * Like {@link DropboxTagSolrService#addDropboxTagEntry(DropboxTag)} every entry gets a new random id.
+   *
+   * @param inputStream the request body
+   * @return the {@link BulkIngestResult} with the id or the error of every entry
+   */
+  public BulkIngestResult addDropboxTagEntries(InputStream inputStream) {
+    BulkIngestResult result = new BulkIngestResult();
+    List<DropboxTag> batch = new ArrayList<>(batchSize);
+    List<Integer> batchIndexes = new ArrayList<>(batchSize);
+    int index = 0;
+    try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+      JsonToken token = parser.nextToken();
+      boolean array = token == JsonToken.START_ARRAY;
+      if (array) {
+        token = parser.nextToken();
+      }
+      while (null != token && !(array && token == JsonToken.END_ARRAY)) {
+        DropboxTag dropboxTag = parser.readValueAs(DropboxTag.class);
+        if (null == dropboxTag || StringUtils.isEmpty(dropboxTag.name) || StringUtils.isEmpty(dropboxTag.path)) {
+          result.failed(index, null, "Entity is missing either name or path.");
+        } else {
+          dropboxTag.id = UUID.randomUUID().toString();
+          dropboxTag.version = null;
+          batch.add(dropboxTag);
+          batchIndexes.add(index);
+          if (batch.size() == batchSize) {
+            commitBatch(batch, batchIndexes, result);
+          }
+        }
+        index++;
+        token = parser.nextToken();
+      }
+    } catch (JsonProcessingException e) {
+      log.warn("Bulk ingest aborted after [{}] entries", index, e);
+      result.aborted("Invalid JSON after entry [" + index + "]: " + e.getOriginalMessage());
+    } catch (IOException e) {
+      log.warn("Bulk ingest aborted after [{}] entries", index, e);
+      result.aborted("Unable to read the request body after entry [" + index + "]");
+    }
+    if (!batch.isEmpty()) {
+      commitBatch(batch, batchIndexes, result);
+    }
+    result.getItems().sort(Comparator.comparingInt(BulkIngestResult.Item::getIndex));
+    log.debug("Bulk ingest finished, succeeded [{}], failed [{}]", result.getSucceeded(), result.getFailed());
+    return result;
+  }
+
+  /**
+   * Send a batch to Solr, record its outcome and clear it.
+   * The listeners are notified of every entry as added, a failing listener does not skip the other entries.
+   *
+   * @param batch        the {@link DropboxTag}s
+   * @param batchIndexes the positions of the {@link DropboxTag}s in the request body
+   * @param result       the {@link BulkIngestResult}
+   */
+  private void commitBatch(List<DropboxTag> batch, List<Integer> batchIndexes, BulkIngestResult result) {
+    try {
+      clientService.commitDropboxTags(collectionName, batch);
+      for (int i = 0; i < batch.size(); i++) {
+        result.succeeded(batchIndexes.get(i), batch.get(i).id);
+      }
+    } catch (RuntimeException e) {
+      log.error("Bulk ingest of [{}] DropboxTags failed", batch.size(), e);
+      for (int i = 0; i < batch.size(); i++) {
+        result.failed(batchIndexes.get(i), batch.get(i).id, "Solr rejected the batch: " + e.getMessage());
+      }
+      batch.clear();
+      batchIndexes.clear();
+      return;
+    }
+    // every entry got a new id, so it has been added and there is no previous state to report
+    for (DropboxTagWriteListener writeListener : writeListeners) {
+      for (DropboxTag dropboxTag : batch) {
+        try {
+          writeListener.onWrite(collectionName, null, dropboxTag);
+        } catch (RuntimeException e) {
+          log.warn("DropboxTagWriteListener [{}] failed", writeListener.getClass().getSimpleName(), e);
+        }
+      }
+    }
+    batch.clear();
+    batchIndexes.clear();
+  }
+}
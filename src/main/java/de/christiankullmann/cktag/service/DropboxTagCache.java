@@ -0,0 +1,74 @@
+package de.christiankullmann.cktag.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of {@link DropboxTag}s keyed by id in front of Solr's real-time get.
+ * <p>
+ * The writes of this service update or invalidate their entries, the time to live bounds how long a change made
+ * directly in Solr stays unnoticed. {@link DropboxTag}s are mutable, so copies are stored and handed out.
+ */
+@Component
+public class DropboxTagCache {
+
+  private final Cache<String, DropboxTag> cache;
+
+  /**
+   * Create a new {@link DropboxTagCache}
+   *
+   * @param maximumSize the maximum number of cached entries
+   * @param ttlSeconds  the time to live in seconds of an entry
+   */
+  @Autowired
+  public DropboxTagCache(@Value("${solr.entry.cache.maxSize}") long maximumSize,
+                         @Value("${solr.entry.cache.ttl}") long ttlSeconds) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Return a copy of the cached {@link DropboxTag}
+   *
+   * @param id the id of the {@link DropboxTag}
+   * @return the {@link DropboxTag} or null
+   */
+  public DropboxTag getIfPresent(String id) {
+    DropboxTag dropboxTag = cache.getIfPresent(id);
+    return null == dropboxTag ? null : copy(dropboxTag);
+  }
+
+  /**
+   * Store a copy of the {@link DropboxTag} under its id
+   *
+   * @param dropboxTag the {@link DropboxTag}
+   */
+  public void put(DropboxTag dropboxTag) {
+    cache.put(dropboxTag.id, copy(dropboxTag));
+  }
+
+  /**
+   * Remove the {@link DropboxTag} with the id
+   *
+   * @param id the id of the {@link DropboxTag}
+   */
+  public void invalidate(String id) {
+    cache.invalidate(id);
+  }
+
+  private static DropboxTag copy(DropboxTag dropboxTag) {
+    DropboxTag copy = new DropboxTag(dropboxTag.id, dropboxTag.name, dropboxTag.path, null == dropboxTag.tags ? null : new ArrayList<>(dropboxTag.tags));
+    copy.version = dropboxTag.version;
+    copy.copyFileMetadata(dropboxTag);
+    return copy;
+  }
+}
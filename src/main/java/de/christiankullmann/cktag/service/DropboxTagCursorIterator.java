@@ -0,0 +1,54 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.apache.solr.common.params.CursorMarkParams;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * Walks all {@link DropboxTag}s of a query page by page with Solr's cursorMark.
+ * Only the current page is held in memory, the next page is requested once it has been consumed.
+ */
+class DropboxTagCursorIterator implements Iterator<DropboxTag> {
+
+  private final BiFunction<String, Integer, DropboxTagPage> pageLoader;
+
+  private final int pageSize;
+
+  private DropboxTagPage page;
+
+  private Iterator<DropboxTag> pageIterator;
+
+  /**
+   * Create a new {@link DropboxTagCursorIterator}
+   *
+   * @param pageLoader loads the page for a cursorMark and a number of rows
+   * @param pageSize   the number of rows per page
+   */
+  DropboxTagCursorIterator(BiFunction<String, Integer, DropboxTagPage> pageLoader, int pageSize) {
+    this.pageLoader = pageLoader;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (null == pageIterator || !pageIterator.hasNext()) {
+      if (null != page && page.isLast()) {
+        return false;
+      }
+      page = pageLoader.apply(null == page ? CursorMarkParams.CURSOR_MARK_START : page.getNextCursorMark(), pageSize);
+      pageIterator = page.getDropboxTags().iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public DropboxTag next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return pageIterator.next();
+  }
+}
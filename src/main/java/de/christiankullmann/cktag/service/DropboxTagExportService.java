@@ -0,0 +1,149 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import de.christiankullmann.cktag.exception.UnsupportedFormatException;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exports all {@link DropboxTag}s matching a tag query as NDJSON or CSV.
+ * The entries are read from Solr page by page with a cursorMark and written straight to the response, so the memory
+ * needed does not depend on the size of the result set.
+ */
+@Service
+@Slf4j
+public class DropboxTagExportService {
+
+  public static final String FORMAT_NDJSON = "ndjson";
+
+  public static final String FORMAT_CSV = "csv";
+
+  private static final String EXPORT_FILE_NAME = "cktag-export.";
+
+  private final DropboxTagSolrService dropboxTagSolrService;
+
+  private final ObjectMapper objectMapper;
+
+  /**
+   * Create a new {@link DropboxTagExportService}
+   *
+   * @param dropboxTagSolrService the {@link DropboxTagSolrService}
+   * @param objectMapper          the {@link ObjectMapper} writing the NDJSON lines
+   */
+  @Autowired
+  public DropboxTagExportService(DropboxTagSolrService dropboxTagSolrService, ObjectMapper objectMapper) {
+    Assert.notNull(dropboxTagSolrService, "dropboxTagSolrService must not be null");
+    Assert.notNull(objectMapper, "objectMapper must not be null");
+    this.dropboxTagSolrService = dropboxTagSolrService;
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * Export all DropboxTags that correspond with the provided tags-String
+   *
+   * @param tags   the tags that are to be looked for
+   * @param format {@link #FORMAT_NDJSON} or {@link #FORMAT_CSV}
+   * @return a {@link ResponseEntity} streaming the export
+   * @throws UnsupportedFormatException if the format is unknown
+   */
+  public ResponseEntity<StreamingResponseBody> exportByTags(String tags, String format) {
+    Iterable<DropboxTag> dropboxTags = dropboxTagSolrService.iterateAllByTags(tags);
+    StreamingResponseBody body;
+    MediaType mediaType;
+    if (FORMAT_NDJSON.equalsIgnoreCase(format)) {
+      body = outputStream -> writeNdjson(dropboxTags, outputStream);
+      mediaType = MediaType.parseMediaType("application/x-ndjson");
+    } else if (FORMAT_CSV.equalsIgnoreCase(format)) {
+      body = outputStream -> writeCsv(dropboxTags, outputStream);
+      mediaType = MediaType.parseMediaType("text/csv;charset=UTF-8");
+    } else {
+      throw new UnsupportedFormatException(format);
+    }
+    return ResponseEntity.ok()
+        .contentType(mediaType)
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + EXPORT_FILE_NAME + format.toLowerCase() + "\"")
+        .body(body);
+  }
+
+  /**
+   * Write every {@link DropboxTag} as one JSON object per line
+   *
+   * @param dropboxTags  the {@link DropboxTag}s
+   * @param outputStream the {@link OutputStream}, it is flushed but not closed
+   * @throws IOException if writing to the outputStream fails
+   */
+  void writeNdjson(Iterable<DropboxTag> dropboxTags, OutputStream outputStream) throws IOException {
+    ObjectWriter writer = objectMapper.writerFor(DropboxTag.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    long count = 0;
+    try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.setRootValueSeparator(null);
+      for (DropboxTag dropboxTag : dropboxTags) {
+        writer.writeValue(generator, dropboxTag);
+        generator.writeRaw('\n');
+        count++;
+      }
+    }
+    outputStream.flush();
+    log.debug("Exported [{}] DropboxTags as NDJSON", count);
+  }
+
+  /**
+   * Write every {@link DropboxTag} as one line of RFC 4180 CSV after a header line, the tags are joined with commas
+   *
+   * @param dropboxTags  the {@link DropboxTag}s
+   * @param outputStream the {@link OutputStream}, it is flushed but not closed
+   * @throws IOException if writing to the outputStream fails
+   */
+  void writeCsv(Iterable<DropboxTag> dropboxTags, OutputStream outputStream) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+    writer.write("id,name,path,tags\r\n");
+    long count = 0;
+    for (DropboxTag dropboxTag : dropboxTags) {
+      writer.write(csvField(dropboxTag.id));
+      writer.write(',');
+      writer.write(csvField(dropboxTag.name));
+      writer.write(',');
+      writer.write(csvField(dropboxTag.path));
+      writer.write(',');
+      writer.write(csvField(null == dropboxTag.tags ? null : String.join(",", dropboxTag.tags)));
+      writer.write("\r\n");
+      count++;
+    }
+    writer.flush();
+    log.debug("Exported [{}] DropboxTags as CSV", count);
+  }
+
+  /**
+   * Quote a CSV field if it contains a separator, a quote or a line break
+   *
+   * @param value the value of the field, may be null
+   * @return the field
+   */
+  private static String csvField(String value) {
+    if (null == value) {
+      return "";
+    }
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+}
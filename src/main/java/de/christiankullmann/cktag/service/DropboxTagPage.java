@@ -0,0 +1,30 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * One page of {@link DropboxTag}s read from Solr with a cursorMark
+ */
+@Getter
+@AllArgsConstructor
+class DropboxTagPage {
+
+  private final List<DropboxTag> dropboxTags;
+
+  private final String cursorMark;
+
+  private final String nextCursorMark;
+
+  /**
+   * Solr returns the cursorMark of the request as the nextCursorMark once the result set is exhausted
+   *
+   * @return true if there are no more {@link DropboxTag}s after this page
+   */
+  boolean isLast() {
+    return null == nextCursorMark || nextCursorMark.equals(cursorMark);
+  }
+}
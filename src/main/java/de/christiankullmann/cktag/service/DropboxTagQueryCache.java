@@ -0,0 +1,112 @@
+package de.christiankullmann.cktag.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A cache of the {@link DropboxTag}s found by tag searches, keyed by the normalized query.
+ * <p>
+ * Every result remembers the write generation of the {@link SolrClientService} it has been read in.
+ * Once a write has advanced the generation the result is stale and dropped on its next lookup.
+ * The cache is bounded by the overall number of cached {@link DropboxTag}s, not by the number of queries.
+ */
+@Component
+public class DropboxTagQueryCache {
+
+  private final Cache<QueryKey, CachedResult> cache;
+
+  /**
+   * Create a new {@link DropboxTagQueryCache}
+   *
+   * @param maximumDropboxTags the maximum number of {@link DropboxTag}s in all cached results
+   */
+  @Autowired
+  public DropboxTagQueryCache(@Value("${solr.query.cache.maxDropboxTags}") long maximumDropboxTags) {
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(maximumDropboxTags)
+        .weigher((QueryKey key, CachedResult result) -> result.dropboxTags.size() + 1)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Return the cached result of a query if it has been read in the current write generation
+   *
+   * @param tags       the tags of the query
+   * @param start      the offset of the query
+   * @param rows       the number of rows of the query
+   * @param generation the current write generation
+   * @return the unmodifiable {@link List} of {@link DropboxTag}s or null
+   */
+  public List<DropboxTag> getIfPresent(String tags, String start, String rows, long generation) {
+    QueryKey key = new QueryKey(normalize(tags), start, rows);
+    CachedResult result = cache.getIfPresent(key);
+    if (null == result) {
+      return null;
+    }
+    if (result.generation != generation) {
+      cache.asMap().remove(key, result);
+      return null;
+    }
+    return result.dropboxTags;
+  }
+
+  /**
+   * Store the result of a query
+   *
+   * @param tags        the tags of the query
+   * @param start       the offset of the query
+   * @param rows        the number of rows of the query
+   * @param generation  the write generation read before the query has been sent
+   * @param dropboxTags the {@link DropboxTag}s found
+   * @return the unmodifiable {@link List} of {@link DropboxTag}s
+   */
+  public List<DropboxTag> put(String tags, String start, String rows, long generation, List<DropboxTag> dropboxTags) {
+    List<DropboxTag> result = Collections.unmodifiableList(dropboxTags);
+    cache.put(new QueryKey(normalize(tags), start, rows), new CachedResult(generation, result));
+    return result;
+  }
+
+  /**
+   * Return the hit and miss statistics of the cache
+   *
+   * @return the {@link CacheStats}
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Queries differing only in whitespace return the same result
+   *
+   * @param tags the tags of the query
+   * @return the trimmed tags with single spaces
+   */
+  private static String normalize(String tags) {
+    return tags.trim().replaceAll("\\s+", " ");
+  }
+
+  @AllArgsConstructor
+  @EqualsAndHashCode
+  private static class QueryKey {
+    private final String tags;
+    private final String start;
+    private final String rows;
+  }
+
+  @AllArgsConstructor
+  private static class CachedResult {
+    private final long generation;
+    private final List<DropboxTag> dropboxTags;
+  }
+}
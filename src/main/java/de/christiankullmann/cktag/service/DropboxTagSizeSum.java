@@ -0,0 +1,22 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The overall size of the files of {@link de.christiankullmann.cktag.solr.DropboxTag}s as indexed in Solr
+ */
+@Getter
+@AllArgsConstructor
+public class DropboxTagSizeSum {
+
+  /**
+   * The sum of the indexed sizes in bytes
+   */
+  private final long size;
+
+  /**
+   * The number of DropboxTags whose size has not been captured yet
+   */
+  private final long unknown;
+}
@@ -4,18 +4,23 @@ import de.christiankullmann.cktag.controller.DropboxTagController;
 import de.christiankullmann.cktag.exception.DropboxTagNotFoundException;
 import de.christiankullmann.cktag.exception.IncompleteTagEntityException;
 import de.christiankullmann.cktag.exception.InternalServerException;
-import de.christiankullmann.cktag.exception.MultipleTagIdsException;
+import de.christiankullmann.cktag.exception.InvalidTagUpdateException;
+import de.christiankullmann.cktag.exception.VersionConflictException;
 import de.christiankullmann.cktag.solr.DropboxTag;
 import de.christiankullmann.cktag.solr.DropboxTagAssembler;
-import de.christiankullmann.cktag.util.ApiUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.MapSolrParams;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.hateoas.Link;
 import org.springframework.hateoas.Resource;
 import org.springframework.hateoas.Resources;
 import org.springframework.http.ResponseEntity;
@@ -34,31 +39,65 @@ import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
 @Slf4j
 public class DropboxTagSolrService {
 
+  /**
+   * Response header with the maximum time in milliseconds until a write is visible to searches
+   */
+  public static final String VISIBLE_WITHIN_HEADER = "X-Visible-Within";
+
+  /**
+   * The fields holding the metadata of the file, captured from Dropbox
+   */
+  private static final List<String> FILE_METADATA_FIELDS = Arrays.asList("file_id", "size", "rev", "content_hash", "server_modified", "crc32");
+
   private final String collectionName;
 
   private final SolrClientService clientService;
 
   private final DropboxTagAssembler assembler;
 
-  private final ApiUtils apiUtils;
+  private final DropboxTagCache entryCache;
+
+  private final DropboxTagQueryCache queryCache;
+
+  private final TagBitmapIndex bitmapIndex;
+
+  private final List<DropboxTagWriteListener> writeListeners;
+
+  private final int cursorPageSize;
 
   /**
    * Create a new {@link DropboxTagSolrService}
    *
    * @param clientService  the {@link SolrClientService}
    * @param assembler      the {@link DropboxTagAssembler}
-   * @param apiUtils       an {@link ApiUtils}
+   * @param entryCache     the {@link DropboxTagCache} for lookups by id
+   * @param queryCache     the {@link DropboxTagQueryCache} for tag searches
+   * @param bitmapIndex    the {@link TagBitmapIndex} answering tag searches in memory if it is enabled
+   * @param writeListeners the {@link DropboxTagWriteListener}s notified after every write
    * @param collectionName the collectionName
+   * @param cursorPageSize the number of rows per page when internal callers walk a whole result set
    */
   @Autowired
-  public DropboxTagSolrService(SolrClientService clientService, DropboxTagAssembler assembler, ApiUtils apiUtils, @Value("${solr.tag.collection}") String collectionName) {
+  public DropboxTagSolrService(SolrClientService clientService, DropboxTagAssembler assembler,
+                               DropboxTagCache entryCache, DropboxTagQueryCache queryCache, TagBitmapIndex bitmapIndex,
+                               List<DropboxTagWriteListener> writeListeners,
+                               @Value("${solr.tag.collection}") String collectionName,
+                               @Value("${solr.cursor.pageSize}") int cursorPageSize) {
     Assert.notNull(clientService, "SolrClientService must not be null");
     Assert.notNull(assembler, "DropboxTagAssembler must not be null");
-    Assert.notNull(apiUtils, "ApiUtils must not be null");
+    Assert.notNull(entryCache, "DropboxTagCache must not be null");
+    Assert.notNull(queryCache, "DropboxTagQueryCache must not be null");
+    Assert.notNull(bitmapIndex, "TagBitmapIndex must not be null");
+    Assert.notNull(writeListeners, "writeListeners must not be null");
+    Assert.isTrue(cursorPageSize > 0, "cursorPageSize must be positive");
     this.clientService = clientService;
     this.assembler = assembler;
-    this.apiUtils = apiUtils;
+    this.entryCache = entryCache;
+    this.queryCache = queryCache;
+    this.bitmapIndex = bitmapIndex;
+    this.writeListeners = writeListeners;
     this.collectionName = collectionName;
+    this.cursorPageSize = cursorPageSize;
   }
 
   /**
@@ -69,20 +108,58 @@ public class DropboxTagSolrService {
    */
   public Resources<Resource<DropboxTag>> getAllByTags(String tags, String start, String rows) {
     log.debug("Calling getAllByTags with tags [{}], start [{}], rows [{}]", tags, start, rows);
-    final Map<String, String> queryParamMap = new HashMap<>();
-    queryParamMap.put("q", "tags:(" + tags + ")");
-    queryParamMap.put("fl", "id, name, path, tags");
-    queryParamMap.put("sort", "id asc");
-    queryParamMap.put("start", start);
-    queryParamMap.put("rows", rows);
-    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
-
-    List<Resource<DropboxTag>> result = querySolrServer(queryParams);
+    List<Resource<DropboxTag>> result = findAllByTags(tags, start, rows).stream()
+        .map(assembler::toResource)
+        .collect(Collectors.toList());
 
     return new Resources<>(result,
         linkTo(methodOn(DropboxTagController.class).getAllDropboxTagsResourcesByTags(tags, start, rows)).withSelfRel());
   }
 
+  /**
+   * Find and return one page of DropboxTag-Resources that correspond with the provided tags-String.
+   * Unlike offset paging the cost of a page does not grow with its depth.
+   * The next link carries the cursor of the following page and is left out on the last page.
+   *
+   * @param tags   the tags that are to be looked for
+   * @param cursor the opaque cursor of the page, <code>*</code> for the first page
+   * @param rows   the number of entries per page
+   * @return a {@link Resources} of {@link Resource} of {@link DropboxTag}
+   */
+  public Resources<Resource<DropboxTag>> getPageByTags(String tags, String cursor, String rows) {
+    log.debug("Calling getPageByTags with tags [{}], cursor [{}], rows [{}]", tags, cursor, rows);
+    DropboxTagPage page = queryPageByTags(tags, cursor, Integer.parseInt(rows));
+
+    List<Resource<DropboxTag>> result = page.getDropboxTags().stream()
+        .map(assembler::toResource)
+        .collect(Collectors.toList());
+
+    List<Link> links = new ArrayList<>();
+    links.add(linkTo(methodOn(DropboxTagController.class).getDropboxTagsResourcesByTagsWithCursor(tags, cursor, rows)).withSelfRel());
+    if (!page.isLast() && !result.isEmpty()) {
+      links.add(linkTo(methodOn(DropboxTagController.class).getDropboxTagsResourcesByTagsWithCursor(tags, page.getNextCursorMark(), rows)).withRel(Link.REL_NEXT));
+    }
+    return new Resources<>(result, links);
+  }
+
+  /**
+   * Return all DropboxTags that correspond with the provided tags-String.
+   * Every iteration walks the result set from the start in pages of {@link #cursorPageSize}, only one page is held in memory,
+   * unless the {@link #bitmapIndex} answers the query.
+   *
+   * @param tags the tags that are to be looked for
+   * @return an {@link Iterable} of {@link DropboxTag}
+   */
+  public Iterable<DropboxTag> iterateAllByTags(String tags) {
+    return () -> {
+      List<DropboxTag> indexed = bitmapIndex.findAllByTags(tags);
+      if (null != indexed) {
+        return indexed.iterator();
+      }
+      return new DropboxTagCursorIterator((cursorMark, rows) -> queryPageByTags(tags, cursorMark, rows), cursorPageSize);
+    };
+  }
+
   /**
    * Find and return all DropboxTag-Resources that correspond with the provided tags-String
    *
@@ -90,15 +167,7 @@ public class DropboxTagSolrService {
    * @return a {@link Resources} of {@link Resource} of {@link DropboxTag}
    */
   public List<DropboxTag> getAllByTagsAsList(String tags, String start, String rows) {
-    final Map<String, String> queryParamMap = new HashMap<>();
-    queryParamMap.put("q", "tags:(" + tags + ")");
-    queryParamMap.put("fl", "id, name, path, tags");
-    queryParamMap.put("sort", "id asc");
-    queryParamMap.put("start", start);
-    queryParamMap.put("rows", rows);
-    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
-
-    return querySolrServerAsDropboxTags(queryParams);
+    return findAllByTags(tags, start, rows);
   }
 
 
@@ -122,12 +191,16 @@ public class DropboxTagSolrService {
    */
   public ResponseEntity<?> addDropboxTagEntry(DropboxTag newDropboxTagItem) {
     newDropboxTagItem.id = UUID.randomUUID().toString();
+    newDropboxTagItem.version = null;
     final UpdateResponse response = clientService.commitDropboxTag(collectionName, newDropboxTagItem);
+    entryCache.put(newDropboxTagItem);
+    notifyWriteListeners(null, newDropboxTagItem);
 
     Resource<DropboxTag> resource = assembler.toResource(newDropboxTagItem);
     try {
       return ResponseEntity
           .created(new URI(resource.getId().expand().getHref()))
+          .header(VISIBLE_WITHIN_HEADER, Long.toString(clientService.getVisibleWithin()))
           .body(resource);
     } catch (URISyntaxException e) {
       throw new InternalServerException("A URISyntaxException occurred [{}]", e);
@@ -135,34 +208,69 @@ public class DropboxTagSolrService {
   }
 
   /**
-   * Update a {@link DropboxTag} entity in Solr
+   * Update a {@link DropboxTag} entity in Solr with an atomic update of the fields given.
+   * With a version the update only succeeds if the entity has not been changed since, without one it must exist.
+   * New tags are compared with the entity as it was before, so only that has to be read.
+   * The updated entity is read afterwards with Solr's real-time get.
    *
    * @param id         the id of the DropboxTag-Entity to be updated
-   * @param dropBoxTag the new entity
-   * @return a {@link ResponseEntity} conntaining the information about the item-update
-   * <p>
-   * TODO: Created might not be the correct response, as the item was already existing and has merely been updated
+   * @param dropBoxTag the fields to be replaced, null fields are left unchanged
+   * @return a {@link ResponseEntity} containing the updated entity with its new version
    */
   public ResponseEntity<?> patchUpdateDropboxTag(String id, DropboxTag dropBoxTag) {
-    DropboxTag existingEntry = findDropboxTagIfExists(id);
-
-    apiUtils.merge(existingEntry, dropBoxTag);
+    if ((null != dropBoxTag.name && dropBoxTag.name.isEmpty()) || (null != dropBoxTag.path && dropBoxTag.path.isEmpty())) {
+      throw new IncompleteTagEntityException(id, dropBoxTag.name, dropBoxTag.path);
+    }
+    if (null == dropBoxTag.name && null == dropBoxTag.path && null == dropBoxTag.tags) {
+      throw new InvalidTagUpdateException("No name, path or tags to update given.");
+    }
+    DropboxTag previous = null == dropBoxTag.tags ? null : findDropboxTagIfExists(id);
+    SolrInputDocument document = atomicUpdate(id, dropBoxTag.version);
+    setField(document, "name", dropBoxTag.name);
+    setField(document, "path", dropBoxTag.path);
+    setField(document, "tags", dropBoxTag.tags);
+    if (null != dropBoxTag.path) {
+      // the metadata belongs to the file at the old path, the new one is captured again
+      FILE_METADATA_FIELDS.forEach(field -> document.addField(field, Collections.singletonMap("set", null)));
+    }
 
-    if (existingEntry.name.length() > 0 && existingEntry.path.length() > 0) {
-      UpdateResponse response = clientService.commitDropboxTag(collectionName, dropBoxTag);
+    DropboxTag changes = new DropboxTag(id, dropBoxTag.name, dropBoxTag.path, dropBoxTag.tags);
+    changes.version = updateDropboxTags(Collections.singletonList(document), id).get(id);
+    if (null == previous) {
+      notifyUpdateListeners(id, changes, Collections.emptyList(), Collections.emptyList());
     } else {
-      throw new IncompleteTagEntityException(existingEntry.id, existingEntry.name, existingEntry.path);
-    }
-    Resource<DropboxTag> resource = assembler.toResource(existingEntry);
-    try {
-      return ResponseEntity
-          .created(new URI(resource.getId().expand().getHref()))
-          .body(resource);
-    } catch (URISyntaxException e) {
-      throw new InternalServerException("A URISyntaxException occurred [{}]", e);
+      notifyUpdateListeners(id, changes, previous.tags, dropBoxTag.tags);
     }
+
+    return ResponseEntity.ok()
+        .header(VISIBLE_WITHIN_HEADER, Long.toString(clientService.getVisibleWithin()))
+        .body(assembler.toResource(findDropboxTagIfExists(id)));
+  }
+
+  /**
+   * Add tags to and remove tags from one {@link DropboxTag} entity in Solr with an atomic update
+   *
+   * @param id        the id of the DropboxTag-Entity to be updated
+   * @param tagUpdate the tags to add and to remove and optionally the version the entity must still have
+   * @return a {@link ResponseEntity} containing the new version
+   */
+  public ResponseEntity<TagUpdateResult> updateTags(String id, TagUpdate tagUpdate) {
+    return updateTags(Collections.singletonList(id), tagUpdate, tagUpdate.getVersion());
   }
 
+  /**
+   * Add tags to and remove tags from many {@link DropboxTag} entities in Solr with one request of atomic updates.
+   * If one entity does not exist, the entities before it in the request have been updated nevertheless.
+   *
+   * @param tagUpdate the ids of the entities and the tags to add and to remove
+   * @return a {@link ResponseEntity} containing the new versions
+   */
+  public ResponseEntity<TagUpdateResult> updateTags(TagUpdate tagUpdate) {
+    if (null == tagUpdate.getIds() || tagUpdate.getIds().isEmpty()) {
+      throw new InvalidTagUpdateException("No ids given.");
+    }
+    return updateTags(tagUpdate.getIds(), tagUpdate, null);
+  }
 
   /**
    * Delete the DropboxTag entry on Solr for the provided id
@@ -178,49 +286,400 @@ public class DropboxTagSolrService {
     }
 
     UpdateResponse response = clientService.deleteDropboxTag(collectionName, id);
-    return ResponseEntity.ok().body("DropboxTag with id [" + id + "] has been deleted.");
+    entryCache.invalidate(id);
+    notifyWriteListeners(existingEntry, null);
+    return ResponseEntity.ok()
+        .header(VISIBLE_WITHIN_HEADER, Long.toString(clientService.getVisibleWithin()))
+        .body("DropboxTag with id [" + id + "] has been deleted.");
+
+  }
+
+  /**
+   * Sum up the indexed file sizes of all DropboxTags that correspond with the provided tags-String with one stats query,
+   * instead of asking Dropbox for the metadata of every file
+   *
+   * @param tags the tags that are to be looked for
+   * @return the {@link DropboxTagSizeSum}
+   */
+  public DropboxTagSizeSum sumSizesByTags(String tags) {
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put("q", "tags:(" + tags + ")");
+    queryParamMap.put("rows", "0");
+    queryParamMap.put("stats", "true");
+    queryParamMap.put("stats.field", "size");
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    final QueryResponse response = clientService.queryClient(collectionName, queryParams);
+    FieldStatsInfo stats = null == response.getFieldStatsInfo() ? null : response.getFieldStatsInfo().get("size");
+    if (null == stats) {
+      return new DropboxTagSizeSum(0, response.getResults().getNumFound());
+    }
+    long size = null == stats.getSum() ? 0 : ((Number) stats.getSum()).longValue();
+    long unknown = null == stats.getMissing() ? 0 : stats.getMissing();
+    return new DropboxTagSizeSum(size, unknown);
+  }
+
+  /**
+   * Find the DropboxTags of Dropbox files by their file ids, by their paths and by the paths of their folders.
+   * Paths are matched in Solr as given, which is exact for a <code>string</code> path field. Folders are matched with a
+   * prefix query, which only works on a <code>string</code> path field.
+   *
+   * @param fileIds     the Dropbox file ids
+   * @param paths       the paths of files
+   * @param folderPaths the paths of folders whose files are looked for
+   * @return the {@link DropboxTag}s
+   */
+  public List<DropboxTag> findAllByFileIdsOrPaths(Collection<String> fileIds, Collection<String> paths, Collection<String> folderPaths) {
+    List<String> clauses = new ArrayList<>();
+    if (!fileIds.isEmpty()) {
+      clauses.add("file_id:(" + fileIds.stream().map(DropboxTagSolrService::phrase).collect(Collectors.joining(" OR ")) + ")");
+    }
+    if (!paths.isEmpty()) {
+      clauses.add("path:(" + paths.stream().map(DropboxTagSolrService::phrase).collect(Collectors.joining(" OR ")) + ")");
+    }
+    for (String folderPath : folderPaths) {
+      clauses.add("path:" + ClientUtils.escapeQueryChars(folderPath + "/") + "*");
+    }
+    List<DropboxTag> result = new ArrayList<>();
+    if (clauses.isEmpty()) {
+      return result;
+    }
+    String query = String.join(" OR ", clauses);
+    new DropboxTagCursorIterator((cursorMark, rows) -> queryPage(query, cursorMark, rows), cursorPageSize)
+        .forEachRemaining(result::add);
+    return result;
+  }
 
+  /**
+   * Apply the changes of files in Dropbox to their DropboxTags: replace name, path, file id and the metadata of the file with atomic updates
+   * and delete the DropboxTags of deleted files, each with one request to Solr.
+   * A DropboxTag deleted in the meantime is skipped instead of being created again.
+   *
+   * @param changes   the replaced fields of the DropboxTags, null fields are left unchanged
+   * @param deletions the DropboxTags to delete
+   */
+  public void syncDropboxTags(Collection<DropboxTag> changes, Collection<DropboxTag> deletions) {
+    if (!changes.isEmpty()) {
+      List<SolrInputDocument> documents = changes.stream().map(DropboxTagSolrService::syncUpdate).collect(Collectors.toList());
+      Map<String, Long> versions;
+      try {
+        versions = updateDropboxTags(documents, null);
+      } catch (VersionConflictException e) {
+        log.debug("A synced DropboxTag has been deleted in the meantime, updating the DropboxTags one by one");
+        versions = new HashMap<>();
+        for (SolrInputDocument document : documents) {
+          try {
+            versions.putAll(updateDropboxTags(Collections.singletonList(document), null));
+          } catch (VersionConflictException ex) {
+            log.debug("Skipping the deleted DropboxTag [{}]", document.getFieldValue("id"));
+          }
+        }
+      }
+      for (DropboxTag change : changes) {
+        if (versions.containsKey(change.id)) {
+          DropboxTag applied = new DropboxTag(change.id, change.name, change.path, null);
+          applied.copyFileMetadata(change);
+          applied.version = versions.get(change.id);
+          notifyUpdateListeners(change.id, applied, Collections.emptyList(), Collections.emptyList());
+        }
+      }
+    }
+    if (!deletions.isEmpty()) {
+      clientService.deleteDropboxTags(collectionName, deletions.stream().map(dropboxTag -> dropboxTag.id).collect(Collectors.toList()));
+      for (DropboxTag deletion : deletions) {
+        entryCache.invalidate(deletion.id);
+        notifyWriteListeners(deletion, null);
+      }
+    }
   }
 
   // private
 
   /**
-   * Find and return a {@link DropboxTag} by id if it exists
+   * Create the atomic update of a synced DropboxTag, which must exist
+   *
+   * @param change the replaced fields
+   * @return the {@link SolrInputDocument}
+   */
+  private static SolrInputDocument syncUpdate(DropboxTag change) {
+    SolrInputDocument document = atomicUpdate(change.id, null);
+    setField(document, "name", change.name);
+    setField(document, "path", change.path);
+    setField(document, "file_id", change.fileId);
+    setField(document, "size", change.size);
+    setField(document, "rev", change.rev);
+    setField(document, "content_hash", change.contentHash);
+    setField(document, "server_modified", change.serverModified);
+    if (null != change.rev) {
+      // the checksum of another rev does not hold anymore, it is removed unless it is given
+      document.addField("crc32", Collections.singletonMap("set", change.crc32));
+    }
+    return document;
+  }
+
+  /**
+   * Quote a value as a phrase of a Solr query
+   *
+   * @param value the value
+   * @return the escaped and quoted value
+   */
+  private static String phrase(String value) {
+    return "\"" + ClientUtils.escapeQueryChars(value) + "\"";
+  }
+
+  /**
+   * Send the atomic updates of the tags of entities and notify the {@link #writeListeners}
+   *
+   * @param ids       the ids of the entities
+   * @param tagUpdate the tags to add and to remove
+   * @param version   the version a single entity must still have or null
+   * @return a {@link ResponseEntity} containing the new versions
+   */
+  private ResponseEntity<TagUpdateResult> updateTags(List<String> ids, TagUpdate tagUpdate, Long version) {
+    List<String> addedTags = null == tagUpdate.getAdd() ? Collections.emptyList() : tagUpdate.getAdd();
+    List<String> removedTags = null == tagUpdate.getRemove() ? Collections.emptyList() : tagUpdate.getRemove();
+    if (addedTags.isEmpty() && removedTags.isEmpty()) {
+      throw new InvalidTagUpdateException("No tags to add or to remove given.");
+    }
+    Map<String, Object> operations = new LinkedHashMap<>();
+    if (!addedTags.isEmpty()) {
+      operations.put("add-distinct", addedTags);
+    }
+    if (!removedTags.isEmpty()) {
+      operations.put("remove", removedTags);
+    }
+    List<SolrInputDocument> documents = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      SolrInputDocument document = atomicUpdate(id, version);
+      document.addField("tags", operations);
+      documents.add(document);
+    }
+
+    Map<String, DropboxTag> previous = findDropboxTagsIfExist(ids);
+    Map<String, Long> versions = updateDropboxTags(documents, ids.size() == 1 ? ids.get(0) : null);
+    for (String id : ids) {
+      DropboxTag changes = new DropboxTag(id, null, null, null);
+      changes.version = versions.get(id);
+      List<String> previousTags = previous.containsKey(id) ? previous.get(id).tags : null;
+      // Solr adds the distinct tags first and removes afterwards
+      Set<String> tags = null == previousTags ? new LinkedHashSet<>() : new LinkedHashSet<>(previousTags);
+      tags.addAll(addedTags);
+      tags.removeAll(removedTags);
+      notifyUpdateListeners(id, changes, previousTags, tags);
+    }
+    return ResponseEntity.ok()
+        .header(VISIBLE_WITHIN_HEADER, Long.toString(clientService.getVisibleWithin()))
+        .body(new TagUpdateResult(versions));
+  }
+
+  /**
+   * Start an atomic update of an entity. Without a version the <code>_version_</code> 1 lets Solr reject the update
+   * if the entity does not exist, instead of creating an entity without name and path.
+   *
+   * @param id      the id of the entity
+   * @param version the version the entity must still have or null
+   * @return the {@link SolrInputDocument}
+   */
+  private static SolrInputDocument atomicUpdate(String id, Long version) {
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", id);
+    document.addField("_version_", null == version ? 1L : version);
+    return document;
+  }
+
+  /**
+   * Replace a field with an atomic <code>set</code> if a value is given
+   *
+   * @param document the {@link SolrInputDocument}
+   * @param name     the name of the field
+   * @param value    the new value or null
+   */
+  private static void setField(SolrInputDocument document, String name, Object value) {
+    if (null != value) {
+      document.addField(name, Collections.singletonMap("set", value));
+    }
+  }
+
+  /**
+   * Send atomic updates to Solr and drop the cached entities
+   *
+   * @param documents the atomic updates
+   * @param id        the id of a single entity, whose absence is reported as not found, or null
+   * @return the new version of every updated entity by id
+   */
+  private Map<String, Long> updateDropboxTags(List<SolrInputDocument> documents, String id) {
+    try {
+      return clientService.updateDropboxTags(collectionName, documents);
+    } catch (VersionConflictException e) {
+      if (null != id && e.isDocumentMissing()) {
+        throw new DropboxTagNotFoundException(id);
+      }
+      throw e;
+    } finally {
+      documents.forEach(document -> entryCache.invalidate((String) document.getFieldValue("id")));
+    }
+  }
+
+  /**
+   * Notify the {@link #writeListeners} of an atomic update accepted by Solr with the tags the entity gained and lost,
+   * a failing listener does not fail the update
+   *
+   * @param id           the id of the {@link DropboxTag}
+   * @param changes      the fields that have been replaced and the new version
+   * @param previousTags the tags before the update, null for none
+   * @param tags         the tags after the update
+   */
+  private void notifyUpdateListeners(String id, DropboxTag changes, Collection<String> previousTags, Collection<String> tags) {
+    Collection<String> before = null == previousTags ? Collections.emptySet() : new HashSet<>(previousTags);
+    Set<String> addedTags = new LinkedHashSet<>(tags);
+    addedTags.removeAll(before);
+    Set<String> removedTags = new LinkedHashSet<>(before);
+    removedTags.removeAll(tags);
+    for (DropboxTagWriteListener writeListener : writeListeners) {
+      try {
+        writeListener.onUpdate(collectionName, id, changes, addedTags, removedTags);
+      } catch (RuntimeException e) {
+        log.warn("DropboxTagWriteListener [{}] failed", writeListener.getClass().getSimpleName(), e);
+      }
+    }
+  }
+
+  /**
+   * Notify the {@link #writeListeners} of a write accepted by Solr, a failing listener does not fail the write
+   *
+   * @param previous the {@link DropboxTag} before the write, null if it has been added
+   * @param current  the {@link DropboxTag} as written, null if it has been deleted
+   */
+  private void notifyWriteListeners(DropboxTag previous, DropboxTag current) {
+    for (DropboxTagWriteListener writeListener : writeListeners) {
+      try {
+        writeListener.onWrite(collectionName, previous, current);
+      } catch (RuntimeException e) {
+        log.warn("DropboxTagWriteListener [{}] failed", writeListener.getClass().getSimpleName(), e);
+      }
+    }
+  }
+
+  /**
+   * Find and return a {@link DropboxTag} by id if it exists.
+   * The {@link #entryCache} is asked first, then Solr's real-time get.
    *
    * @param id the id
    * @return a {@link DropboxTag}-object with the provided id and contents from Solr
    */
   private DropboxTag findDropboxTagIfExists(String id) {
-    DropboxTag result;
-
-    final Map<String, String> queryParamMap = new HashMap<>();
-    queryParamMap.put("q", "id:" + id);
-    queryParamMap.put("fl", "id, name, path, tags");
-    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+    DropboxTag result = entryCache.getIfPresent(id);
+    if (null != result) {
+      return result;
+    }
 
-    final QueryResponse response = clientService.queryClient(collectionName,
-        queryParams);
-    if (null == response) {
+    final SolrDocument document = clientService.getById(collectionName, id);
+    if (null == document) {
       throw new DropboxTagNotFoundException(id);
     }
 
-    final SolrDocumentList documents = response.getResults();
-
-    if (documents.isEmpty()) {
-      throw new DropboxTagNotFoundException(id);
-    } else if (documents.size() > 1) {
-      throw new MultipleTagIdsException(id);
-    } else {
-      SolrDocument document = documents.get(0);
-      String name = (String) document.getFirstValue("name");
-      String path = (String) document.getFirstValue("path");
-      String tag = (String) document.getFirstValue("tags");
-      result = new DropboxTag(id, name, path, tag);
+    result = toDropboxTag(document);
+    entryCache.put(result);
+    return result;
+  }
 
+  /**
+   * Find the {@link DropboxTag}s that exist among the ids.
+   * The {@link #entryCache} is asked first, then Solr's real-time get once for the others.
+   *
+   * @param ids the ids
+   * @return the existing {@link DropboxTag}s by id
+   */
+  private Map<String, DropboxTag> findDropboxTagsIfExist(Collection<String> ids) {
+    Map<String, DropboxTag> result = new HashMap<>();
+    List<String> uncached = new ArrayList<>();
+    for (String id : ids) {
+      DropboxTag cached = entryCache.getIfPresent(id);
+      if (null == cached) {
+        uncached.add(id);
+      } else {
+        result.put(id, cached);
+      }
+    }
+    if (!uncached.isEmpty()) {
+      for (SolrDocument document : clientService.getByIds(collectionName, uncached)) {
+        DropboxTag dropboxTag = toDropboxTag(document);
+        entryCache.put(dropboxTag);
+        result.put(dropboxTag.id, dropboxTag);
+      }
     }
     return result;
   }
 
+  /**
+   * Find the DropboxTags that correspond with the provided tags-String from the {@link #bitmapIndex},
+   * otherwise from the {@link #queryCache} if no write has happened since
+   *
+   * @param tags  the tags that are to be looked for
+   * @param start the offset
+   * @param rows  the number of entries
+   * @return an unmodifiable {@link List} of {@link DropboxTag}
+   */
+  private List<DropboxTag> findAllByTags(String tags, String start, String rows) {
+    List<DropboxTag> indexed = bitmapIndex.findAllByTags(tags, start, rows);
+    if (null != indexed) {
+      return Collections.unmodifiableList(indexed);
+    }
+
+    long generation = clientService.getWriteGeneration();
+    List<DropboxTag> result = queryCache.getIfPresent(tags, start, rows, generation);
+    if (null != result) {
+      return result;
+    }
+
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put("q", "tags:(" + tags + ")");
+    queryParamMap.put("fl", "id, name, path, tags, _version_, file_id, size, rev, content_hash, server_modified, crc32");
+    queryParamMap.put("sort", "id asc");
+    queryParamMap.put("start", start);
+    queryParamMap.put("rows", rows);
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    return queryCache.put(tags, start, rows, generation, querySolrServerAsDropboxTags(queryParams));
+  }
+
+  /**
+   * Query one page of the DropboxTags that correspond with the provided tags-String with a cursorMark.
+   * The sort on the unique key, which Solr requires for cursors, keeps the pages stable.
+   *
+   * @param tags       the tags that are to be looked for
+   * @param cursorMark the cursorMark of the page
+   * @param rows       the number of entries per page
+   * @return the {@link DropboxTagPage}
+   */
+  DropboxTagPage queryPageByTags(String tags, String cursorMark, int rows) {
+    return queryPage("tags:(" + tags + ")", cursorMark, rows);
+  }
+
+  /**
+   * Query one page of the DropboxTags matching a Solr query with a cursorMark
+   *
+   * @param query      the Solr query
+   * @param cursorMark the cursorMark of the page
+   * @param rows       the number of entries per page
+   * @return the {@link DropboxTagPage}
+   */
+  private DropboxTagPage queryPage(String query, String cursorMark, int rows) {
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put("q", query);
+    queryParamMap.put("fl", "id, name, path, tags, _version_, file_id, size, rev, content_hash, server_modified, crc32");
+    queryParamMap.put("sort", "id asc");
+    queryParamMap.put("rows", Integer.toString(rows));
+    queryParamMap.put(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    final QueryResponse response = clientService.queryClient(collectionName, queryParams);
+    List<DropboxTag> dropboxTags = response.getResults().stream()
+        .map(DropboxTagSolrService::toDropboxTag)
+        .collect(Collectors.toList());
+    return new DropboxTagPage(dropboxTags, cursorMark, response.getNextCursorMark());
+  }
+
   /**
    * Query the SolrServer with the provided {@link MapSolrParams}
    *
@@ -245,13 +704,36 @@ public class DropboxTagSolrService {
     final SolrDocumentList documents = response.getResults();
 
     for (SolrDocument document : documents) {
-      String id = (String) document.getFirstValue("id");
-      String name = (String) document.getFirstValue("name");
-      String path = (String) document.getFirstValue("path");
-      String tag = (String) document.getFirstValue("tags");
-      result.add(new DropboxTag(id, name, path, tag));
+      result.add(toDropboxTag(document));
     }
 
     return result;
   }
+
+  /**
+   * Create a {@link DropboxTag} from a {@link SolrDocument}
+   *
+   * @param document the {@link SolrDocument}
+   * @return the {@link DropboxTag}
+   */
+  static DropboxTag toDropboxTag(SolrDocument document) {
+    String id = (String) document.getFirstValue("id");
+    String name = (String) document.getFirstValue("name");
+    String path = (String) document.getFirstValue("path");
+    Collection<Object> tagValues = document.getFieldValues("tags");
+    List<String> tags = null == tagValues
+        ? new ArrayList<>()
+        : tagValues.stream().map(Object::toString).collect(Collectors.toList());
+    DropboxTag dropboxTag = new DropboxTag(id, name, path, tags);
+    dropboxTag.version = (Long) document.getFirstValue("_version_");
+    dropboxTag.fileId = (String) document.getFirstValue("file_id");
+    Number size = (Number) document.getFirstValue("size");
+    dropboxTag.size = null == size ? null : size.longValue();
+    dropboxTag.rev = (String) document.getFirstValue("rev");
+    dropboxTag.contentHash = (String) document.getFirstValue("content_hash");
+    dropboxTag.serverModified = (Date) document.getFirstValue("server_modified");
+    Number crc32 = (Number) document.getFirstValue("crc32");
+    dropboxTag.crc32 = null == crc32 ? null : crc32.longValue();
+    return dropboxTag;
+  }
 }
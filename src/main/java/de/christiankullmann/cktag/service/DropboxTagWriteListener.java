@@ -0,0 +1,32 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+
+import java.util.Collection;
+
+/**
+ * Is notified after a write of a {@link DropboxTag} through this service has been accepted by Solr
+ */
+public interface DropboxTagWriteListener {
+
+  /**
+   * Handle a write
+   *
+   * @param collectionName the name of the collection
+   * @param previous       the {@link DropboxTag} before the write, null if it has been added
+   * @param current        the {@link DropboxTag} as written, null if it has been deleted
+   */
+  void onWrite(String collectionName, DropboxTag previous, DropboxTag current);
+
+  /**
+   * Handle an atomic update of an existing {@link DropboxTag}, whose tags have been compared with the entry as it was
+   * read before the update
+   *
+   * @param collectionName the name of the collection
+   * @param id             the id of the {@link DropboxTag}
+   * @param changes        the fields that have been replaced, null fields are unchanged, and the new version
+   * @param addedTags      the tags the entry carries now and did not carry before
+   * @param removedTags    the tags the entry carried before and does not carry any more
+   */
+  void onUpdate(String collectionName, String id, DropboxTag changes, Collection<String> addedTags, Collection<String> removedTags);
+}
@@ -0,0 +1,166 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.LBHttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Builds the {@link SolrClient}s of {@link SolrClientService} according to the {@link SolrClientMode}.
+ * All clients share one pooled HTTP client, so the number of connections to Solr is bounded per host and in total.
+ */
+@Component
+@Slf4j
+public class SolrClientFactory {
+
+  private final SolrClientMode mode;
+
+  private final String solrUrl;
+
+  private final String[] loadBalancedUrls;
+
+  private final List<String> zkHosts;
+
+  private final String zkChroot;
+
+  private final int maxConnections;
+
+  private final int maxConnectionsPerHost;
+
+  private final int connectionTimeout;
+
+  private final int socketTimeout;
+
+  private CloseableHttpClient httpClient;
+
+  /**
+   * Create a new {@link SolrClientFactory}
+   *
+   * @param mode                  the {@link SolrClientMode}
+   * @param solrUrl               the url to an Apache Solr for {@link SolrClientMode#HTTP} and the writes of {@link SolrClientMode#LOAD_BALANCED}
+   * @param loadBalancedUrls      the comma separated urls of the replicas searched with {@link SolrClientMode#LOAD_BALANCED}
+   * @param zkHosts               the comma separated ZooKeeper hosts of a SolrCloud cluster for {@link SolrClientMode#CLOUD}
+   * @param zkChroot              the ZooKeeper chroot of the SolrCloud cluster, empty for none
+   * @param maxConnections        the maximum number of pooled connections to all Solr nodes
+   * @param maxConnectionsPerHost the maximum number of pooled connections to one Solr node
+   * @param connectionTimeout     the connect timeout in milliseconds
+   * @param socketTimeout         the read timeout in milliseconds
+   */
+  @Autowired
+  public SolrClientFactory(@Value("${solr.client.mode}") SolrClientMode mode,
+                           @Value("${solr.hosturl}") String solrUrl,
+                           @Value("${solr.lb.urls}") String loadBalancedUrls,
+                           @Value("${solr.cloud.zkHosts}") String zkHosts,
+                           @Value("${solr.cloud.zkChroot}") String zkChroot,
+                           @Value("${solr.pool.maxConnections}") int maxConnections,
+                           @Value("${solr.pool.maxConnectionsPerHost}") int maxConnectionsPerHost,
+                           @Value("${solr.connectionTimeout}") int connectionTimeout,
+                           @Value("${solr.socketTimeout}") int socketTimeout) {
+    Assert.notNull(mode, "mode must not be null");
+    Assert.isTrue(maxConnections > 0 && maxConnectionsPerHost > 0, "maxConnections and maxConnectionsPerHost must be positive");
+    this.mode = mode;
+    this.solrUrl = solrUrl;
+    this.loadBalancedUrls = StringUtils.tokenizeToStringArray(loadBalancedUrls, ",");
+    this.zkHosts = Arrays.asList(StringUtils.tokenizeToStringArray(zkHosts, ","));
+    this.zkChroot = StringUtils.hasText(zkChroot) ? zkChroot.trim() : null;
+    this.maxConnections = maxConnections;
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.connectionTimeout = connectionTimeout;
+    this.socketTimeout = socketTimeout;
+    Assert.isTrue(mode != SolrClientMode.LOAD_BALANCED || this.loadBalancedUrls.length > 0,
+        "solr.lb.urls must not be empty for " + SolrClientMode.LOAD_BALANCED);
+    Assert.isTrue(mode != SolrClientMode.CLOUD || !this.zkHosts.isEmpty(),
+        "solr.cloud.zkHosts must not be empty for " + SolrClientMode.CLOUD);
+  }
+
+  /**
+   * Build the {@link SolrClient} for writes and lookups by id
+   *
+   * @return the {@link SolrClient}
+   */
+  public SolrClient createClient() {
+    if (mode == SolrClientMode.CLOUD) {
+      log.info("Connecting to the SolrCloud cluster at [{}]", zkHosts);
+      return new CloudSolrClient.Builder(zkHosts, Optional.ofNullable(zkChroot))
+          .withHttpClient(getHttpClient())
+          .withConnectionTimeout(connectionTimeout)
+          .withSocketTimeout(socketTimeout)
+          .build();
+    }
+    return new HttpSolrClient.Builder(solrUrl)
+        .withHttpClient(getHttpClient())
+        .withConnectionTimeout(connectionTimeout)
+        .withSocketTimeout(socketTimeout)
+        .build();
+  }
+
+  /**
+   * Return whether searches use a client of their own
+   *
+   * @return true for {@link SolrClientMode#LOAD_BALANCED}
+   */
+  public boolean hasReadClient() {
+    return mode == SolrClientMode.LOAD_BALANCED;
+  }
+
+  /**
+   * Build the {@link SolrClient} spreading searches across the replicas of {@link SolrClientMode#LOAD_BALANCED}
+   *
+   * @return the {@link LBHttpSolrClient}
+   */
+  public SolrClient createReadClient() {
+    log.info("Spreading searches across the replicas [{}]", String.join(", ", loadBalancedUrls));
+    return new LBHttpSolrClient.Builder()
+        .withBaseSolrUrls(loadBalancedUrls)
+        .withHttpClient(getHttpClient())
+        .withConnectionTimeout(connectionTimeout)
+        .withSocketTimeout(socketTimeout)
+        .build();
+  }
+
+  /**
+   * Close the shared HTTP client after the {@link SolrClient}s built with it have been closed
+   *
+   * @throws IOException if closing the HTTP client fails
+   */
+  @PreDestroy
+  public void preDestroy() throws IOException {
+    synchronized (this) {
+      if (null != httpClient) {
+        httpClient.close();
+      }
+    }
+  }
+
+  /**
+   * Return the pooled HTTP client shared by all {@link SolrClient}s, it is created with the first client
+   *
+   * @return the {@link CloseableHttpClient}
+   */
+  private synchronized CloseableHttpClient getHttpClient() {
+    if (null == httpClient) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+      params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+      params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
+      params.set(HttpClientUtil.PROP_SO_TIMEOUT, socketTimeout);
+      httpClient = HttpClientUtil.createClient(params);
+    }
+    return httpClient;
+  }
+}
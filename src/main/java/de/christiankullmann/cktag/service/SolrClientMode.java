@@ -0,0 +1,24 @@
+package de.christiankullmann.cktag.service;
+
+/**
+ * The kinds of {@link org.apache.solr.client.solrj.SolrClient} {@link SolrClientFactory} builds
+ */
+public enum SolrClientMode {
+
+  /**
+   * Send all requests to the single Solr of <code>solr.hosturl</code>
+   */
+  HTTP,
+
+  /**
+   * Spread searches round-robin across the replicas of <code>solr.lb.urls</code>, skipping replicas that do not respond.
+   * Writes and lookups by id, which must see uncommitted writes, still go to <code>solr.hosturl</code>.
+   */
+  LOAD_BALANCED,
+
+  /**
+   * Discover the nodes of a SolrCloud cluster from the ZooKeeper ensemble of <code>solr.cloud.zkHosts</code>,
+   * send writes to the shard leaders and spread searches across all replicas
+   */
+  CLOUD
+}
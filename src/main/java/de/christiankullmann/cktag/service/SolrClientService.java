@@ -2,37 +2,126 @@ package de.christiankullmann.cktag.service;
 
 import de.christiankullmann.cktag.exception.InternalServerException;
 import de.christiankullmann.cktag.exception.ResourceNotFoundException;
+import de.christiankullmann.cktag.exception.VersionConflictException;
 import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 
 import javax.annotation.PreDestroy;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 @Slf4j
 public class SolrClientService {
 
-  private final String solrUrl;
+  private static final long GROUP_COMMIT_TIMEOUT_MILLIS = 30000;
 
-  private SolrClient client;
+  /**
+   * Allowance for Solr to open a new searcher after a commitWithin is due
+   */
+  private static final long SEARCHER_OPEN_MARGIN_MILLIS = 1000;
 
   /**
-   * Create a new SolrClientService with the url to an Apache Solr
+   * The beginning of the message of Solr's conflict for an update requiring an existing document
+   */
+  private static final String DOCUMENT_NOT_FOUND_MESSAGE = "Document not found for update";
+
+  private final SolrClientFactory clientFactory;
+
+  private final CommitPolicy commitPolicy;
+
+  private final int commitWithin;
+
+  private final long groupCommitInterval;
+
+  private final Map<String, CompletableFuture<Void>> pendingGroupCommits = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService commitScheduler;
+
+  private final AtomicLong writeGeneration = new AtomicLong();
+
+  private final MeterRegistry meterRegistry;
+
+  private volatile SolrClient client;
+
+  private volatile SolrClient readClient;
+
+  /**
+   * Create a new SolrClientService with the {@link SolrClientFactory} building the clients to Apache Solr
    *
-   * @param solrUrl the url to an Apache Solr as String
+   * @param clientFactory       the {@link SolrClientFactory}
+   * @param commitPolicy        the {@link CommitPolicy} for all writes
+   * @param commitWithin        the time in milliseconds within which Solr commits writes for {@link CommitPolicy#COMMIT_WITHIN}
+   * @param groupCommitInterval the time in milliseconds writes are collected for one commit for {@link CommitPolicy#GROUP_COMMIT}
+   * @param meterRegistry       the {@link MeterRegistry} the duration of the requests is reported to
    */
-  public SolrClientService(@Value("${solr.hosturl}") String solrUrl) {
-    this.solrUrl = solrUrl;
+  @Autowired
+  public SolrClientService(SolrClientFactory clientFactory,
+                           @Value("${solr.commit.policy}") CommitPolicy commitPolicy,
+                           @Value("${solr.commit.within}") int commitWithin,
+                           @Value("${solr.commit.groupInterval}") long groupCommitInterval,
+                           MeterRegistry meterRegistry) {
+    Assert.notNull(clientFactory, "SolrClientFactory must not be null");
+    Assert.notNull(commitPolicy, "commitPolicy must not be null");
+    Assert.notNull(meterRegistry, "meterRegistry must not be null");
+    this.clientFactory = clientFactory;
+    this.commitPolicy = commitPolicy;
+    this.commitWithin = commitWithin;
+    this.groupCommitInterval = groupCommitInterval;
+    this.meterRegistry = meterRegistry;
+    this.commitScheduler = commitPolicy == CommitPolicy.GROUP_COMMIT || commitPolicy == CommitPolicy.COMMIT_WITHIN
+        ? Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("solr-commit-"))
+        : null;
+  }
+
+  /**
+   * Return the write generation, which changes whenever a write through this service may have become visible to searches.
+   * Caches of search results remember the generation they were filled in and are stale once it has changed.
+   *
+   * @return the current write generation
+   */
+  public long getWriteGeneration() {
+    return writeGeneration.get();
+  }
+
+  /**
+   * Return the maximum time after which a write that has been acknowledged by this service is visible to searches
+   *
+   * @return the time in milliseconds, 0 if writes are visible once they have been acknowledged
+   */
+  public long getVisibleWithin() {
+    return commitPolicy == CommitPolicy.COMMIT_WITHIN ? commitWithin : 0;
   }
 
   /**
@@ -43,12 +132,57 @@ public class SolrClientService {
    * @return a {@link QueryResponse}
    */
   public QueryResponse queryClient(String collectionName, MapSolrParams queryParams) {
-    if (client == null) {
-      client = getSolrClient();
+    final SolrClient solrClient = readClient();
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      QueryResponse response = solrClient.query(collectionName, queryParams);
+      success = true;
+      return response;
+    } catch (SolrServerException e) {
+      throw new InternalServerException(e.getMessage());
+    } catch (IOException e) {
+      if (e.getClass().getSimpleName().equals(FileNotFoundException.class.getSimpleName())) {
+        throw new ResourceNotFoundException(e);
+      }
+      throw new RuntimeException(e);
+    } finally {
+      record(sample, "query", collectionName, success);
     }
-    QueryResponse response;
+  }
+
+  /**
+   * Fetch a document by id with Solr's real-time get, which also returns documents that have not been committed yet
+   *
+   * @param collectionName the name of the collection
+   * @param id             the id of the document
+   * @return the {@link SolrDocument} or null if there is no document with the id
+   */
+  public SolrDocument getById(String collectionName, String id) {
+    final SolrClient solrClient = client();
     try {
-      response = client.query(collectionName, queryParams);
+      return solrClient.getById(collectionName, id);
+    } catch (SolrServerException e) {
+      throw new InternalServerException(e.getMessage());
+    } catch (IOException e) {
+      if (e.getClass().getSimpleName().equals(FileNotFoundException.class.getSimpleName())) {
+        throw new ResourceNotFoundException(e);
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Fetch documents by id with one real-time get, which also returns documents that have not been committed yet
+   *
+   * @param collectionName the name of the collection
+   * @param ids            the ids of the documents
+   * @return the {@link SolrDocumentList} of the documents found
+   */
+  public SolrDocumentList getByIds(String collectionName, Collection<String> ids) {
+    final SolrClient solrClient = client();
+    try {
+      return solrClient.getById(collectionName, ids);
     } catch (SolrServerException e) {
       throw new InternalServerException(e.getMessage());
     } catch (IOException e) {
@@ -57,7 +191,6 @@ public class SolrClientService {
       }
       throw new RuntimeException(e);
     }
-    return response;
   }
 
   /**
@@ -69,12 +202,47 @@ public class SolrClientService {
    * }
    */
   public UpdateResponse commitDropboxTag(String collectionName, DropboxTag dropboxTag) {
-    if (client == null) {
-      client = getSolrClient();
+    final SolrClient solrClient = client();
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      final UpdateResponse response = commitPolicy == CommitPolicy.COMMIT_WITHIN
+          ? solrClient.addBean(collectionName, dropboxTag, commitWithin)
+          : solrClient.addBean(collectionName, dropboxTag);
+      commit(collectionName);
+      success = true;
+      return response;
+    } catch (SolrException e) {
+      throw new InternalServerException(e.getMessage());
+    } catch (SolrServerException e) {
+      throw new InternalServerException("A SolrServerException occurred", e);
+    } catch (IOException e) {
+      if (e.getClass().getSimpleName().equals(FileNotFoundException.class.getSimpleName())) {
+        throw new ResourceNotFoundException(e);
+      }
+      throw new RuntimeException(e);
+    } finally {
+      record(sample, "add", collectionName, success);
     }
+  }
+
+  /**
+   * Add a batch of {@link DropboxTag}s to Apache Solr to a specific collection with a single commit
+   *
+   * @param collectionName the name of the collection
+   * @param dropboxTags    the {@link DropboxTag}s
+   * @return an {@link UpdateResponse}
+   */
+  public UpdateResponse commitDropboxTags(String collectionName, Collection<DropboxTag> dropboxTags) {
+    final SolrClient solrClient = client();
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
     try {
-      final UpdateResponse response = client.addBean(collectionName, dropboxTag);
-      client.commit(collectionName);
+      final UpdateResponse response = commitPolicy == CommitPolicy.COMMIT_WITHIN
+          ? solrClient.addBeans(collectionName, dropboxTags, commitWithin)
+          : solrClient.addBeans(collectionName, dropboxTags);
+      commit(collectionName);
+      success = true;
       return response;
     } catch (SolrException e) {
       throw new InternalServerException(e.getMessage());
@@ -85,6 +253,51 @@ public class SolrClientService {
         throw new ResourceNotFoundException(e);
       }
       throw new RuntimeException(e);
+    } finally {
+      record(sample, "add_batch", collectionName, success);
+    }
+  }
+
+  /**
+   * Send atomic updates of {@link DropboxTag}s to a specific collection with a single request and a single commit.
+   * Solr rejects a document whose <code>_version_</code> does not match with a conflict, the documents before it in the
+   * request have been applied and are committed nevertheless.
+   *
+   * @param collectionName the name of the collection
+   * @param documents      the atomic updates
+   * @return the new <code>_version_</code> of every updated document by id
+   * @throws VersionConflictException if Solr's optimistic concurrency rejected a document
+   */
+  public Map<String, Long> updateDropboxTags(String collectionName, Collection<SolrInputDocument> documents) {
+    final SolrClient solrClient = client();
+    UpdateRequest request = new UpdateRequest();
+    request.add(documents);
+    request.setParam(UpdateParams.VERSIONS, Boolean.TRUE.toString());
+    if (commitPolicy == CommitPolicy.COMMIT_WITHIN) {
+      request.setCommitWithin(commitWithin);
+    }
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      final UpdateResponse response = request.process(solrClient, collectionName);
+      commit(collectionName);
+      success = true;
+      return readVersions(response);
+    } catch (SolrException e) {
+      if (e.code() != SolrException.ErrorCode.CONFLICT.code) {
+        throw new InternalServerException(e.getMessage());
+      }
+      commitAfterConflict(collectionName);
+      throw new VersionConflictException(e.getMessage(), null != e.getMessage() && e.getMessage().contains(DOCUMENT_NOT_FOUND_MESSAGE));
+    } catch (SolrServerException e) {
+      throw new InternalServerException("A SolrServerException occurred", e);
+    } catch (IOException e) {
+      if (e.getClass().getSimpleName().equals(FileNotFoundException.class.getSimpleName())) {
+        throw new ResourceNotFoundException(e);
+      }
+      throw new RuntimeException(e);
+    } finally {
+      record(sample, "update", collectionName, success);
     }
   }
 
@@ -95,12 +308,47 @@ public class SolrClientService {
    * @param id             the id of the {@link DropboxTag} to delete
    */
   public UpdateResponse deleteDropboxTag(String collectionName, String id) {
-    if (client == null) {
-      client = getSolrClient();
+    final SolrClient solrClient = client();
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
+    try {
+      final UpdateResponse response = commitPolicy == CommitPolicy.COMMIT_WITHIN
+          ? solrClient.deleteById(collectionName, id, commitWithin)
+          : solrClient.deleteById(collectionName, id);
+      commit(collectionName);
+      success = true;
+      return response;
+    } catch (SolrException e) {
+      throw new InternalServerException(e.getMessage());
+    } catch (SolrServerException e) {
+      throw new InternalServerException("A SolrServerException occurred", e);
+    } catch (IOException e) {
+      if (e.getClass().getSimpleName().equals(FileNotFoundException.class.getSimpleName())) {
+        throw new ResourceNotFoundException(e);
+      }
+      throw new RuntimeException(e);
+    } finally {
+      record(sample, "delete", collectionName, success);
     }
+  }
+
+  /**
+   * Delete the {@link DropboxTag}s with the provided ids from the collection with a single commit
+   *
+   * @param collectionName name of the collection in Apache Solr
+   * @param ids            the ids of the {@link DropboxTag}s to delete
+   * @return an {@link UpdateResponse}
+   */
+  public UpdateResponse deleteDropboxTags(String collectionName, List<String> ids) {
+    final SolrClient solrClient = client();
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean success = false;
     try {
-      final UpdateResponse response = client.deleteById(collectionName, id);
-      client.commit(collectionName);
+      final UpdateResponse response = commitPolicy == CommitPolicy.COMMIT_WITHIN
+          ? solrClient.deleteById(collectionName, ids, commitWithin)
+          : solrClient.deleteById(collectionName, ids);
+      commit(collectionName);
+      success = true;
       return response;
     } catch (SolrException e) {
       throw new InternalServerException(e.getMessage());
@@ -111,30 +359,214 @@ public class SolrClientService {
         throw new ResourceNotFoundException(e);
       }
       throw new RuntimeException(e);
+    } finally {
+      record(sample, "delete_batch", collectionName, success);
     }
   }
 
   /**
-   * Close the client prior to destroying this bean
+   * Close the clients prior to destroying this bean
    *
-   * @throws IOException is thrown in case {@link #client} has a problem during closing
+   * @throws IOException is thrown in case {@link #client} or {@link #readClient} has a problem during closing
    */
   @PreDestroy
   public void preDestroy() throws IOException {
-    if (null != client) {
-      client.close();
+    if (null != commitScheduler) {
+      commitScheduler.shutdownNow();
+    }
+    synchronized (this) {
+      try {
+        if (null != readClient && readClient != client) {
+          readClient.close();
+        }
+      } finally {
+        if (null != client) {
+          client.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the {@link SolrClient} for writes and lookups by id, it is built once by the first caller
+   *
+   * @return the {@link SolrClient}
+   */
+  private SolrClient client() {
+    SolrClient solrClient = client;
+    if (null == solrClient) {
+      synchronized (this) {
+        solrClient = client;
+        if (null == solrClient) {
+          solrClient = getSolrClient();
+          client = solrClient;
+        }
+      }
+    }
+    return solrClient;
+  }
+
+  /**
+   * Return the {@link SolrClient} for searches, it is built once by the first caller
+   *
+   * @return the {@link SolrClient}
+   */
+  private SolrClient readClient() {
+    SolrClient solrClient = readClient;
+    if (null == solrClient) {
+      synchronized (this) {
+        solrClient = readClient;
+        if (null == solrClient) {
+          solrClient = getSolrReadClient();
+          readClient = solrClient;
+        }
+      }
+    }
+    return solrClient;
+  }
+
+  /**
+   * Make the preceding write to the collection visible according to the {@link #commitPolicy} and advance the {@link #writeGeneration}.
+   * With {@link CommitPolicy#COMMIT_WITHIN} the generation advances once more when Solr's commit should be visible.
+   *
+   * @param collectionName the name of the collection
+   * @throws SolrServerException if the commit fails
+   * @throws IOException         if the communication with Solr fails
+   */
+  private void commit(String collectionName) throws SolrServerException, IOException {
+    try {
+      switch (commitPolicy) {
+        case IMMEDIATE:
+          client().commit(collectionName);
+          break;
+        case SOFT_COMMIT:
+          client().commit(collectionName, true, true, true);
+          break;
+        case GROUP_COMMIT:
+          awaitGroupCommit(collectionName);
+          break;
+        case COMMIT_WITHIN:
+          commitScheduler.schedule(writeGeneration::incrementAndGet, commitWithin + SEARCHER_OPEN_MARGIN_MILLIS, TimeUnit.MILLISECONDS);
+          break;
+        default:
+          break;
+      }
+    } finally {
+      writeGeneration.incrementAndGet();
     }
   }
 
   /**
-   * Return a {@link SolrClient}
+   * Commit the documents of a request that have been applied before Solr rejected one of them, a failure is only logged
+   *
+   * @param collectionName the name of the collection
+   */
+  private void commitAfterConflict(String collectionName) {
+    try {
+      commit(collectionName);
+    } catch (SolrServerException | IOException | RuntimeException e) {
+      log.warn("Commit of collection [{}] after a version conflict failed", collectionName, e);
+    }
+  }
+
+  /**
+   * Read the versions Solr returns for <code>versions=true</code>
+   *
+   * @param response the {@link UpdateResponse}
+   * @return the <code>_version_</code> of every added document by id
+   */
+  private static Map<String, Long> readVersions(UpdateResponse response) {
+    Map<String, Long> versions = new LinkedHashMap<>();
+    Object adds = null == response.getResponse() ? null : response.getResponse().get("adds");
+    if (adds instanceof NamedList) {
+      NamedList<?> addedVersions = (NamedList<?>) adds;
+      for (int i = 0; i < addedVersions.size(); i++) {
+        versions.put(addedVersions.getName(i), ((Number) addedVersions.getVal(i)).longValue());
+      }
+    }
+    return versions;
+  }
+
+  /**
+   * Record the duration of a request to Solr, including its commit, by operation, collection and outcome
+   *
+   * @param sample         the {@link Timer.Sample} started before the request
+   * @param operation      the operation of the request
+   * @param collectionName the name of the collection
+   * @param success        whether the request succeeded
+   */
+  private void record(Timer.Sample sample, String operation, String collectionName, boolean success) {
+    sample.stop(Timer.builder("cktag.solr.requests")
+        .description("Duration of requests to Apache Solr")
+        .tags("operation", operation, "collection", collectionName, "outcome", success ? "success" : "error")
+        .register(meterRegistry));
+  }
+
+  /**
+   * Wait for the next group commit of the collection.
+   * The first write of an interval schedules the commit, all writes until the commit is sent share it.
+   *
+   * @param collectionName the name of the collection
+   * @throws SolrServerException if the commit fails
+   * @throws IOException         if the communication with Solr fails
+   */
+  private void awaitGroupCommit(String collectionName) throws SolrServerException, IOException {
+    CompletableFuture<Void> groupCommit = pendingGroupCommits.computeIfAbsent(collectionName, collection -> {
+      CompletableFuture<Void> scheduledCommit = new CompletableFuture<>();
+      commitScheduler.schedule(() -> sendGroupCommit(collection), groupCommitInterval, TimeUnit.MILLISECONDS);
+      return scheduledCommit;
+    });
+    try {
+      groupCommit.get(GROUP_COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InternalServerException("Interrupted while waiting for the commit of collection [" + collectionName + "]", e);
+    } catch (TimeoutException e) {
+      throw new InternalServerException("Timeout while waiting for the commit of collection [" + collectionName + "]", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SolrServerException) {
+        throw (SolrServerException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof SolrException) {
+        throw (SolrException) cause;
+      }
+      throw new InternalServerException("The commit of collection [" + collectionName + "] failed", cause);
+    }
+  }
+
+  /**
+   * Send the scheduled group commit of the collection and release all waiting writes
+   *
+   * @param collectionName the name of the collection
+   */
+  private void sendGroupCommit(String collectionName) {
+    CompletableFuture<Void> groupCommit = pendingGroupCommits.remove(collectionName);
+    try {
+      client().commit(collectionName);
+      groupCommit.complete(null);
+    } catch (SolrServerException | IOException | RuntimeException e) {
+      log.error("Group commit of collection [{}] failed", collectionName, e);
+      groupCommit.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Return a new {@link SolrClient} for writes and lookups by id
    *
    * @return a {@link SolrClient}
    */
   protected SolrClient getSolrClient() {
-      return new HttpSolrClient.Builder(solrUrl)
-          .withConnectionTimeout(10000)
-          .withSocketTimeout(60000)
-          .build();
+    return clientFactory.createClient();
+  }
+
+  /**
+   * Return a new {@link SolrClient} for searches, the client for writes unless searches are spread across replicas
+   *
+   * @return a {@link SolrClient}
+   */
+  protected SolrClient getSolrReadClient() {
+    return clientFactory.hasReadClient() ? clientFactory.createReadClient() : client();
   }
 }
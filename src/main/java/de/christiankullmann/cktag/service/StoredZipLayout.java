@@ -0,0 +1,303 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.apache.commons.compress.archivers.zip.ZipLong;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The byte layout of a zip-archive of {@link DropboxTag}s whose entries are all STORED, calculated from the indexed
+ * size, rev and CRC-32 of the files before anything is downloaded.
+ * <p>
+ * As nothing is compressed, the offset of every byte of the archive is known up front: the archive can be sent with a
+ * <code>Content-Length</code>, and a byte range of it maps to the headers it covers and to byte ranges of the files.
+ * The content of the files is read at their indexed rev, so every request for the same {@link #getETag() ETag} gets the same bytes.
+ */
+class StoredZipLayout {
+
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final int VERSION_NEEDED_TO_EXTRACT = 10;
+
+  private static final int VERSION_MADE_BY = 20;
+
+  /**
+   * General purpose flag: the names are encoded in UTF-8
+   */
+  private static final int UTF8_FLAG = 0x0800;
+
+  private static final int STORED = 0;
+
+  private static final long END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50L;
+
+  /**
+   * Archives beyond the limits of the plain ZIP format would need ZIP64 records and are not laid out
+   */
+  private static final long MAX_ZIP32_VALUE = 0xFFFFFFFFL;
+
+  /**
+   * The maximum number of entries, which is the maximum length of a name as well
+   */
+  private static final int MAX_ZIP32_ENTRIES = 0xFFFF;
+
+  private final List<Entry> entries;
+
+  private final byte[] centralDirectory;
+
+  private final long centralDirectoryOffset;
+
+  private final String eTag;
+
+  private StoredZipLayout(List<Entry> entries, byte[] centralDirectory, long centralDirectoryOffset, String eTag) {
+    this.entries = entries;
+    this.centralDirectory = centralDirectory;
+    this.centralDirectoryOffset = centralDirectoryOffset;
+    this.eTag = eTag;
+  }
+
+  /**
+   * Lay out the archive of the {@link DropboxTag}s in their order
+   *
+   * @param dropboxTags the {@link DropboxTag}s
+   * @return the {@link StoredZipLayout} or null if the size, rev or CRC-32 of a file is not indexed or the archive needs ZIP64
+   */
+  static StoredZipLayout create(Iterable<DropboxTag> dropboxTags) {
+    List<Entry> entries = new ArrayList<>();
+    MessageDigest digest = Digests.create("MD5");
+    long offset = 0;
+    for (DropboxTag dropboxTag : dropboxTags) {
+      if (null == dropboxTag.name || null == dropboxTag.size || null == dropboxTag.rev || null == dropboxTag.crc32
+          || dropboxTag.size > MAX_ZIP32_VALUE || entries.size() == MAX_ZIP32_ENTRIES) {
+        return null;
+      }
+      byte[] name = dropboxTag.name.getBytes(StandardCharsets.UTF_8);
+      if (name.length > MAX_ZIP32_ENTRIES) {
+        return null;
+      }
+      Entry entry = new Entry(dropboxTag, name, offset);
+      entries.add(entry);
+      offset = entry.getEnd();
+      if (offset > MAX_ZIP32_VALUE) {
+        return null;
+      }
+      digest.update((dropboxTag.name + '\0' + dropboxTag.rev + '\0' + dropboxTag.crc32 + '\0' + entry.dosTime + '\0')
+          .getBytes(StandardCharsets.UTF_8));
+    }
+    int centralDirectorySize = 0;
+    for (Entry entry : entries) {
+      centralDirectorySize += CENTRAL_DIRECTORY_HEADER_SIZE + entry.name.length;
+    }
+    if (offset + centralDirectorySize > MAX_ZIP32_VALUE) {
+      return null;
+    }
+    byte[] centralDirectory = new byte[centralDirectorySize + END_OF_CENTRAL_DIRECTORY_SIZE];
+    int position = 0;
+    for (Entry entry : entries) {
+      position = entry.writeCentralDirectoryHeader(centralDirectory, position);
+    }
+    ZipLong.putLong(END_OF_CENTRAL_DIRECTORY_SIGNATURE, centralDirectory, position);
+    ZipShort.putShort(entries.size(), centralDirectory, position + 8);
+    ZipShort.putShort(entries.size(), centralDirectory, position + 10);
+    ZipLong.putLong(centralDirectorySize, centralDirectory, position + 12);
+    ZipLong.putLong(offset, centralDirectory, position + 16);
+    return new StoredZipLayout(entries, centralDirectory, offset, "\"" + Digests.toHex(digest.digest()) + "\"");
+  }
+
+  /**
+   * Return the length of the archive
+   *
+   * @return the length in bytes
+   */
+  long getLength() {
+    return centralDirectoryOffset + centralDirectory.length;
+  }
+
+  /**
+   * Return the strong entity tag of the archive, it changes with every name, rev or modification time of its files
+   *
+   * @return the quoted entity tag
+   */
+  String getETag() {
+    return eTag;
+  }
+
+  /**
+   * Return the parts of the archive between two offsets: the headers as bytes and the content of the files as ranges
+   *
+   * @param start the offset of the first byte
+   * @param end   the offset of the last byte, inclusive
+   * @return the {@link Slice}s in the order of the archive
+   */
+  List<Slice> slices(long start, long end) {
+    List<Slice> slices = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.getEnd() <= start) {
+        continue;
+      }
+      if (entry.offset > end) {
+        break;
+      }
+      addBytes(slices, entry.localFileHeader(), entry.offset, start, end);
+      long dataOffset = entry.getDataOffset();
+      long first = Math.max(start, dataOffset);
+      long last = Math.min(end, entry.getEnd() - 1);
+      if (first <= last) {
+        slices.add(new Slice(null, entry.dropboxTag, first - dataOffset, last - first + 1));
+      }
+    }
+    addBytes(slices, centralDirectory, centralDirectoryOffset, start, end);
+    return slices;
+  }
+
+  /**
+   * Add the part of a header between two offsets of the archive
+   *
+   * @param slices the {@link Slice}s
+   * @param bytes  the header
+   * @param offset the offset of the header in the archive
+   * @param start  the offset of the first byte
+   * @param end    the offset of the last byte, inclusive
+   */
+  private static void addBytes(List<Slice> slices, byte[] bytes, long offset, long start, long end) {
+    long first = Math.max(start, offset);
+    long last = Math.min(end, offset + bytes.length - 1);
+    if (first <= last) {
+      byte[] slice = Arrays.copyOfRange(bytes, (int) (first - offset), (int) (last - offset + 1));
+      slices.add(new Slice(slice, null, 0, slice.length));
+    }
+  }
+
+  /**
+   * A part of the archive, either bytes of a header or a range of the content of a file
+   */
+  static class Slice {
+
+    private final byte[] bytes;
+
+    private final DropboxTag dropboxTag;
+
+    private final long offset;
+
+    private final long length;
+
+    private Slice(byte[] bytes, DropboxTag dropboxTag, long offset, long length) {
+      this.bytes = bytes;
+      this.dropboxTag = dropboxTag;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Return the bytes of a header
+     *
+     * @return the bytes or null if the slice is a range of a file
+     */
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Return the {@link DropboxTag} of the file
+     *
+     * @return the {@link DropboxTag} or null if the slice is part of a header
+     */
+    DropboxTag getDropboxTag() {
+      return dropboxTag;
+    }
+
+    /**
+     * Return the offset of the range in the file
+     *
+     * @return the offset in bytes
+     */
+    long getOffset() {
+      return offset;
+    }
+
+    long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * A STORED entry of the archive
+   */
+  private static class Entry {
+
+    private final DropboxTag dropboxTag;
+
+    private final byte[] name;
+
+    private final long offset;
+
+    private final long dosTime;
+
+    private Entry(DropboxTag dropboxTag, byte[] name, long offset) {
+      this.dropboxTag = dropboxTag;
+      this.name = name;
+      this.offset = offset;
+      this.dosTime = ZipLong.getValue(ZipUtil.toDosTime(null == dropboxTag.serverModified ? 0 : dropboxTag.serverModified.getTime()));
+    }
+
+    long getDataOffset() {
+      return offset + LOCAL_FILE_HEADER_SIZE + name.length;
+    }
+
+    long getEnd() {
+      return getDataOffset() + dropboxTag.size;
+    }
+
+    /**
+     * Create the local file header, it is only needed while the entry is written
+     *
+     * @return the bytes of the header
+     */
+    byte[] localFileHeader() {
+      byte[] header = new byte[LOCAL_FILE_HEADER_SIZE + name.length];
+      ZipLong.putLong(ZipLong.LFH_SIG.getValue(), header, 0);
+      ZipShort.putShort(VERSION_NEEDED_TO_EXTRACT, header, 4);
+      ZipShort.putShort(UTF8_FLAG, header, 6);
+      ZipShort.putShort(STORED, header, 8);
+      ZipLong.putLong(dosTime, header, 10);
+      ZipLong.putLong(dropboxTag.crc32, header, 14);
+      ZipLong.putLong(dropboxTag.size, header, 18);
+      ZipLong.putLong(dropboxTag.size, header, 22);
+      ZipShort.putShort(name.length, header, 26);
+      System.arraycopy(name, 0, header, LOCAL_FILE_HEADER_SIZE, name.length);
+      return header;
+    }
+
+    /**
+     * Write the central directory header of the entry
+     *
+     * @param buffer   the buffer
+     * @param position the position of the header in the buffer
+     * @return the position after the header
+     */
+    int writeCentralDirectoryHeader(byte[] buffer, int position) {
+      ZipLong.putLong(ZipLong.CFH_SIG.getValue(), buffer, position);
+      ZipShort.putShort(VERSION_MADE_BY, buffer, position + 4);
+      ZipShort.putShort(VERSION_NEEDED_TO_EXTRACT, buffer, position + 6);
+      ZipShort.putShort(UTF8_FLAG, buffer, position + 8);
+      ZipShort.putShort(STORED, buffer, position + 10);
+      ZipLong.putLong(dosTime, buffer, position + 12);
+      ZipLong.putLong(dropboxTag.crc32, buffer, position + 16);
+      ZipLong.putLong(dropboxTag.size, buffer, position + 20);
+      ZipLong.putLong(dropboxTag.size, buffer, position + 24);
+      ZipShort.putShort(name.length, buffer, position + 28);
+      ZipLong.putLong(offset, buffer, position + 42);
+      System.arraycopy(name, 0, buffer, position + CENTRAL_DIRECTORY_HEADER_SIZE, name.length);
+      return position + CENTRAL_DIRECTORY_HEADER_SIZE + name.length;
+    }
+  }
+}
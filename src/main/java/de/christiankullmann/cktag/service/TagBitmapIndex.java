@@ -0,0 +1,443 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.MapSolrParams;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * An optional in-memory read index answering tag queries without a request to Solr, Solr stays the source of truth.
+ * <p>
+ * Every {@link DropboxTag} gets a dense int ordinal, every tag a compressed {@link RoaringBitmap} of the ordinals
+ * carrying it, so a boolean {@link TagExpression} is a few bitmap operations.
+ * The index is loaded from Solr in the background at startup and reloaded periodically, which also compacts the
+ * ordinals of deleted entries. In between it follows the writes through this service as a {@link DropboxTagWriteListener}.
+ * The ordinals of a load are assigned in id order, so a page of matches is read off the bitmap without sorting them.
+ * Only the entries added since the load get ordinals beyond, they are sorted and merged into the page.
+ * Writes arriving while a reload is running are replayed onto the reloaded index before it replaces the current one.
+ * <p>
+ * Exact bitmap matches equal Solr's results only for a <code>string</code> tags field, so the index is disabled by default.
+ */
+@Component
+@Slf4j
+public class TagBitmapIndex implements DropboxTagWriteListener {
+
+  private static final Comparator<DropboxTag> BY_ID = Comparator.comparing(dropboxTag -> dropboxTag.id);
+
+  private final SolrClientService clientService;
+
+  private final String collectionName;
+
+  private final boolean enabled;
+
+  private final long refreshInterval;
+
+  private final int pageSize;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ScheduledExecutorService refreshScheduler;
+
+  private Snapshot snapshot;
+
+  private List<Consumer<Snapshot>> pendingWrites;
+
+  /**
+   * Create a new {@link TagBitmapIndex}
+   *
+   * @param clientService   the {@link SolrClientService}
+   * @param collectionName  the collectionName
+   * @param enabled         whether tag queries are answered from the index
+   * @param refreshInterval the time in seconds between two reloads from Solr
+   * @param pageSize        the number of rows per page when the index is loaded
+   */
+  @Autowired
+  public TagBitmapIndex(SolrClientService clientService,
+                        @Value("${solr.tag.collection}") String collectionName,
+                        @Value("${solr.bitmap.enabled}") boolean enabled,
+                        @Value("${solr.bitmap.refreshInterval}") long refreshInterval,
+                        @Value("${solr.cursor.pageSize}") int pageSize) {
+    Assert.notNull(clientService, "SolrClientService must not be null");
+    Assert.isTrue(refreshInterval > 0, "refreshInterval must be positive");
+    Assert.isTrue(pageSize > 0, "pageSize must be positive");
+    this.clientService = clientService;
+    this.collectionName = collectionName;
+    this.enabled = enabled;
+    this.refreshInterval = refreshInterval;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Load the index in the background, so the startup does not depend on Solr being available
+   */
+  @PostConstruct
+  public void init() {
+    if (enabled) {
+      refreshScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("tag-bitmap-"));
+      refreshScheduler.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void preDestroy() {
+    if (null != refreshScheduler) {
+      refreshScheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Find the DropboxTags that correspond with the provided tags-String, ordered by id like the Solr query
+   *
+   * @param tags  the tags that are to be looked for
+   * @param start the offset
+   * @param rows  the number of entries
+   * @return the {@link DropboxTag}s, which must not be modified, or null if the index cannot answer the query
+   */
+  public List<DropboxTag> findAllByTags(String tags, String start, String rows) {
+    int offset;
+    int limit;
+    try {
+      offset = Integer.parseInt(start);
+      limit = Integer.parseInt(rows);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (offset < 0 || limit < 0) {
+      return null;
+    }
+    return find(tags, offset, limit);
+  }
+
+  /**
+   * Find all DropboxTags that correspond with the provided tags-String, ordered by id like the Solr query
+   *
+   * @param tags the tags that are to be looked for
+   * @return the {@link DropboxTag}s, which must not be modified, or null if the index cannot answer the query
+   */
+  public List<DropboxTag> findAllByTags(String tags) {
+    return find(tags, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find a page of the DropboxTags that correspond with the provided tags-String, ordered by id like the Solr query
+   *
+   * @param tags   the tags that are to be looked for
+   * @param offset the offset
+   * @param limit  the number of entries
+   * @return the {@link DropboxTag}s, which must not be modified, or null if the index cannot answer the query
+   */
+  private List<DropboxTag> find(String tags, int offset, int limit) {
+    if (!enabled) {
+      return null;
+    }
+    TagExpression expression = TagExpression.parse(tags);
+    if (null == expression) {
+      log.debug("Tag query [{}] is left to Solr", tags);
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      if (null == snapshot) {
+        return null;
+      }
+      RoaringBitmap matches = expression.evaluate(snapshot.tagBitmaps::get, snapshot.tagged, snapshot.all);
+      return snapshot.select(matches, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void onWrite(String collectionName, DropboxTag previous, DropboxTag current) {
+    if (!enabled || !this.collectionName.equals(collectionName)) {
+      return;
+    }
+    applyWrite(target -> target.apply(previous, current));
+  }
+
+  @Override
+  public void onUpdate(String collectionName, String id, DropboxTag changes, Collection<String> addedTags, Collection<String> removedTags) {
+    if (!enabled || !this.collectionName.equals(collectionName)) {
+      return;
+    }
+    applyWrite(target -> target.update(id, changes, addedTags, removedTags));
+  }
+
+  /**
+   * Replace the index with all {@link DropboxTag}s read from Solr page by page
+   */
+  void refresh() {
+    lock.writeLock().lock();
+    try {
+      pendingWrites = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    Snapshot loaded = new Snapshot();
+    try {
+      DropboxTagCursorIterator iterator = new DropboxTagCursorIterator(this::queryPage, pageSize);
+      while (iterator.hasNext()) {
+        loaded.put(iterator.next());
+      }
+      // Solr returns the entries sorted by id
+      loaded.sortedCount = loaded.entries.size();
+    } catch (RuntimeException e) {
+      lock.writeLock().lock();
+      try {
+        pendingWrites = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      throw e;
+    }
+
+    lock.writeLock().lock();
+    try {
+      pendingWrites.forEach(write -> write.accept(loaded));
+      pendingWrites = null;
+      snapshot = loaded;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    log.debug("Loaded [{}] DropboxTags with [{}] tags into the bitmap index", loaded.all.getCardinality(), loaded.tagBitmaps.size());
+  }
+
+  /**
+   * Apply a write to the current index and remember it for the reload that may be running
+   *
+   * @param write the write
+   */
+  private void applyWrite(Consumer<Snapshot> write) {
+    lock.writeLock().lock();
+    try {
+      if (null != snapshot) {
+        write.accept(snapshot);
+      }
+      if (null != pendingWrites) {
+        pendingWrites.add(write);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      log.warn("Unable to load the DropboxTags into the bitmap index: [{}]", e.getMessage());
+    }
+  }
+
+  private DropboxTagPage queryPage(String cursorMark, int rows) {
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put("q", "*:*");
+    queryParamMap.put("fl", "id, name, path, tags, _version_, file_id, size, rev, content_hash, server_modified, crc32");
+    queryParamMap.put("sort", "id asc");
+    queryParamMap.put("rows", Integer.toString(rows));
+    queryParamMap.put(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    final QueryResponse response = clientService.queryClient(collectionName, queryParams);
+    List<DropboxTag> dropboxTags = response.getResults().stream()
+        .map(DropboxTagSolrService::toDropboxTag)
+        .collect(Collectors.toList());
+    return new DropboxTagPage(dropboxTags, cursorMark, response.getNextCursorMark());
+  }
+
+  /**
+   * The ordinals, entries and bitmaps of one load of the index, guarded by the {@link #lock}
+   */
+  private static class Snapshot {
+
+    private final Map<String, Integer> ordinals = new HashMap<>();
+
+    private final List<DropboxTag> entries = new ArrayList<>();
+
+    private final Map<String, RoaringBitmap> tagBitmaps = new HashMap<>();
+
+    private final RoaringBitmap tagged = new RoaringBitmap();
+
+    private final RoaringBitmap all = new RoaringBitmap();
+
+    /**
+     * The number of ordinals assigned in id order by the load, entries added since have the ordinals beyond
+     */
+    private int sortedCount;
+
+    void apply(DropboxTag previous, DropboxTag current) {
+      if (null != current) {
+        put(current);
+      } else if (null != previous) {
+        remove(previous.id);
+      }
+    }
+
+    /**
+     * Return a page of the matching entries in id order. The matches of the load are read off the bitmap in order,
+     * the matches added since are sorted and merged in.
+     *
+     * @param matches the ordinals of the matching entries
+     * @param offset  the offset
+     * @param limit   the number of entries
+     * @return the page of {@link DropboxTag}s
+     */
+    List<DropboxTag> select(RoaringBitmap matches, int offset, int limit) {
+      List<DropboxTag> added = new ArrayList<>();
+      if (!matches.isEmpty() && matches.last() >= sortedCount) {
+        RoaringBitmap addedMatches = matches.clone();
+        addedMatches.remove(0L, sortedCount);
+        IntIterator addedOrdinals = addedMatches.getIntIterator();
+        while (addedOrdinals.hasNext()) {
+          added.add(entries.get(addedOrdinals.next()));
+        }
+        added.sort(BY_ID);
+      }
+
+      List<DropboxTag> page = new ArrayList<>();
+      PeekableIntIterator loadedOrdinals = matches.getIntIterator();
+      int skip = offset;
+      if (added.isEmpty()) {
+        if (offset >= matches.getCardinality()) {
+          return page;
+        }
+        loadedOrdinals.advanceIfNeeded(matches.select(offset));
+        skip = 0;
+      }
+      int addedIndex = 0;
+      while (page.size() < limit) {
+        DropboxTag loadedEntry = loadedOrdinals.hasNext() && loadedOrdinals.peekNext() < sortedCount
+            ? entries.get(loadedOrdinals.peekNext()) : null;
+        DropboxTag addedEntry = addedIndex < added.size() ? added.get(addedIndex) : null;
+        DropboxTag next;
+        if (null == loadedEntry && null == addedEntry) {
+          break;
+        } else if (null == loadedEntry || (null != addedEntry && BY_ID.compare(addedEntry, loadedEntry) < 0)) {
+          next = addedEntry;
+          addedIndex++;
+        } else {
+          next = loadedEntry;
+          loadedOrdinals.next();
+        }
+        if (skip > 0) {
+          skip--;
+        } else {
+          page.add(next);
+        }
+      }
+      return page;
+    }
+
+    /**
+     * Add a {@link DropboxTag}, an entry with the same id is replaced under its ordinal, so it keeps its place in the
+     * id order, a new entry gets a new ordinal
+     *
+     * @param dropboxTag the {@link DropboxTag}
+     */
+    void put(DropboxTag dropboxTag) {
+      if (null == dropboxTag.id) {
+        return;
+      }
+      List<String> tags = null == dropboxTag.tags ? Collections.emptyList() : new ArrayList<>(new LinkedHashSet<>(dropboxTag.tags));
+      DropboxTag entry = new DropboxTag(dropboxTag.id, dropboxTag.name, dropboxTag.path, tags);
+      entry.version = dropboxTag.version;
+      entry.copyFileMetadata(dropboxTag);
+      Integer ordinal = ordinals.get(dropboxTag.id);
+      if (null == ordinal) {
+        ordinal = entries.size();
+        entries.add(entry);
+        ordinals.put(dropboxTag.id, ordinal);
+        all.add(ordinal);
+      } else {
+        clearTags(ordinal, entries.set(ordinal, entry).tags);
+      }
+      if (!tags.isEmpty()) {
+        tagged.add(ordinal);
+      }
+      for (String tag : tags) {
+        tagBitmaps.computeIfAbsent(tag, key -> new RoaringBitmap()).add(ordinal);
+      }
+    }
+
+    /**
+     * Apply an atomic update to a {@link DropboxTag} like Solr does, an entry that is not in the index is left to the next load
+     *
+     * @param id          the id of the {@link DropboxTag}
+     * @param changes     the fields that have been replaced and the new version
+     * @param addedTags   the tags that have been added unless the entry carried them already
+     * @param removedTags the tags that have been removed
+     */
+    void update(String id, DropboxTag changes, Collection<String> addedTags, Collection<String> removedTags) {
+      Integer ordinal = ordinals.get(id);
+      if (null == ordinal) {
+        return;
+      }
+      DropboxTag entry = entries.get(ordinal);
+      LinkedHashSet<String> tags = new LinkedHashSet<>(null == changes.tags ? entry.tags : changes.tags);
+      tags.addAll(addedTags);
+      tags.removeAll(removedTags);
+      DropboxTag updated = new DropboxTag(id,
+          null == changes.name ? entry.name : changes.name,
+          null == changes.path ? entry.path : changes.path,
+          new ArrayList<>(tags));
+      updated.version = null == changes.version ? entry.version : changes.version;
+      // a new path replaces the metadata of the file like a sync does, or drops it
+      updated.copyFileMetadata(null == changes.path && null == changes.rev ? entry : changes);
+      put(updated);
+    }
+
+    /**
+     * Remove a {@link DropboxTag}, its ordinal is not reused before the next load
+     *
+     * @param id the id of the {@link DropboxTag}
+     */
+    void remove(String id) {
+      Integer ordinal = ordinals.remove(id);
+      if (null == ordinal) {
+        return;
+      }
+      DropboxTag removed = entries.set(ordinal, null);
+      all.remove(ordinal);
+      clearTags(ordinal, removed.tags);
+    }
+
+    private void clearTags(int ordinal, List<String> tags) {
+      tagged.remove(ordinal);
+      for (String tag : tags) {
+        RoaringBitmap bitmap = tagBitmaps.get(tag);
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) {
+          tagBitmaps.remove(tag);
+        }
+      }
+    }
+  }
+}
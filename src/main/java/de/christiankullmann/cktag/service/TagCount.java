@@ -0,0 +1,16 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A tag and the number of {@link de.christiankullmann.cktag.solr.DropboxTag}s carrying it
+ */
+@Getter
+@AllArgsConstructor
+public class TagCount {
+
+  private final String tag;
+
+  private final long count;
+}
@@ -0,0 +1,235 @@
+package de.christiankullmann.cktag.service;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A boolean tag query as it is sent to Solr as <code>tags:(...)</code>, evaluated on bitmaps of document ordinals.
+ * <p>
+ * Only the subset of the Lucene query syntax with an unambiguous meaning is supported: tags, quoted tags, <code>*</code>,
+ * parentheses and the operators <code>AND</code>, <code>OR</code>, <code>NOT</code>, <code>&amp;&amp;</code>,
+ * <code>||</code>, <code>!</code> and the prefix <code>-</code>. Adjacent clauses are joined by <code>OR</code>.
+ * {@link #parse(String)} returns null for everything else, including groups mixing <code>AND</code> with <code>OR</code>,
+ * whose meaning in Lucene does not follow operator precedence. These queries are left to Solr.
+ */
+abstract class TagExpression {
+
+  private static final String ANY_TAG = "*";
+
+  private static final String RESERVED_CHARACTERS = "+-&|!(){}[]^\"~*?:\\/";
+
+  /**
+   * Evaluate the expression
+   *
+   * @param tagBitmaps returns the ordinals of the documents carrying a tag, null if there are none
+   * @param tagged     the ordinals of all documents carrying at least one tag
+   * @param all        the ordinals of all documents
+   * @return a new {@link RoaringBitmap} of the matching ordinals
+   */
+  abstract RoaringBitmap evaluate(Function<String, RoaringBitmap> tagBitmaps, RoaringBitmap tagged, RoaringBitmap all);
+
+  /**
+   * Parse a tag query
+   *
+   * @param tags the tag query
+   * @return the {@link TagExpression} or null if the query is not supported
+   */
+  static TagExpression parse(String tags) {
+    List<String> tokens = tokenize(tags);
+    if (null == tokens) {
+      return null;
+    }
+    Parser parser = new Parser(tokens);
+    Group group = parser.group(true);
+    return null == group || parser.position != tokens.size() ? null : group;
+  }
+
+  /**
+   * Split a tag query into tags, parentheses and operators. Quoted tags are returned with their quotes.
+   *
+   * @param tags the tag query
+   * @return the tokens or null if the query contains unsupported syntax
+   */
+  private static List<String> tokenize(String tags) {
+    List<String> tokens = new ArrayList<>();
+    int i = 0;
+    while (i < tags.length()) {
+      char c = tags.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(' || c == ')') {
+        tokens.add(String.valueOf(c));
+        i++;
+      } else if (c == '"') {
+        int end = tags.indexOf('"', i + 1);
+        if (end <= i + 1 || tags.substring(i + 1, end).indexOf('\\') >= 0) {
+          return null;
+        }
+        tokens.add(tags.substring(i, end + 1));
+        i = end + 1;
+      } else if ((c == '-' || c == '!') && i + 1 < tags.length() && !Character.isWhitespace(tags.charAt(i + 1))) {
+        tokens.add("NOT");
+        i++;
+      } else {
+        int end = i;
+        while (end < tags.length() && !Character.isWhitespace(tags.charAt(end)) && "()\"".indexOf(tags.charAt(end)) < 0) {
+          end++;
+        }
+        String token = tags.substring(i, end);
+        if ("&&".equals(token)) {
+          token = "AND";
+        } else if ("||".equals(token)) {
+          token = "OR";
+        } else if ("!".equals(token)) {
+          token = "NOT";
+        } else if (!ANY_TAG.equals(token) && token.chars().anyMatch(ch -> RESERVED_CHARACTERS.indexOf(ch) >= 0)) {
+          return null;
+        }
+        tokens.add(token);
+        i = end;
+      }
+    }
+    return tokens;
+  }
+
+  private static class Parser {
+
+    private final List<String> tokens;
+
+    private int position;
+
+    Parser(List<String> tokens) {
+      this.tokens = tokens;
+    }
+
+    /**
+     * group := clause ((AND | OR)? clause)*
+     *
+     * @param topLevel whether the group is the whole query, only there a group of negated clauses matches all other documents
+     * @return the {@link Group} or null if it is not supported
+     */
+    Group group(boolean topLevel) {
+      List<TagExpression> positives = new ArrayList<>();
+      List<TagExpression> negatives = new ArrayList<>();
+      boolean conjunction = false;
+      boolean disjunction = false;
+      boolean first = true;
+      while (position < tokens.size() && !")".equals(tokens.get(position))) {
+        if (!first) {
+          String connector = tokens.get(position);
+          if ("AND".equals(connector)) {
+            conjunction = true;
+            position++;
+          } else if ("OR".equals(connector)) {
+            disjunction = true;
+            position++;
+          } else {
+            disjunction = true;
+          }
+        }
+        boolean negated = position < tokens.size() && "NOT".equals(tokens.get(position));
+        if (negated) {
+          position++;
+        }
+        TagExpression clause = clause();
+        if (null == clause) {
+          return null;
+        }
+        (negated ? negatives : positives).add(clause);
+        first = false;
+      }
+      if (first || (conjunction && disjunction) || (positives.isEmpty() && !topLevel)) {
+        return null;
+      }
+      return new Group(positives, negatives, conjunction);
+    }
+
+    /**
+     * clause := tag | "tag" | * | ( group )
+     *
+     * @return the {@link TagExpression} or null if it is not supported
+     */
+    TagExpression clause() {
+      if (position >= tokens.size()) {
+        return null;
+      }
+      String token = tokens.get(position++);
+      if ("(".equals(token)) {
+        Group group = group(false);
+        if (null == group || position >= tokens.size() || !")".equals(tokens.get(position))) {
+          return null;
+        }
+        position++;
+        return group;
+      }
+      if (")".equals(token) || "AND".equals(token) || "OR".equals(token) || "NOT".equals(token)) {
+        return null;
+      }
+      if (token.startsWith("\"")) {
+        return new Tag(token.substring(1, token.length() - 1));
+      }
+      return ANY_TAG.equals(token) ? new AnyTag() : new Tag(token);
+    }
+  }
+
+  private static class Tag extends TagExpression {
+
+    private final String tag;
+
+    Tag(String tag) {
+      this.tag = tag;
+    }
+
+    @Override
+    RoaringBitmap evaluate(Function<String, RoaringBitmap> tagBitmaps, RoaringBitmap tagged, RoaringBitmap all) {
+      RoaringBitmap bitmap = tagBitmaps.apply(tag);
+      return null == bitmap ? new RoaringBitmap() : bitmap.clone();
+    }
+  }
+
+  private static class AnyTag extends TagExpression {
+
+    @Override
+    RoaringBitmap evaluate(Function<String, RoaringBitmap> tagBitmaps, RoaringBitmap tagged, RoaringBitmap all) {
+      return tagged.clone();
+    }
+  }
+
+  private static class Group extends TagExpression {
+
+    private final List<TagExpression> positives;
+
+    private final List<TagExpression> negatives;
+
+    private final boolean conjunction;
+
+    Group(List<TagExpression> positives, List<TagExpression> negatives, boolean conjunction) {
+      this.positives = positives;
+      this.negatives = negatives;
+      this.conjunction = conjunction;
+    }
+
+    @Override
+    RoaringBitmap evaluate(Function<String, RoaringBitmap> tagBitmaps, RoaringBitmap tagged, RoaringBitmap all) {
+      RoaringBitmap result;
+      if (positives.isEmpty()) {
+        result = all.clone();
+      } else if (positives.size() == 1) {
+        result = positives.get(0).evaluate(tagBitmaps, tagged, all);
+      } else {
+        RoaringBitmap[] bitmaps = positives.stream()
+            .map(positive -> positive.evaluate(tagBitmaps, tagged, all))
+            .toArray(RoaringBitmap[]::new);
+        result = conjunction ? FastAggregation.and(bitmaps) : FastAggregation.or(bitmaps);
+      }
+      for (TagExpression negative : negatives) {
+        result.andNot(negative.evaluate(tagBitmaps, tagged, all));
+      }
+      return result;
+    }
+  }
+}
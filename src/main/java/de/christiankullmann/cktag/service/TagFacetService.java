@@ -0,0 +1,117 @@
+package de.christiankullmann.cktag.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.christiankullmann.cktag.controller.TagController;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.MapSolrParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.hateoas.Resources;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+/**
+ * Counts the {@link de.christiankullmann.cktag.solr.DropboxTag}s per tag with a facet on the multi-valued <code>tags</code> field.
+ * The counts are cached for a short time, so tag clouds do not query Solr on every request.
+ */
+@Service
+@Slf4j
+public class TagFacetService {
+
+  private static final String TAGS_FIELD = "tags";
+
+  private final SolrClientService clientService;
+
+  private final String collectionName;
+
+  private final Cache<FacetKey, List<TagCount>> cache;
+
+  /**
+   * Create a new {@link TagFacetService}
+   *
+   * @param clientService  the {@link SolrClientService}
+   * @param collectionName the collectionName
+   * @param cacheTtl       the time in seconds the counts are cached
+   * @param cacheMaxSize   the maximum number of cached facet requests
+   */
+  @Autowired
+  public TagFacetService(SolrClientService clientService,
+                         @Value("${solr.tag.collection}") String collectionName,
+                         @Value("${solr.facet.cache.ttl}") long cacheTtl,
+                         @Value("${solr.facet.cache.maxSize}") long cacheMaxSize) {
+    Assert.notNull(clientService, "SolrClientService must not be null");
+    this.clientService = clientService;
+    this.collectionName = collectionName;
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(cacheMaxSize)
+        .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Return the most frequent tags with the number of DropboxTags carrying them
+   *
+   * @param prefix only count tags starting with the prefix, may be empty
+   * @param limit  the maximum number of tags, -1 for all
+   * @return a {@link Resources} of {@link TagCount}s ordered by descending count
+   */
+  public Resources<TagCount> getTagCounts(String prefix, int limit) {
+    List<TagCount> tagCounts = cache.get(new FacetKey(prefix, limit), this::queryTagCounts);
+    return new Resources<>(tagCounts, linkTo(methodOn(TagController.class).getTagCounts(prefix, limit)).withSelfRel());
+  }
+
+  /**
+   * Query the facet counts from Solr, no documents are returned
+   *
+   * @param key the {@link FacetKey}
+   * @return the {@link TagCount}s
+   */
+  private List<TagCount> queryTagCounts(FacetKey key) {
+    log.debug("Querying tag counts with prefix [{}], limit [{}]", key.prefix, key.limit);
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put("q", "*:*");
+    queryParamMap.put("rows", "0");
+    queryParamMap.put(FacetParams.FACET, "true");
+    queryParamMap.put(FacetParams.FACET_FIELD, TAGS_FIELD);
+    queryParamMap.put(FacetParams.FACET_MINCOUNT, "1");
+    queryParamMap.put(FacetParams.FACET_SORT, FacetParams.FACET_SORT_COUNT);
+    queryParamMap.put(FacetParams.FACET_LIMIT, Integer.toString(key.limit));
+    if (!StringUtils.isEmpty(key.prefix)) {
+      queryParamMap.put(FacetParams.FACET_PREFIX, key.prefix);
+    }
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    final QueryResponse response = clientService.queryClient(collectionName, queryParams);
+    FacetField facetField = response.getFacetField(TAGS_FIELD);
+    if (null == facetField || null == facetField.getValues()) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(facetField.getValues().stream()
+        .map(count -> new TagCount(count.getName(), count.getCount()))
+        .collect(Collectors.toList()));
+  }
+
+  @AllArgsConstructor
+  @EqualsAndHashCode
+  private static class FacetKey {
+    private final String prefix;
+    private final int limit;
+  }
+}
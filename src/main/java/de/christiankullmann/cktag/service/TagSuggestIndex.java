@@ -0,0 +1,200 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.TermsResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.params.TermsParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory prefix index of all tags with the number of {@link DropboxTag}s carrying them, for type-ahead suggestions.
+ * <p>
+ * The index is a sorted map from the lower case tag to its count, a prefix lookup is a range scan that does not touch Solr.
+ * It is loaded from Solr's terms component in the background at startup and reloaded periodically, in between
+ * it follows the writes through this service as a {@link DropboxTagWriteListener}.
+ * Writes only move the counts of the tags an entry gained or lost, writes racing each other on the same entry may let
+ * the counts drift until the next reload.
+ */
+@Component
+@Slf4j
+public class TagSuggestIndex implements DropboxTagWriteListener {
+
+  private static final String TAGS_FIELD = "tags";
+
+  private static final Comparator<TagCount> BY_COUNT = Comparator.comparingLong(TagCount::getCount)
+      .thenComparing(TagCount::getTag, Comparator.reverseOrder());
+
+  private final SolrClientService clientService;
+
+  private final String collectionName;
+
+  private final long refreshInterval;
+
+  private final ScheduledExecutorService refreshScheduler;
+
+  private volatile ConcurrentSkipListMap<String, Suggestion> suggestions = new ConcurrentSkipListMap<>();
+
+  /**
+   * Create a new {@link TagSuggestIndex}
+   *
+   * @param clientService   the {@link SolrClientService}
+   * @param collectionName  the collectionName
+   * @param refreshInterval the time in seconds between two reloads from Solr
+   */
+  @Autowired
+  public TagSuggestIndex(SolrClientService clientService,
+                         @Value("${solr.tag.collection}") String collectionName,
+                         @Value("${solr.suggest.refreshInterval}") long refreshInterval) {
+    Assert.notNull(clientService, "SolrClientService must not be null");
+    Assert.isTrue(refreshInterval > 0, "refreshInterval must be positive");
+    this.clientService = clientService;
+    this.collectionName = collectionName;
+    this.refreshInterval = refreshInterval;
+    this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("tag-suggest-"));
+  }
+
+  /**
+   * Load the index in the background, so the startup does not depend on Solr being available
+   */
+  @PostConstruct
+  public void init() {
+    refreshScheduler.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void preDestroy() {
+    refreshScheduler.shutdownNow();
+  }
+
+  /**
+   * Return the most frequent tags starting with the prefix, ignoring case
+   *
+   * @param prefix the prefix
+   * @param limit  the maximum number of tags
+   * @return the {@link TagCount}s, the most frequent first
+   */
+  public List<TagCount> suggest(String prefix, int limit) {
+    if (limit <= 0) {
+      return Collections.emptyList();
+    }
+    String from = normalize(prefix);
+    Collection<Suggestion> candidates = from.isEmpty()
+        ? suggestions.values()
+        : suggestions.subMap(from, true, from + Character.MAX_VALUE, false).values();
+    PriorityQueue<TagCount> mostFrequent = new PriorityQueue<>(limit + 1, BY_COUNT);
+    for (Suggestion suggestion : candidates) {
+      long count = suggestion.count.get();
+      if (count <= 0) {
+        continue;
+      }
+      mostFrequent.add(new TagCount(suggestion.tag, count));
+      if (mostFrequent.size() > limit) {
+        mostFrequent.poll();
+      }
+    }
+    List<TagCount> result = new ArrayList<>(mostFrequent);
+    result.sort(BY_COUNT.reversed());
+    return result;
+  }
+
+  @Override
+  public void onWrite(String collectionName, DropboxTag previous, DropboxTag current) {
+    if (!this.collectionName.equals(collectionName)) {
+      return;
+    }
+    if (null != previous && null != previous.tags) {
+      previous.tags.forEach(tag -> add(tag, -1));
+    }
+    if (null != current && null != current.tags) {
+      current.tags.forEach(tag -> add(tag, 1));
+    }
+  }
+
+  @Override
+  public void onUpdate(String collectionName, String id, DropboxTag changes, Collection<String> addedTags, Collection<String> removedTags) {
+    if (!this.collectionName.equals(collectionName)) {
+      return;
+    }
+    addedTags.forEach(tag -> add(tag, 1));
+    removedTags.forEach(tag -> add(tag, -1));
+  }
+
+  /**
+   * Replace the index with the terms and document frequencies of the tags field
+   */
+  void refresh() {
+    final Map<String, String> queryParamMap = new HashMap<>();
+    queryParamMap.put(CommonParams.QT, "/terms");
+    queryParamMap.put(TermsParams.TERMS, "true");
+    queryParamMap.put(TermsParams.TERMS_FIELD, TAGS_FIELD);
+    queryParamMap.put(TermsParams.TERMS_LIMIT, "-1");
+    queryParamMap.put(TermsParams.TERMS_SORT, TermsParams.TERMS_SORT_INDEX);
+    MapSolrParams queryParams = new MapSolrParams(queryParamMap);
+
+    final QueryResponse response = clientService.queryClient(collectionName, queryParams);
+    TermsResponse termsResponse = response.getTermsResponse();
+    List<TermsResponse.Term> terms = null == termsResponse ? null : termsResponse.getTerms(TAGS_FIELD);
+    ConcurrentSkipListMap<String, Suggestion> loaded = new ConcurrentSkipListMap<>();
+    if (null != terms) {
+      for (TermsResponse.Term term : terms) {
+        loaded.computeIfAbsent(normalize(term.getTerm()), key -> new Suggestion(term.getTerm())).count.addAndGet(term.getFrequency());
+      }
+    }
+    suggestions = loaded;
+    log.debug("Loaded [{}] tags into the suggest index", loaded.size());
+  }
+
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      log.warn("Unable to load the tags into the suggest index: [{}]", e.getMessage());
+    }
+  }
+
+  private void add(String tag, long delta) {
+    suggestions.computeIfAbsent(normalize(tag), key -> new Suggestion(tag)).count.addAndGet(delta);
+  }
+
+  private static String normalize(String tag) {
+    return tag.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * A tag as it has been seen first and the number of {@link DropboxTag}s carrying it in any spelling
+   */
+  private static class Suggestion {
+
+    private final String tag;
+
+    private final AtomicLong count = new AtomicLong();
+
+    Suggestion(String tag) {
+      this.tag = tag;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Tags to add to and to remove from one or many {@link de.christiankullmann.cktag.solr.DropboxTag}s with an atomic update.
+ * Tags are added only if an entry does not carry them yet, the removals are applied after the additions.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TagUpdate {
+
+  /**
+   * The ids of the entries, only for updates of many entries
+   */
+  private List<String> ids;
+
+  private List<String> add;
+
+  private List<String> remove;
+
+  /**
+   * The <code>_version_</code> the entry must still have, only for updates of one entry
+   */
+  private Long version;
+}
@@ -0,0 +1,16 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * The outcome of a {@link TagUpdate}, the new <code>_version_</code> of every updated entry by id
+ */
+@Getter
+@AllArgsConstructor
+public class TagUpdateResult {
+
+  private final Map<String, Long> versions;
+}
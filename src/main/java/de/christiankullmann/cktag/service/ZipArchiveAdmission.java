@@ -0,0 +1,296 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.exception.ArchiveBudgetExceededException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The service-wide budget of zip-archives: the number of archives built at the same time and the bytes of their files
+ * in flight, which is reserved from the size calculated before anything is downloaded.
+ * <p>
+ * Both are fair {@link Semaphore}s, so archives are admitted in the order they arrive. An archive waits for its turn
+ * up to the admission timeout and is rejected with an {@link ArchiveBudgetExceededException} afterwards. The bytes are
+ * counted in KiB, an archive larger than the whole budget reserves all of it and runs alone.
+ */
+@Component
+@Slf4j
+public class ZipArchiveAdmission {
+
+  /**
+   * The request attribute holding the {@link PermitHolder} of the zip-archive streamed to the request
+   */
+  private static final String PERMIT_ATTRIBUTE = ZipArchiveAdmission.class.getName() + ".permit";
+
+  private static final int KIB = 1024;
+
+  private final int maxKib;
+
+  private final long timeout;
+
+  private final long retryAfter;
+
+  private final Semaphore builds;
+
+  private final Semaphore bytes;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private final Counter rejected;
+
+  /**
+   * Create a new {@link ZipArchiveAdmission}
+   *
+   * @param maxBytes      the maximum size in bytes of the files of all zip-archives in flight
+   * @param maxBuilds     the maximum number of zip-archives built at the same time
+   * @param timeout       the time in milliseconds a zip-archive waits for the budget, 0 to reject it at once
+   * @param retryAfter    the time in seconds a rejected client is asked to wait before it tries again
+   * @param meterRegistry the {@link MeterRegistry} the use of the budget is reported to
+   */
+  @Autowired
+  public ZipArchiveAdmission(@Value("${zip.admission.maxBytes}") long maxBytes,
+                             @Value("${zip.admission.maxBuilds}") int maxBuilds,
+                             @Value("${zip.admission.timeout}") long timeout,
+                             @Value("${zip.admission.retryAfter}") long retryAfter,
+                             MeterRegistry meterRegistry) {
+    Assert.isTrue(maxBytes >= KIB, "maxBytes must be at least 1024");
+    Assert.isTrue(maxBuilds > 0, "maxBuilds must be positive");
+    Assert.isTrue(timeout >= 0, "timeout must not be negative");
+    Assert.notNull(meterRegistry, "meterRegistry must not be null");
+    this.maxKib = (int) Math.min(Integer.MAX_VALUE, maxBytes / KIB);
+    this.timeout = timeout;
+    this.retryAfter = retryAfter;
+    this.builds = new Semaphore(maxBuilds, true);
+    this.bytes = new Semaphore(maxKib, true);
+    Gauge.builder("cktag.zip.admission.builds.active", builds, semaphore -> maxBuilds - semaphore.availablePermits())
+        .description("Number of zip-archives being built")
+        .register(meterRegistry);
+    Gauge.builder("cktag.zip.admission.builds.limit", builds, semaphore -> maxBuilds)
+        .description("Maximum number of zip-archives built at the same time")
+        .register(meterRegistry);
+    Gauge.builder("cktag.zip.admission.bytes.reserved", bytes, semaphore -> (maxKib - semaphore.availablePermits()) * (double) KIB)
+        .description("Bytes of files reserved by the zip-archives being built")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("cktag.zip.admission.bytes.limit", bytes, semaphore -> maxKib * (double) KIB)
+        .description("Maximum bytes of files of all zip-archives being built")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("cktag.zip.admission.waiting", waiting, AtomicInteger::get)
+        .description("Number of zip-archives waiting for the budget")
+        .register(meterRegistry);
+    this.rejected = Counter.builder("cktag.zip.admission.rejected")
+        .description("Number of zip-archives rejected because the budget was exhausted")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Reserve a build and the bytes of a zip-archive, waiting in line for up to the admission timeout
+   *
+   * @param tags the tags used to select the DropboxTag-Entities from Solr
+   * @param size the size in bytes of the files of the archive
+   * @return the {@link Permit}, it must be closed once the archive has been written
+   * @throws ArchiveBudgetExceededException if the budget is not available in time
+   */
+  public Permit admit(String tags, long size) {
+    return admit(tags, size, timeout);
+  }
+
+  /**
+   * Reserve a build and the bytes of a zip-archive, waiting in line as long as it takes.
+   * For archives built in the background, whose clients do not wait for them.
+   *
+   * @param tags the tags used to select the DropboxTag-Entities from Solr
+   * @param size the size in bytes of the files of the archive
+   * @return the {@link Permit}, it must be closed once the archive has been written
+   * @throws ArchiveBudgetExceededException if the thread is interrupted while waiting
+   */
+  public Permit await(String tags, long size) {
+    return admit(tags, size, -1);
+  }
+
+  /**
+   * Reserve a build and the bytes of a zip-archive
+   *
+   * @param tags    the tags used to select the DropboxTag-Entities from Solr
+   * @param size    the size in bytes of the files of the archive
+   * @param timeout the time in milliseconds to wait for the budget, negative to wait as long as it takes
+   * @return the {@link Permit}
+   */
+  private Permit admit(String tags, long size, long timeout) {
+    int kib = (int) Math.min(maxKib, (size + KIB - 1) / KIB);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    waiting.incrementAndGet();
+    try {
+      if (timeout < 0) {
+        builds.acquire();
+        acquireBytes(kib);
+      } else {
+        if (!builds.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+          throw reject(tags, size, "Too many concurrent zip-archives");
+        }
+        if (!bytes.tryAcquire(kib, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          builds.release();
+          throw reject(tags, size, "Too many bytes of zip-archives in flight");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw reject(tags, size, "Interrupted while waiting");
+    } finally {
+      waiting.decrementAndGet();
+    }
+    log.debug("Admitted zip-archive for tags [{}] with [{}] bytes", tags, size);
+    return new Permit(kib);
+  }
+
+  private void acquireBytes(int kib) throws InterruptedException {
+    try {
+      bytes.acquire(kib);
+    } catch (InterruptedException e) {
+      builds.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Create the {@link PermitHolder} of the current request, whose {@link Permit} is released once the request has
+   * completed, whatever happened to its response. It must be called on the thread of the request, before its
+   * asynchronous processing starts: the request attributes cannot be written from another thread afterwards.
+   *
+   * @return the {@link PermitHolder}
+   */
+  public static PermitHolder holdPermitOfCurrentRequest() {
+    PermitHolder permitHolder = new PermitHolder();
+    RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+    if (null != requestAttributes) {
+      requestAttributes.setAttribute(PERMIT_ATTRIBUTE, permitHolder, RequestAttributes.SCOPE_REQUEST);
+    }
+    return permitHolder;
+  }
+
+  /**
+   * Create the interceptor releasing the {@link Permit} of a request once the asynchronous processing of its response
+   * has completed, also if the response has never been written, e.g. because the executor rejected it or the request
+   * timed out
+   *
+   * @return the {@link CallableProcessingInterceptor}
+   */
+  public static CallableProcessingInterceptor permitReleasingInterceptor() {
+    return new CallableProcessingInterceptor() {
+      @Override
+      public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+        releasePermit(request);
+      }
+    };
+  }
+
+  /**
+   * Create the interceptor releasing the {@link Permit} of a request that times out or fails while its zip-archive
+   * is admitted, before the response exists
+   *
+   * @return the {@link DeferredResultProcessingInterceptor}
+   */
+  public static DeferredResultProcessingInterceptor admissionReleasingInterceptor() {
+    return new DeferredResultProcessingInterceptor() {
+      @Override
+      public <T> boolean handleTimeout(NativeWebRequest request, DeferredResult<T> deferredResult) {
+        releasePermit(request);
+        return true;
+      }
+
+      @Override
+      public <T> boolean handleError(NativeWebRequest request, DeferredResult<T> deferredResult, Throwable t) {
+        releasePermit(request);
+        return true;
+      }
+    };
+  }
+
+  private static void releasePermit(NativeWebRequest request) {
+    Object permitHolder = request.getAttribute(PERMIT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+    if (permitHolder instanceof PermitHolder) {
+      ((PermitHolder) permitHolder).release();
+    }
+  }
+
+  private ArchiveBudgetExceededException reject(String tags, long size, String reason) {
+    rejected.increment();
+    log.warn("Rejected zip-archive for tags [{}] with [{}] bytes: [{}]", tags, size, reason);
+    return new ArchiveBudgetExceededException(reason + ", the zip-archive of [" + size
+        + "] bytes cannot be built now. Please try again later.", retryAfter);
+  }
+
+  /**
+   * Holds the {@link Permit} of the zip-archive of a request until the request has completed.
+   * A permit handed over after the release, e.g. admitted after the request timed out, is released at once.
+   */
+  public static class PermitHolder {
+
+    private Permit permit;
+
+    private boolean released;
+
+    /**
+     * Hold the {@link Permit} until {@link #release()}
+     *
+     * @param permit the {@link Permit}
+     */
+    public synchronized void hold(Permit permit) {
+      if (released) {
+        permit.close();
+      } else {
+        this.permit = permit;
+      }
+    }
+
+    /**
+     * Release the held {@link Permit} and every permit held afterwards
+     */
+    public synchronized void release() {
+      released = true;
+      if (null != permit) {
+        permit.close();
+      }
+    }
+  }
+
+  /**
+   * The reservation of one zip-archive, closing it more than once releases it once
+   */
+  public class Permit implements AutoCloseable {
+
+    private final int kib;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(int kib) {
+      this.kib = kib;
+    }
+
+    @Override
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        bytes.release(kib);
+        builds.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package de.christiankullmann.cktag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link DownloadedDropboxFile}s as entries of a zip-archive to an {@link OutputStream}.
+ * <p>
+ * In sequential mode every entry is compressed and written on the calling thread, so the archive is streamed while it is built.
+ * In parallel mode the entries are compressed by a {@link ParallelScatterZipCreator} and the archive is written on {@link #finish()}.
+ * Both modes keep the entries in the order in which they have been added and take the compression method from the {@link ZipCompressionPolicy}.
+ */
+@Slf4j
+class ZipArchiveBuilder implements Closeable {
+
+  /**
+   * The time in seconds an abandoned archive waits for the compression threads before releasing their backing stores
+   */
+  private static final long ABORT_TIMEOUT_SECONDS = 10;
+
+  private final NonClosingOutputStream archiveStream;
+
+  private final AbortableZipArchiveOutputStream zipArchiveOutputStream;
+
+  private final ZipCompressionPolicy compressionPolicy;
+
+  private final ExecutorService compressionExecutor;
+
+  private final ParallelScatterZipCreator parallelCreator;
+
+  private final Semaphore pendingEntries;
+
+  private final Set<DownloadedDropboxFile> pendingFiles = ConcurrentHashMap.newKeySet();
+
+  private final List<ScatterGatherBackingStore> backingStores = new CopyOnWriteArrayList<>();
+
+  private boolean finished;
+
+  private int entries;
+
+  private long uncompressedSize;
+
+  /**
+   * Create a new {@link ZipArchiveBuilder}
+   *
+   * @param outputStream      the {@link OutputStream} to write the archive to, it is not closed
+   * @param compressionPolicy the {@link ZipCompressionPolicy}
+   * @param maxPendingEntries the maximum number of files waiting for compression in parallel mode
+   */
+  ZipArchiveBuilder(OutputStream outputStream, ZipCompressionPolicy compressionPolicy, int maxPendingEntries) {
+    this.archiveStream = new NonClosingOutputStream(outputStream);
+    this.zipArchiveOutputStream = new AbortableZipArchiveOutputStream(archiveStream);
+    this.zipArchiveOutputStream.setLevel(compressionPolicy.getLevel());
+    this.compressionPolicy = compressionPolicy;
+    this.pendingEntries = new Semaphore(maxPendingEntries);
+    if (compressionPolicy.isParallel()) {
+      this.compressionExecutor = Executors.newFixedThreadPool(compressionPolicy.getParallelThreads(), new CustomizableThreadFactory("zip-compression-"));
+      this.parallelCreator = new ParallelScatterZipCreator(compressionExecutor,
+          () -> {
+            ScatterGatherBackingStore backingStore = new FileBasedScatterGatherBackingStore(File.createTempFile("cktag-scatter", ".tmp"));
+            backingStores.add(backingStore);
+            return backingStore;
+          },
+          compressionPolicy.getLevel());
+    } else {
+      this.compressionExecutor = null;
+      this.parallelCreator = null;
+    }
+  }
+
+  /**
+   * Add a file as the next entry of the archive.
+   * The builder takes ownership of the file and closes it once its content has been compressed.
+   *
+   * @param file the {@link DownloadedDropboxFile}
+   * @throws IOException if the file cannot be read or the archive cannot be written
+   */
+  void add(DownloadedDropboxFile file) throws IOException {
+    entries++;
+    if (null == parallelCreator) {
+      try (DownloadedDropboxFile sequentialFile = file) {
+        uncompressedSize += sequentialFile.getSize();
+        writeEntry(sequentialFile);
+      }
+      return;
+    }
+    try {
+      pendingEntries.acquire();
+    } catch (InterruptedException e) {
+      file.close();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for compression of [" + file.getDropboxTag().path + "]");
+    }
+    pendingFiles.add(file);
+    uncompressedSize += file.getSize();
+    parallelCreator.addArchiveEntry(createEntry(file), () -> new FilterInputStream(file.openStream()) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          release(file);
+        }
+      }
+    });
+  }
+
+  /**
+   * Write all outstanding entries and the central directory of the archive
+   *
+   * @throws IOException if the archive cannot be written
+   */
+  void finish() throws IOException {
+    if (null != parallelCreator) {
+      try {
+        parallelCreator.writeTo(zipArchiveOutputStream);
+        log.debug("Parallel compression finished: {}", parallelCreator.getStatisticsMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during parallel compression");
+      } catch (ExecutionException e) {
+        throw new IOException("Error occurred during parallel compression", e.getCause());
+      }
+    }
+    zipArchiveOutputStream.finish();
+    finished = true;
+  }
+
+  /**
+   * @return the number of entries added to the archive
+   */
+  int getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the size in bytes of the files added to the archive
+   */
+  long getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  /**
+   * @return the number of bytes of the archive written so far, including its headers
+   */
+  long getArchiveSize() {
+    return archiveStream.written;
+  }
+
+  /**
+   * Release the compressor and all files that have not been compressed.
+   * An unfinished archive is abandoned without writing its central directory: its deflater is ended and, in parallel
+   * mode, the backing stores of the compression threads are deleted once the threads have stopped.
+   *
+   * @throws IOException if the compressor cannot be released
+   */
+  @Override
+  public void close() throws IOException {
+    if (null != compressionExecutor) {
+      compressionExecutor.shutdownNow();
+    }
+    pendingFiles.forEach(this::release);
+    if (finished) {
+      zipArchiveOutputStream.close();
+      return;
+    }
+    zipArchiveOutputStream.abort();
+    if (null != compressionExecutor) {
+      awaitCompressionThreads();
+      for (ScatterGatherBackingStore backingStore : backingStores) {
+        try {
+          backingStore.close();
+        } catch (IOException e) {
+          log.debug("Unable to delete a backing store of the parallel compression", e);
+        }
+      }
+    }
+  }
+
+  private void awaitCompressionThreads() {
+    try {
+      if (!compressionExecutor.awaitTermination(ABORT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.warn("Compression threads still running after [{}] seconds", ABORT_TIMEOUT_SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Compress and write a file on the calling thread
+   *
+   * @param file the {@link DownloadedDropboxFile}
+   * @throws IOException if the file cannot be read or the archive cannot be written
+   */
+  private void writeEntry(DownloadedDropboxFile file) throws IOException {
+    ZipArchiveEntry archiveEntry = createEntry(file);
+    archiveEntry.setSize(file.getSize());
+    if (archiveEntry.getMethod() == ZipArchiveEntry.STORED) {
+      archiveEntry.setCrc(file.getCrc32());
+    }
+    zipArchiveOutputStream.putArchiveEntry(archiveEntry);
+    file.writeTo(zipArchiveOutputStream);
+    zipArchiveOutputStream.closeArchiveEntry();
+    log.debug("Name [{}], Method [{}], Compressed size [{}], size [{}]", archiveEntry.getName(), archiveEntry.getMethod(), archiveEntry.getCompressedSize(), archiveEntry.getSize());
+  }
+
+  /**
+   * Create the {@link ZipArchiveEntry} for a file with the method of the {@link ZipCompressionPolicy}
+   *
+   * @param file the {@link DownloadedDropboxFile}
+   * @return a new {@link ZipArchiveEntry}
+   */
+  private ZipArchiveEntry createEntry(DownloadedDropboxFile file) {
+    String name = file.getDropboxTag().name;
+    ZipArchiveEntry archiveEntry = new ZipArchiveEntry(name);
+    archiveEntry.setMethod(compressionPolicy.getMethod(name));
+    if (null != file.getMetadata()) {
+      archiveEntry.setTime(file.getMetadata().getServerModified().getTime());
+    }
+    return archiveEntry;
+  }
+
+  /**
+   * Close a file handed to the parallel compressor and free its slot
+   *
+   * @param file the {@link DownloadedDropboxFile}
+   */
+  private void release(DownloadedDropboxFile file) {
+    if (!pendingFiles.remove(file)) {
+      return;
+    }
+    pendingEntries.release();
+    try {
+      file.close();
+    } catch (IOException e) {
+      log.debug("Unable to close [{}]", file.getDropboxTag().path, e);
+    }
+  }
+
+  /**
+   * A {@link ZipArchiveOutputStream} whose deflater can be ended without finishing the archive
+   */
+  private static class AbortableZipArchiveOutputStream extends ZipArchiveOutputStream {
+
+    AbortableZipArchiveOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    /**
+     * Release the native memory of the deflater, the archive cannot be written anymore
+     */
+    void abort() {
+      def.end();
+    }
+  }
+
+  /**
+   * Keeps the target stream open when the {@link ZipArchiveOutputStream} is closed to release its resources and counts the bytes written
+   */
+  private static class NonClosingOutputStream extends FilterOutputStream {
+
+    private long written;
+
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      written += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
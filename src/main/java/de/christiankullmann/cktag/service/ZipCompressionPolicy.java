@@ -0,0 +1,113 @@
+package de.christiankullmann.cktag.service;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides how the entries of a zip-archive are compressed.
+ * <p>
+ * Files that are already compressed, like JPEGs, videos or PDFs, shrink hardly at all and are added without compression (STORED).
+ * They are recognized by their file extension or by the media type derived from their name.
+ * All other files are compressed with DEFLATE at the configured level.
+ */
+@Component
+public class ZipCompressionPolicy {
+
+  private final int level;
+
+  private final Set<String> storedExtensions;
+
+  private final List<MediaType> storedMediaTypes;
+
+  private final boolean parallel;
+
+  private final int parallelThreads;
+
+  /**
+   * Create a new {@link ZipCompressionPolicy}
+   *
+   * @param level            the DEFLATE level from 0 to 9 or -1 for the default level
+   * @param storedExtensions the file extensions of files that are stored without compression
+   * @param storedMediaTypes the media types of files that are stored without compression, wildcards like video/* are allowed
+   * @param parallel         whether the entries of one zip-archive are compressed in parallel
+   * @param parallelThreads  the number of threads compressing one zip-archive in parallel mode
+   */
+  @Autowired
+  public ZipCompressionPolicy(@Value("${zip.compression.level}") int level,
+                              @Value("${zip.stored.extensions}") String[] storedExtensions,
+                              @Value("${zip.stored.mediaTypes}") String[] storedMediaTypes,
+                              @Value("${zip.compression.parallel}") boolean parallel,
+                              @Value("${zip.compression.threads}") int parallelThreads) {
+    Assert.isTrue(level >= -1 && level <= 9, "level must be between -1 and 9");
+    Assert.isTrue(parallelThreads > 0, "parallelThreads must be greater than 0");
+    this.level = level;
+    this.storedExtensions = Arrays.stream(storedExtensions)
+        .map(extension -> extension.trim().toLowerCase(Locale.ROOT))
+        .collect(Collectors.toSet());
+    this.storedMediaTypes = Arrays.stream(storedMediaTypes)
+        .map(String::trim)
+        .map(MediaType::parseMediaType)
+        .collect(Collectors.toList());
+    this.parallel = parallel;
+    this.parallelThreads = parallelThreads;
+  }
+
+  /**
+   * Return the compression method for a file
+   *
+   * @param fileName the name of the file
+   * @return {@link ZipArchiveEntry#STORED} for already compressed files, otherwise {@link ZipArchiveEntry#DEFLATED}
+   */
+  public int getMethod(String fileName) {
+    return isCompressed(fileName) ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED;
+  }
+
+  /**
+   * @return the DEFLATE level
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * @return true if the entries of one zip-archive are compressed in parallel
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * @return the number of threads compressing one zip-archive in parallel mode
+   */
+  public int getParallelThreads() {
+    return parallelThreads;
+  }
+
+  /**
+   * Check whether a file is already compressed by its extension or media type
+   *
+   * @param fileName the name of the file
+   * @return true if the file is already compressed
+   */
+  private boolean isCompressed(String fileName) {
+    String extension = StringUtils.getFilenameExtension(fileName);
+    if (null != extension && storedExtensions.contains(extension.toLowerCase(Locale.ROOT))) {
+      return true;
+    }
+    Optional<MediaType> mediaType = MediaTypeFactory.getMediaType(fileName);
+    return mediaType.isPresent() && storedMediaTypes.stream().anyMatch(stored -> stored.includes(mediaType.get()));
+  }
+}
@@ -0,0 +1,135 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A zip-archive of the files of a tag-selection that is built in the background and spooled to disk.
+ * The status and the progress are updated by the worker building the archive and read by any number of requests.
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ZipJob {
+
+  /**
+   * The states of a {@link ZipJob}
+   */
+  public enum Status {
+    QUEUED, RUNNING, DONE, FAILED
+  }
+
+  private final String id;
+
+  private final String tags;
+
+  /**
+   * The key of the tag query and the revisions of the selected files, identical requests share one job
+   */
+  @JsonIgnore
+  private final String key;
+
+  /**
+   * The file the archive is spooled to, it is complete once the job is {@link Status#DONE}
+   */
+  @JsonIgnore
+  private final Path file;
+
+  private final int filesTotal;
+
+  private final Date created = new Date();
+
+  private volatile Status status = Status.QUEUED;
+
+  private volatile long bytesTotal;
+
+  @Getter(lombok.AccessLevel.NONE)
+  private final AtomicInteger filesWritten = new AtomicInteger();
+
+  @Getter(lombok.AccessLevel.NONE)
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  private volatile Long archiveSize;
+
+  private volatile Date finished;
+
+  private volatile String error;
+
+  /**
+   * Create a new queued {@link ZipJob}
+   *
+   * @param id         the id of the job
+   * @param tags       the tags used to select the DropboxTag-Entities from Solr
+   * @param key        the key of the tag query and the revisions of the selected files
+   * @param file       the file the archive is spooled to
+   * @param filesTotal the number of selected files
+   */
+  public ZipJob(String id, String tags, String key, Path file, int filesTotal) {
+    this.id = id;
+    this.tags = tags;
+    this.key = key;
+    this.file = file;
+    this.filesTotal = filesTotal;
+  }
+
+  /**
+   * @return the number of files added to the archive so far
+   */
+  public int getFilesWritten() {
+    return filesWritten.get();
+  }
+
+  /**
+   * @return the size in bytes of the files added to the archive so far, before compression
+   */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * Record that the worker has started to build the archive
+   *
+   * @param bytesTotal the overall size in bytes of the selected files, before compression
+   */
+  void started(long bytesTotal) {
+    this.bytesTotal = bytesTotal;
+    this.status = Status.RUNNING;
+  }
+
+  /**
+   * Record that a file has been added to the archive
+   *
+   * @param size the size in bytes of the file
+   */
+  void fileAdded(long size) {
+    filesWritten.incrementAndGet();
+    bytesWritten.addAndGet(size);
+  }
+
+  /**
+   * Record that the archive is complete
+   *
+   * @param archiveSize the size in bytes of the archive
+   */
+  void done(long archiveSize) {
+    this.archiveSize = archiveSize;
+    this.finished = new Date();
+    this.status = Status.DONE;
+  }
+
+  /**
+   * Record that the archive could not be built
+   *
+   * @param error the reason
+   */
+  void failed(String error) {
+    this.error = error;
+    this.finished = new Date();
+    this.status = Status.FAILED;
+  }
+}
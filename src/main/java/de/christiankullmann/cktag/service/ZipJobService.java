@@ -0,0 +1,242 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.exception.ZipJobNotFoundException;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds zip-archives of tag-selections as {@link ZipJob}s in the background, instead of streaming them to a waiting client.
+ * <p>
+ * The jobs run on the bounded <code>zipJobExecutor</code>, wait for the {@link ZipArchiveAdmission} as long as it takes
+ * and spool their archive to a file in the job directory, which can be downloaded as often as needed until the job expires. Requests for the same tags selecting the same revisions of
+ * the same files share one job, unless it has failed. Files whose rev is not indexed yet are matched by their path.
+ * The selection is read from Solr once per request, the key and the archive of a job are built from the same list.
+ * The jobs are kept in memory only, their files are removed on the next start.
+ */
+@Service
+@Slf4j
+public class ZipJobService {
+
+  private static final String ZIP_FILE_SUFFIX = ".zip";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final DropboxTagSolrService solrService;
+
+  private final DropboxConnectionService connectionService;
+
+  private final AsyncTaskExecutor zipJobExecutor;
+
+  private final ZipArchiveAdmission admission;
+
+  private final Path directory;
+
+  private final long timeToLive;
+
+  private final Map<String, ZipJob> jobs = new ConcurrentHashMap<>();
+
+  private final Map<String, ZipJob> jobsByKey = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService expiryScheduler;
+
+  /**
+   * Create a new {@link ZipJobService}
+   *
+   * @param solrService       the {@link DropboxTagSolrService} selecting the files
+   * @param connectionService the {@link DropboxConnectionService} building the archives
+   * @param zipJobExecutor    the {@link AsyncTaskExecutor} running the jobs
+   * @param admission         the {@link ZipArchiveAdmission} the jobs wait for
+   * @param directory         the directory the archives are spooled to
+   * @param timeToLive        the time in seconds a finished job and its archive are kept
+   */
+  @Autowired
+  public ZipJobService(DropboxTagSolrService solrService,
+                       DropboxConnectionService connectionService,
+                       @Qualifier("zipJobExecutor") AsyncTaskExecutor zipJobExecutor,
+                       ZipArchiveAdmission admission,
+                       @Value("${zip.jobs.directory}") String directory,
+                       @Value("${zip.jobs.ttl}") long timeToLive) {
+    Assert.notNull(solrService, "DropboxTagSolrService must not be null");
+    Assert.notNull(connectionService, "connectionService must not be null");
+    Assert.notNull(zipJobExecutor, "zipJobExecutor must not be null");
+    Assert.notNull(admission, "admission must not be null");
+    Assert.isTrue(timeToLive > 0, "timeToLive must be positive");
+    this.solrService = solrService;
+    this.connectionService = connectionService;
+    this.zipJobExecutor = zipJobExecutor;
+    this.admission = admission;
+    this.directory = Paths.get(directory);
+    this.timeToLive = timeToLive;
+    this.expiryScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("zip-job-expiry-"));
+  }
+
+  /**
+   * Create the job directory, remove the archives of a previous run and start to expire finished jobs
+   *
+   * @throws IOException if the directory cannot be created or read
+   */
+  @PostConstruct
+  public void init() throws IOException {
+    Files.createDirectories(directory);
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      files = stream.filter(file -> file.getFileName().toString().endsWith(ZIP_FILE_SUFFIX)
+          || file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)).collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      Files.deleteIfExists(file);
+    }
+    long expiryInterval = Math.min(timeToLive, 60);
+    expiryScheduler.scheduleWithFixedDelay(this::expireJobs, expiryInterval, expiryInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void preDestroy() {
+    expiryScheduler.shutdownNow();
+  }
+
+  /**
+   * Return the job building the zip-archive of the files tagged with the tags. A job of an identical request is
+   * returned as it is, otherwise a new job is queued with the selection its key has been built from.
+   *
+   * @param tags the tags used to select the DropboxTag-Entities from Solr
+   * @return the new or the shared {@link ZipJob}
+   * @throws RejectedExecutionException if the queue of the zipJobExecutor is full
+   */
+  public ZipJob submit(String tags) {
+    List<DropboxTag> dropboxTags = new ArrayList<>();
+    solrService.iterateAllByTags(tags).forEach(dropboxTags::add);
+    MessageDigest digest = Digests.create("SHA-256");
+    digest.update(tags.trim().getBytes(StandardCharsets.UTF_8));
+    for (DropboxTag dropboxTag : dropboxTags) {
+      digest.update(("\0" + dropboxTag.id + "\0" + dropboxTag.path + "\0" + dropboxTag.rev).getBytes(StandardCharsets.UTF_8));
+    }
+    String key = Digests.toHex(digest.digest());
+    String id = UUID.randomUUID().toString();
+    ZipJob created = new ZipJob(id, tags, key, directory.resolve(id + ZIP_FILE_SUFFIX), dropboxTags.size());
+    ZipJob job = jobsByKey.compute(key, (k, existing) ->
+        null != existing && existing.getStatus() != ZipJob.Status.FAILED ? existing : created);
+    if (job != created) {
+      log.debug("Zip job [{}] for tags [{}] is shared", job.getId(), tags);
+      return job;
+    }
+    jobs.put(id, job);
+    try {
+      zipJobExecutor.execute(() -> run(job, dropboxTags));
+    } catch (RejectedExecutionException e) {
+      jobs.remove(id);
+      jobsByKey.remove(key, job);
+      throw e;
+    }
+    log.debug("Zip job [{}] for tags [{}] with [{}] files queued", id, tags, dropboxTags.size());
+    return job;
+  }
+
+  /**
+   * Return a job by id
+   *
+   * @param id the id of the job
+   * @return the {@link ZipJob}
+   * @throws ZipJobNotFoundException if there is no such job or it has expired
+   */
+  public ZipJob getJob(String id) {
+    ZipJob job = jobs.get(id);
+    if (null == job) {
+      throw new ZipJobNotFoundException(id);
+    }
+    return job;
+  }
+
+  /**
+   * Build the archive of a job into a temporary file, which replaces the archive file once it is complete.
+   * The size is summed up from the same selection, so it matches the files of the archive.
+   *
+   * @param job         the {@link ZipJob}
+   * @param dropboxTags the {@link DropboxTag}s the key of the job has been built from
+   */
+  void run(ZipJob job, List<DropboxTag> dropboxTags) {
+    Path tempFile = job.getFile().resolveSibling(job.getFile().getFileName() + TEMP_FILE_SUFFIX);
+    try {
+      long checkedSize = connectionService.checkDownloadSize(dropboxTags, sumSizes(dropboxTags));
+      try (ZipArchiveAdmission.Permit permit = admission.await(job.getTags(), checkedSize);
+           OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+        job.started(checkedSize);
+        connectionService.writeZipArchive(job.getTags(), dropboxTags, checkedSize, outputStream, job::fileAdded);
+      }
+      Files.move(tempFile, job.getFile(), StandardCopyOption.ATOMIC_MOVE);
+      job.done(Files.size(job.getFile()));
+      log.info("Zip job [{}] for tags [{}] finished with [{}] bytes", job.getId(), job.getTags(), job.getArchiveSize());
+    } catch (IOException | RuntimeException e) {
+      log.error("Zip job [{}] for tags [{}] failed", job.getId(), job.getTags(), e);
+      job.failed(null == e.getMessage() ? e.getClass().getSimpleName() : e.getMessage());
+      deleteQuietly(tempFile);
+    }
+  }
+
+  /**
+   * Remove the jobs finished more than {@link #timeToLive} seconds ago together with their archives.
+   * A download still reading an archive keeps its content until it is done.
+   */
+  void expireJobs() {
+    long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(timeToLive);
+    for (ZipJob job : jobs.values()) {
+      if (null != job.getFinished() && job.getFinished().getTime() < expired) {
+        jobs.remove(job.getId());
+        jobsByKey.remove(job.getKey(), job);
+        deleteQuietly(job.getFile());
+        log.debug("Zip job [{}] expired", job.getId());
+      }
+    }
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warn("Unable to delete [{}]", file, e);
+    }
+  }
+
+  private static DropboxTagSizeSum sumSizes(List<DropboxTag> dropboxTags) {
+    long size = 0;
+    long unknown = 0;
+    for (DropboxTag dropboxTag : dropboxTags) {
+      if (null == dropboxTag.size) {
+        unknown++;
+      } else {
+        size += dropboxTag.size;
+      }
+    }
+    return new DropboxTagSizeSum(size, unknown);
+  }
+}
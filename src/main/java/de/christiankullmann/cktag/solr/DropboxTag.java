@@ -1,9 +1,15 @@
 package de.christiankullmann.cktag.solr;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 import org.apache.solr.client.solrj.beans.Field;
 
+import java.util.Date;
+import java.util.List;
+
 /**
  * A data bean for each entry to Solr
  */
@@ -14,12 +20,58 @@ public class DropboxTag {
   @Field public String id;
   @Field public String name;
   @Field public String path;
-  @Field public String tags;
+  /**
+   * The tags of the file, stored in the multi-valued field <code>tags</code>.
+   * In JSON either an array or a single comma separated String.
+   */
+  @Field @JsonDeserialize(using = TagsDeserializer.class) public List<String> tags;
+  /**
+   * Solr's <code>_version_</code> of the entry. Sent with an update, the update only succeeds if the entry is unchanged.
+   */
+  @Field("_version_") @JsonInclude(JsonInclude.Include.NON_NULL) public Long version;
+  /**
+   * The Dropbox id of the file, stored in the field <code>file_id</code>. It stays the same when the file is renamed or moved.
+   */
+  @Field("file_id") @JsonInclude(JsonInclude.Include.NON_NULL) public String fileId;
+  /**
+   * The size in bytes of the file as of {@link #rev}. Like all metadata of the file it is captured from Dropbox and not accepted from clients.
+   */
+  @Field @JsonInclude(JsonInclude.Include.NON_NULL) @JsonProperty(access = JsonProperty.Access.READ_ONLY) public Long size;
+  /**
+   * The Dropbox revision of the file the metadata was captured from
+   */
+  @Field @JsonInclude(JsonInclude.Include.NON_NULL) @JsonProperty(access = JsonProperty.Access.READ_ONLY) public String rev;
+  /**
+   * The Dropbox content hash of the file, stored in the field <code>content_hash</code>
+   */
+  @Field("content_hash") @JsonInclude(JsonInclude.Include.NON_NULL) @JsonProperty(access = JsonProperty.Access.READ_ONLY) public String contentHash;
+  /**
+   * The time the file was last modified in Dropbox, stored in the field <code>server_modified</code>
+   */
+  @Field("server_modified") @JsonInclude(JsonInclude.Include.NON_NULL) @JsonProperty(access = JsonProperty.Access.READ_ONLY) public Date serverModified;
+  /**
+   * The CRC-32 checksum of the content as of {@link #rev}, calculated when the file is added to a zip-archive
+   */
+  @Field @JsonInclude(JsonInclude.Include.NON_NULL) @JsonProperty(access = JsonProperty.Access.READ_ONLY) public Long crc32;
 
-  public DropboxTag(String id, String name, String path, String tags) {
+  public DropboxTag(String id, String name, String path, List<String> tags) {
     this.id = id;
     this.name = name;
     this.path = path;
     this.tags = tags;
   }
+
+  /**
+   * Copy the file id and the metadata of the file from another DropboxTag
+   *
+   * @param source the DropboxTag to copy from
+   */
+  public void copyFileMetadata(DropboxTag source) {
+    this.fileId = source.fileId;
+    this.size = source.size;
+    this.rev = source.rev;
+    this.contentHash = source.contentHash;
+    this.serverModified = source.serverModified;
+    this.crc32 = source.crc32;
+  }
 }
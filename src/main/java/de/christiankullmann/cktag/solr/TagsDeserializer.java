@@ -0,0 +1,59 @@
+package de.christiankullmann.cktag.solr;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the tags of a {@link DropboxTag} from a JSON array or from a comma separated String.
+ * Clients written against the single String field keep working, every tag is trimmed and empty tags are dropped.
+ */
+public class TagsDeserializer extends StdDeserializer<List<String>> {
+
+  public TagsDeserializer() {
+    super(List.class);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<String> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+    if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+      return parseTags(parser.getText());
+    }
+    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      return (List<String>) context.handleUnexpectedToken(List.class, parser);
+    }
+    List<String> tags = new ArrayList<>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token != JsonToken.VALUE_STRING) {
+        return (List<String>) context.handleUnexpectedToken(String.class, parser);
+      }
+      String tag = parser.getText().trim();
+      if (!tag.isEmpty()) {
+        tags.add(tag);
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * Split a comma separated String into tags
+   *
+   * @param tags the comma separated tags
+   * @return the trimmed, non-empty tags
+   */
+  public static List<String> parseTags(String tags) {
+    return Arrays.stream(tags.split(","))
+        .map(String::trim)
+        .filter(tag -> !tag.isEmpty())
+        .collect(Collectors.toList());
+  }
+}
@@ -1,39 +1,77 @@
 package de.christiankullmann.cktag.controller;
 
+import com.dropbox.core.v2.DbxClientV2;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.christiankullmann.cktag.exception.ArchiveBudgetExceededException;
+import de.christiankullmann.cktag.exception.VersionConflictException;
 import de.christiankullmann.cktag.service.DropboxConnectionService;
+import de.christiankullmann.cktag.service.DropboxFileCache;
+import de.christiankullmann.cktag.service.DropboxMetadataCache;
+import de.christiankullmann.cktag.service.DropboxRateLimiter;
+import de.christiankullmann.cktag.service.DropboxTagBulkService;
+import de.christiankullmann.cktag.service.DropboxTagCache;
+import de.christiankullmann.cktag.service.DropboxTagQueryCache;
+import de.christiankullmann.cktag.service.DropboxTagExportService;
 import de.christiankullmann.cktag.service.DropboxTagSolrService;
 import de.christiankullmann.cktag.service.SolrClientService;
+import de.christiankullmann.cktag.service.TagBitmapIndex;
+import de.christiankullmann.cktag.service.ZipArchiveAdmission;
+import de.christiankullmann.cktag.service.ZipCompressionPolicy;
+import de.christiankullmann.cktag.service.ZipJob;
+import de.christiankullmann.cktag.service.ZipJobService;
 import de.christiankullmann.cktag.solr.DropboxTag;
 import de.christiankullmann.cktag.solr.DropboxTagAssembler;
-import de.christiankullmann.cktag.util.ApiUtils;
+import de.christiankullmann.cktag.solr.TagsDeserializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.MapSolrParams;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.http.MediaType;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(DropboxTagController.class)
 @DirtiesContext
+@TestPropertySource(properties = {"async.solr.threads=1", "async.solr.queueCapacity=0"})
 public class DropboxTagControllerTest {
 
   @Autowired
@@ -42,12 +80,15 @@ public class DropboxTagControllerTest {
   @Autowired
   private DropboxTagController controller;
 
+  @Autowired
+  private DropboxConnectionService connectionService;
+
   @TestConfiguration
   @Slf4j
   static class ControllerTestConfiguration {
 
     private String collectionName = "cktagtest";
-    private String tags = "tag1, tag2, tag3";
+    private List<String> tags = Arrays.asList("tag1", "tag2", "tag3");
     private String start = "0";
     private String rows = "20";
 
@@ -55,22 +96,45 @@ public class DropboxTagControllerTest {
 
     public static SolrClientService solrClientService = mock(SolrClientService.class);
 
+    public static ZipJobService zipJobService = mock(ZipJobService.class);
+
+    public static ZipArchiveAdmission admission = new ZipArchiveAdmission(1 << 20, 1, 0, 30, new SimpleMeterRegistry());
+
     @Bean
     DropboxTagAssembler getAssembler() {
       return new DropboxTagAssembler();
     }
 
     @Bean
-    DropboxConnectionService getConnectionService() {
-      return mock(DropboxConnectionService.class);
+    DropboxConnectionService getConnectionService(DropboxTagSolrService dropboxTagSolrService) {
+      SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor();
+      return spy(new DropboxConnectionService(mock(DbxClientV2.class), 1024, executor, 2, executor, new DropboxMetadataCache(100, 60),
+          new DropboxFileCache(false, "", 0), new ZipCompressionPolicy(6, new String[0], new String[0], false, 1), dropboxTagSolrService,
+          admission, new DropboxRateLimiter(1, 4, 0.5, 2, 1, 10, new SimpleMeterRegistry()), false, new SimpleMeterRegistry()));
     }
 
     @Bean
     DropboxTagSolrService getDropboxTagSolrService() {
       DropboxTagAssembler assembler = new DropboxTagAssembler();
-      DropboxTagSolrService dropboxTagSolrService = new DropboxTagSolrService(solrClientService, assembler, new ApiUtils(), collectionName);
+      DropboxTagSolrService dropboxTagSolrService = new DropboxTagSolrService(solrClientService, assembler, new DropboxTagCache(100, 60), new DropboxTagQueryCache(1000),
+          new TagBitmapIndex(solrClientService, collectionName, false, 3600, 2), Collections.emptyList(), collectionName, 2);
       return dropboxTagSolrService;
     }
+
+    @Bean
+    ZipJobService getZipJobService() {
+      return zipJobService;
+    }
+
+    @Bean
+    DropboxTagExportService getDropboxTagExportService() {
+      return mock(DropboxTagExportService.class);
+    }
+
+    @Bean
+    DropboxTagBulkService getDropboxTagBulkService() {
+      return new DropboxTagBulkService(solrClientService, new ObjectMapper(), collectionName, 2, Collections.emptyList());
+    }
   }
 
   /**
@@ -81,11 +145,29 @@ public class DropboxTagControllerTest {
   @Test
   public void getterShouldReturnAllEntriesWithOffset0AndLimit10() throws Exception {
     doAnswer(initQuerySolrClientForTag("1", "name1", "/path1", "tag1, tag2, tag3")).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
-    this.mvc.perform(get("/api/v1/dropboxtags")).andExpect(status().isOk())
-        .andExpect(content().string("{\"_embedded\":{\"dropboxTagList\":[{\"id\":\"1\",\"name\":\"name1\",\"path\":\"/path1\",\"tags\":\"tag1, tag2, tag3\",\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/1\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}]},\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
+    performAsync(get("/api/v1/dropboxtags")).andExpect(status().isOk())
+        .andExpect(content().string("{\"_embedded\":{\"dropboxTagList\":[{\"id\":\"1\",\"name\":\"name1\",\"path\":\"/path1\",\"tags\":[\"tag1\",\"tag2\",\"tag3\"],\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/1\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}]},\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
 
   }
 
+  /**
+   * Test the cursor paging, the next link must carry the nextCursorMark returned by Solr
+   *
+   * @throws Exception
+   */
+  @Test
+  public void getterWithCursorShouldLinkToNextPage() throws Exception {
+    doAnswer(invocation -> {
+      QueryResponse response = (QueryResponse) initQuerySolrClientForTag("1", "name1", "/path1", "tag1, tag2, tag3").answer(invocation);
+      when(response.getNextCursorMark()).thenReturn("AoE/ATE=");
+      return response;
+    }).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
+    performAsync(get("/api/v1/dropboxtags?tags=tag1&cursor=*&limit=1")).andExpect(status().isOk())
+        .andExpect(jsonPath("$._embedded.dropboxTagList[0].id").value("1"))
+        .andExpect(jsonPath("$._links.self.href").value("http://localhost/api/v1/dropboxtags?tags=tag1&cursor=*&limit=1"))
+        .andExpect(jsonPath("$._links.next.href").value("http://localhost/api/v1/dropboxtags?tags=tag1&cursor=AoE/ATE%3D&limit=1"));
+  }
+
   /**
    * Test the getById with one DropboxTag in Solr
    *
@@ -93,9 +175,9 @@ public class DropboxTagControllerTest {
    */
   @Test
   public void getByIdShouldReturnOneEntry() throws Exception {
-    doAnswer(initQuerySolrClientForTag("1", "name1", "/path1", "tag1, tag2, tag3")).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
-    this.mvc.perform(get("/api/v1/dropboxtags/1")).andExpect(status().isOk())
-        .andExpect(content().string("{\"id\":\"1\",\"name\":\"name1\",\"path\":\"/path1\",\"tags\":\"tag1, tag2, tag3\",\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/1\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
+    doReturn(initSolrDocument("1", "name1", "/path1", "tag1, tag2, tag3")).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("1"));
+    performAsync(get("/api/v1/dropboxtags/1")).andExpect(status().isOk())
+        .andExpect(content().string("{\"id\":\"1\",\"name\":\"name1\",\"path\":\"/path1\",\"tags\":[\"tag1\",\"tag2\",\"tag3\"],\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/1\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
   }
 
   /**
@@ -105,12 +187,12 @@ public class DropboxTagControllerTest {
    */
   @Test
   public void deleteByIdOnlyOnce() throws Exception {
-    doAnswer(initQuerySolrClientForTag("1", "name1", "/path1", "tag1, tag2, tag3")).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
+    doReturn(initSolrDocument("1", "name1", "/path1", "tag1, tag2, tag3")).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("1"));
 
-    this.mvc.perform(delete("/api/v1/dropboxtags/1")).andExpect(status().isOk())
+    performAsync(delete("/api/v1/dropboxtags/1")).andExpect(status().isOk())
         .andExpect((content().string("DropboxTag with id [1] has been deleted.")));
-    doReturn(null).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
-    this.mvc.perform(delete("/api/v1/dropboxtags/1")).andExpect(status().isNotFound())
+    doReturn(null).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("1"));
+    performAsync(delete("/api/v1/dropboxtags/1")).andExpect(status().isNotFound())
         .andExpect((content().string("{\"code\":\"DROPBOX_TAG_ENTRY_NOT_FOUND\",\"message\":\"No DropboxTag Entry with id [1] found in Solr.\"}")));
 
   }
@@ -121,8 +203,8 @@ public class DropboxTagControllerTest {
    */
   @Test
   public void deleteByIdNotFound() throws Exception {
-    doReturn(null).when(ControllerTestConfiguration.solrClientService).queryClient(anyString(), any(MapSolrParams.class));
-    this.mvc.perform(delete("/api/v1/dropboxtags/99")).andExpect(status().isNotFound())
+    doReturn(null).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("99"));
+    performAsync(delete("/api/v1/dropboxtags/99")).andExpect(status().isNotFound())
         .andExpect((content().string("{\"code\":\"DROPBOX_TAG_ENTRY_NOT_FOUND\",\"message\":\"No DropboxTag Entry with id [99] found in Solr.\"}")));
   }
 
@@ -132,13 +214,13 @@ public class DropboxTagControllerTest {
    */
   @Test
   public void addDropboxTag() throws Exception {
-    MvcResult result = this.mvc.perform(post("/api/v1/dropboxtags")
+    MvcResult result = performAsync(post("/api/v1/dropboxtags")
         .contentType(MediaType.APPLICATION_JSON)
         .content("{\"name\": \"myCookbook.doc\", \"path\": \"/myCookbook.doc\", \"tags\": \"cooking,book\"}"))
         .andExpect(status().isCreated()).andReturn();
 
     String content = result.getResponse().getContentAsString();
-    assertThat(content.endsWith(",\"name\":\"myCookbook.doc\",\"path\":\"/myCookbook.doc\",\"tags\":\"cooking,book\",\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/2\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
+    assertThat(content.endsWith(",\"name\":\"myCookbook.doc\",\"path\":\"/myCookbook.doc\",\"tags\":[\"cooking\",\"book\"],\"_links\":{\"self\":{\"href\":\"http://localhost/api/v1/dropboxtags/2\"},\"dropboxtags\":{\"href\":\"http://localhost/api/v1/dropboxtags?tags=*&offset=0&limit=10\"}}}"));
     assertThat(content.startsWith("{\"id\":"));
     int idStart = 7; // position of cursor after '{"id":"
     int idEnd = content.indexOf(",\"name\":");
@@ -146,6 +228,264 @@ public class DropboxTagControllerTest {
     assertThat(idStringFromContent.contains(",")).isFalse();
   }
 
+  /**
+   * Test adding DropboxTags as NDJSON in batches, incomplete entries are reported by their position
+   * @throws Exception
+   */
+  @Test
+  public void bulkAddDropboxTags() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    performAsync(post("/api/v1/dropboxtags/bulk")
+        .contentType("application/x-ndjson")
+        .content("{\"name\": \"a.doc\", \"path\": \"/a.doc\", \"tags\": \"a\"}\n"
+            + "{\"name\": \"b.doc\", \"tags\": \"b\"}\n"
+            + "{\"name\": \"c.doc\", \"path\": \"/c.doc\", \"tags\": \"c\"}\n"
+            + "{\"name\": \"d.doc\", \"path\": \"/d.doc\", \"tags\": \"d\"}\n"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.succeeded").value(3))
+        .andExpect(jsonPath("$.failed").value(1))
+        .andExpect(jsonPath("$.items[1].index").value(1))
+        .andExpect(jsonPath("$.items[1].error").value("Entity is missing either name or path."))
+        .andExpect(jsonPath("$.items[3].id").isNotEmpty());
+
+    verify(ControllerTestConfiguration.solrClientService, times(2)).commitDropboxTags(eq("cktagtest"), anyCollection());
+  }
+
+  /**
+   * Test adding and removing tags of one entry with an atomic update guarded by its version
+   * @throws Exception
+   */
+  @Test
+  public void updateTagsByIdSendsAtomicUpdateWithVersion() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    doReturn(Collections.singletonMap("1", 42L)).when(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), anyCollection());
+    doReturn(solrDocumentList(initSolrDocument("1", "name1", "/path1", "book")))
+        .when(ControllerTestConfiguration.solrClientService).getByIds(eq("cktagtest"), anyCollection());
+
+    performAsync(patch("/api/v1/dropboxtags/1/tags")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"add\": [\"cooking\"], \"remove\": [\"book\"], \"version\": 41}"))
+        .andExpect(status().isOk())
+        .andExpect(content().string("{\"versions\":{\"1\":42}}"));
+
+    ArgumentCaptor<Collection<SolrInputDocument>> documentsCaptor = ArgumentCaptor.forClass(Collection.class);
+    verify(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), documentsCaptor.capture());
+    verify(ControllerTestConfiguration.solrClientService, never()).getById(anyString(), anyString());
+    SolrInputDocument document = documentsCaptor.getValue().iterator().next();
+    assertThat(document.getFieldValue("_version_")).isEqualTo(41L);
+    Map<?, ?> operations = (Map<?, ?>) document.getFieldValue("tags");
+    assertThat(operations.get("add-distinct")).isEqualTo(Collections.singletonList("cooking"));
+    assertThat(operations.get("remove")).isEqualTo(Collections.singletonList("book"));
+  }
+
+  /**
+   * Test adding tags to many entries with one request, each of them must exist
+   * @throws Exception
+   */
+  @Test
+  public void updateTagsByIdsSendsOneRequest() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    doReturn(Collections.singletonMap("1", 42L)).when(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), anyCollection());
+    doReturn(solrDocumentList(initSolrDocument("1", "name1", "/path1", "book"), initSolrDocument("2", "name2", "/path2", "book")))
+        .when(ControllerTestConfiguration.solrClientService).getByIds(eq("cktagtest"), anyCollection());
+
+    performAsync(patch("/api/v1/dropboxtags/tags")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"ids\": [\"1\", \"2\"], \"add\": [\"cooking\"]}"))
+        .andExpect(status().isOk());
+
+    ArgumentCaptor<Collection<SolrInputDocument>> documentsCaptor = ArgumentCaptor.forClass(Collection.class);
+    verify(ControllerTestConfiguration.solrClientService, times(1)).updateDropboxTags(eq("cktagtest"), documentsCaptor.capture());
+    assertThat(documentsCaptor.getValue()).hasSize(2);
+    assertThat(documentsCaptor.getValue()).allMatch(document -> Long.valueOf(1L).equals(document.getFieldValue("_version_")));
+
+    performAsync(patch("/api/v1/dropboxtags/tags")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"ids\": [\"1\"]}"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.code").value("INVALID_TAG_UPDATE"));
+  }
+
+  /**
+   * Test that a patch answers with the whole entry as it is after the update
+   * @throws Exception
+   */
+  @Test
+  public void patchReturnsUpdatedEntry() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    SolrDocument updated = initSolrDocument("5", "name5", "/path5", "cooking, book");
+    updated.setField("_version_", 42L);
+    doReturn(Collections.singletonMap("5", 42L)).when(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), anyCollection());
+    doReturn(updated).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("5"));
+
+    performAsync(patch("/api/v1/dropboxtags/5")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"name\": \"name5\"}"))
+        .andExpect(status().isOk())
+        .andExpect(header().exists(DropboxTagSolrService.VISIBLE_WITHIN_HEADER))
+        .andExpect(jsonPath("$.id").value("5"))
+        .andExpect(jsonPath("$.path").value("/path5"))
+        .andExpect(jsonPath("$.tags[1]").value("book"))
+        .andExpect(jsonPath("$.version").value(42))
+        .andExpect(jsonPath("$._links.self.href").value("http://localhost/api/v1/dropboxtags/5"));
+  }
+
+  /**
+   * Test patching with a stale version and patching an entry that does not exist
+   * @throws Exception
+   */
+  @Test
+  public void patchReportsVersionConflictAndMissingEntry() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    doReturn(initSolrDocument("1", "name1", "/path1", "book")).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("1"));
+    doThrow(new VersionConflictException("version conflict for 1 expected=41 actual=43", false))
+        .when(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), anyCollection());
+    performAsync(patch("/api/v1/dropboxtags/1")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"tags\": [\"cooking\"], \"version\": 41}"))
+        .andExpect(status().isConflict())
+        .andExpect(jsonPath("$.code").value("VERSION_CONFLICT"));
+
+    doThrow(new VersionConflictException("Document not found for update.  id=99", true))
+        .when(ControllerTestConfiguration.solrClientService).updateDropboxTags(eq("cktagtest"), anyCollection());
+    performAsync(patch("/api/v1/dropboxtags/99")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"tags\": [\"cooking\"]}"))
+        .andExpect(status().isNotFound())
+        .andExpect(jsonPath("$.code").value("DROPBOX_TAG_ENTRY_NOT_FOUND"));
+  }
+
+  /**
+   * Test that a request finding the Solr executor saturated is rejected at once instead of waiting for a thread
+   * @throws Exception
+   */
+  @Test
+  public void saturatedSolrExecutorRejectsRequests() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      release.await(10, TimeUnit.SECONDS);
+      return initSolrDocument("3", "name3", "/path3", "tag3");
+    }).when(ControllerTestConfiguration.solrClientService).getById(anyString(), eq("3"));
+
+    MvcResult blocked;
+    try {
+      blocked = this.mvc.perform(get("/api/v1/dropboxtags/3")).andExpect(request().asyncStarted()).andReturn();
+      this.mvc.perform(get("/api/v1/dropboxtags/4"))
+          .andExpect(status().isServiceUnavailable())
+          .andExpect(jsonPath("$.code").value("SERVICE_BUSY"));
+    } finally {
+      release.countDown();
+    }
+    this.mvc.perform(asyncDispatch(blocked)).andExpect(status().isOk())
+        .andExpect(jsonPath("$.id").value("3"));
+  }
+
+  /**
+   * Test that a zip job is accepted with its location and that its archive is only offered once it is done
+   *
+   * @throws Exception
+   */
+  @Test
+  public void zipJobIsAcceptedAndReportsItsStatus() throws Exception {
+    ZipJob zipJob = new ZipJob("job1", "tag1", "key", Paths.get("job1.zip"), 3);
+    when(ControllerTestConfiguration.zipJobService.submit("tag1")).thenReturn(zipJob);
+    when(ControllerTestConfiguration.zipJobService.getJob("job1")).thenReturn(zipJob);
+
+    performAsync(post("/api/v1/zip-jobs").param("tags", "tag1"))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location", "http://localhost/api/v1/zip-jobs/job1"))
+        .andExpect(jsonPath("$.status").value("QUEUED"))
+        .andExpect(jsonPath("$.filesTotal").value(3))
+        .andExpect(jsonPath("$.key").doesNotExist());
+    this.mvc.perform(get("/api/v1/zip-jobs/job1"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$._links.self.href").value("http://localhost/api/v1/zip-jobs/job1"))
+        .andExpect(jsonPath("$._links.file").doesNotExist());
+    this.mvc.perform(get("/api/v1/zip-jobs/job1/file"))
+        .andExpect(status().isConflict())
+        .andExpect(jsonPath("$.code").value("ZIP_JOB_NOT_READY"));
+  }
+
+  /**
+   * Test that a zip-archive beyond the budget is answered with 503 and the time to retry after, and that it waits for
+   * the budget on the admission executor, not on a thread of the transfer executor streaming the admitted archives
+   *
+   * @throws Exception
+   */
+  @Test
+  public void zipArchiveBeyondBudgetIsRejectedWithRetryAfter() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    AtomicReference<String> admittingThread = new AtomicReference<>();
+    doAnswer(invocation -> {
+      admittingThread.set(Thread.currentThread().getName());
+      return invocation.callRealMethod();
+    }).when(connectionService).downloadTaggedFilesToZipFileFromDropbox(anyString(), any(), any(), any(), any());
+    doAnswer(initQuerySolrClientForTag("1", "name1", "/path1", "tag1")).when(ControllerTestConfiguration.solrClientService)
+        .queryClient(anyString(), any(MapSolrParams.class));
+    try (ZipArchiveAdmission.Permit permit = ControllerTestConfiguration.admission.admit("other", 0)) {
+      performAsync(get("/api/v1/dropboxtags/zipped").param("tags", "tag1"))
+          .andExpect(status().isServiceUnavailable())
+          .andExpect(header().string("Retry-After", "30"))
+          .andExpect(jsonPath("$.code").value("ARCHIVE_BUDGET_EXCEEDED"));
+    }
+    assertThat(admittingThread.get()).startsWith("zip-admission-");
+  }
+
+  /**
+   * Test that a zip-archive is admitted by the real budget on the admission executor, after the request thread has
+   * returned, and that its budget is released once the archive has been streamed
+   *
+   * @throws Exception
+   */
+  @Test
+  public void zipArchiveIsAdmittedAndReleasesItsBudget() throws Exception {
+    reset(ControllerTestConfiguration.solrClientService);
+    reset(connectionService);
+    QueryResponse response = mock(QueryResponse.class);
+    when(response.getResults()).thenReturn(new SolrDocumentList());
+    when(response.getNextCursorMark()).thenReturn("*");
+    when(ControllerTestConfiguration.solrClientService.queryClient(anyString(), any(MapSolrParams.class))).thenReturn(response);
+
+    MvcResult admitted = this.mvc.perform(get("/api/v1/dropboxtags/zipped").param("tags", "tag1"))
+        .andExpect(request().asyncStarted()).andReturn();
+    MvcResult streamed = this.mvc.perform(asyncDispatch(admitted))
+        .andExpect(status().isOk())
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    streamed.getAsyncResult(10000);
+
+    assertThat(streamed.getResponse().getContentAsByteArray()).startsWith('P', 'K');
+    ControllerTestConfiguration.admission.admit("next", 0).close();
+  }
+
+  /**
+   * Perform a request and dispatch the result of its asynchronous processing
+   *
+   * @param requestBuilder the request
+   * @return the {@link ResultActions} of the dispatched result
+   * @throws Exception
+   */
+  private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+    MvcResult result = this.mvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+    return this.mvc.perform(asyncDispatch(result));
+  }
+
+  private static SolrDocumentList solrDocumentList(SolrDocument... documents) {
+    SolrDocumentList documentList = new SolrDocumentList();
+    documentList.addAll(Arrays.asList(documents));
+    return documentList;
+  }
+
+  private SolrDocument initSolrDocument(String id, String name, String path, String tags) {
+    SolrDocument document = new SolrDocument();
+    document.setField("id", id);
+    document.setField("name", name);
+    document.setField("path", path);
+    document.setField("tags", TagsDeserializer.parseTags(tags));
+    return document;
+  }
+
   private Answer initQuerySolrClientForTag(String id, String name, String path, String tags) {
 
     return new Answer() {
@@ -157,7 +497,7 @@ public class DropboxTagControllerTest {
         when(document.getFirstValue("id")).thenReturn(id);
         when(document.getFirstValue("name")).thenReturn(name);
         when(document.getFirstValue("path")).thenReturn(path);
-        when(document.getFirstValue("tags")).thenReturn(tags);
+        when(document.getFieldValues("tags")).thenReturn(new ArrayList<>(TagsDeserializer.parseTags(tags)));
 
         SolrDocumentList solrDocumentList = new SolrDocumentList();
         solrDocumentList.add(document);
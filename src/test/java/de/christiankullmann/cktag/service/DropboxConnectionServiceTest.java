@@ -0,0 +1,412 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.DbxDownloadStyleBuilder;
+import com.dropbox.core.v2.files.DbxUserFilesRequests;
+import com.dropbox.core.v2.files.DownloadBuilder;
+import com.dropbox.core.v2.files.DownloadErrorException;
+import com.dropbox.core.v2.files.FileMetadata;
+import de.christiankullmann.cktag.exception.DropboxDownloadException;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DropboxConnectionServiceTest {
+
+  private static final List<String> TAGS = Collections.singletonList("tag");
+
+  @Mock
+  private DbxClientV2 client;
+
+  @Mock
+  private DbxUserFilesRequests files;
+
+  @Mock
+  private DropboxTagSolrService solrService;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private ThreadPoolTaskExecutor downloadExecutor;
+
+  private DropboxConnectionService dropboxConnectionService;
+
+  @BeforeEach
+  void setUp() {
+    downloadExecutor = new ThreadPoolTaskExecutor();
+    downloadExecutor.setCorePoolSize(4);
+    downloadExecutor.initialize();
+    dropboxConnectionService = createDropboxConnectionService(false, false);
+    when(client.files()).thenReturn(files);
+  }
+
+  @AfterEach
+  void tearDown() {
+    downloadExecutor.shutdown();
+  }
+
+  /**
+   * The archive entries must follow the order of the DropboxTags, even if later downloads finish first.
+   * The downloads and the archive must be reported to the {@link io.micrometer.core.instrument.MeterRegistry}.
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeZipArchiveKeepsOrderOfDropboxTags() throws Exception {
+    when(files.download(anyString())).thenAnswer(invocation -> {
+      String path = invocation.getArgument(0);
+      if (path.equals("/first")) {
+        Thread.sleep(200);
+      }
+      return downloaderFor(path);
+    });
+    List<DropboxTag> dropboxTags = Arrays.asList(
+        new DropboxTag("1", "first.txt", "/first", TAGS),
+        new DropboxTag("2", "second.txt", "/second", TAGS),
+        new DropboxTag("3", "third.txt", "/third", TAGS));
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    dropboxConnectionService.writeZipArchive("tag", dropboxTags, 0, outputStream);
+
+    List<String> names = new ArrayList<>();
+    try (ZipArchiveInputStream zipInputStream = new ZipArchiveInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      ZipArchiveEntry entry;
+      while ((entry = zipInputStream.getNextZipEntry()) != null) {
+        names.add(entry.getName());
+        assertThat(new String(IOUtils.toByteArray(zipInputStream), StandardCharsets.UTF_8)).isEqualTo("content of " + entry.getName().replace(".txt", ""));
+      }
+    }
+    assertThat(names).containsExactly("first.txt", "second.txt", "third.txt");
+    assertThat(meterRegistry.get("cktag.dropbox.requests").tags("operation", "download", "outcome", "success").timer().count()).isEqualTo(3);
+    assertThat(meterRegistry.get("cktag.dropbox.download.bytes").counter().count()).isEqualTo(49);
+    assertThat(meterRegistry.get("cktag.zip.builds").tags("layout", "dynamic", "outcome", "success").timer().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("cktag.zip.entries").tags("layout", "dynamic").summary().totalAmount()).isEqualTo(3);
+    assertThat(meterRegistry.get("cktag.zip.compression.ratio").summary().count()).isEqualTo(1);
+  }
+
+  /**
+   * In parallel mode the entries must keep their order as well, already compressed files must be STORED
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeZipArchiveInParallelModeKeepsOrderAndStoresCompressedFiles() throws Exception {
+    dropboxConnectionService = createDropboxConnectionService(true, false);
+    when(files.download(anyString())).thenAnswer(invocation -> downloaderFor(invocation.getArgument(0)));
+    List<DropboxTag> dropboxTags = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      dropboxTags.add(new DropboxTag(Integer.toString(i), "file" + i + (i % 2 == 0 ? ".txt" : ".jpg"), "/file" + i, TAGS));
+    }
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    dropboxConnectionService.writeZipArchive("tag", dropboxTags, 0, outputStream);
+
+    List<String> names = new ArrayList<>();
+    try (ZipArchiveInputStream zipInputStream = new ZipArchiveInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      ZipArchiveEntry entry;
+      while ((entry = zipInputStream.getNextZipEntry()) != null) {
+        names.add(entry.getName());
+        assertThat(entry.getMethod()).isEqualTo(entry.getName().endsWith(".jpg") ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED);
+      }
+    }
+    assertThat(names).containsExactlyElementsOf(dropboxTags.stream().map(dropboxTag -> dropboxTag.name).collect(Collectors.toList()));
+  }
+
+  /**
+   * Selections larger than the maximum download size must be rejected before anything is downloaded
+   *
+   * @throws Exception
+   */
+  @Test
+  void downloadRejectsSelectionExceedingMaximumSize() throws Exception {
+    when(files.getMetadata(anyString())).thenAnswer(invocation -> {
+      String path = invocation.getArgument(0);
+      return new FileMetadata(path.substring(1), "id:" + path, new Date(), new Date(), "0123456789", 600);
+    });
+    List<DropboxTag> dropboxTags = Arrays.asList(
+        new DropboxTag("1", "first.txt", "/first", TAGS),
+        new DropboxTag("2", "second.txt", "/second", TAGS));
+
+    assertThrows(DropboxDownloadException.class,
+        () -> dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags, new DropboxTagSizeSum(0, 2), new HttpHeaders(), new ZipArchiveAdmission.PermitHolder()));
+    verify(files, never()).download(anyString());
+  }
+
+  /**
+   * A file must be read from the file cache only while its indexed rev is the cached one,
+   * once the file has been overwritten in Dropbox its new content must be downloaded
+   *
+   * @throws Exception
+   */
+  @Test
+  void fileCacheIsOnlyReadForTheIndexedRev() throws Exception {
+    Path cacheDirectory = Files.createTempDirectory("cktag-cache");
+    try {
+      DropboxFileCache fileCache = new DropboxFileCache(true, cacheDirectory.toString(), 1 << 20);
+      fileCache.init();
+      dropboxConnectionService = createDropboxConnectionService(false, false, fileCache);
+      when(files.download("/file")).thenReturn(
+          downloaderFor("/file", "0123456789", "old content"),
+          downloaderFor("/file", "abcdef0123", "new content"));
+      DropboxTag dropboxTag = new DropboxTag("1", "file.txt", "/file", TAGS);
+      dropboxTag.rev = "0123456789";
+
+      assertThat(zipArchiveContent(dropboxTag)).isEqualTo("old content");
+      assertThat(zipArchiveContent(dropboxTag)).isEqualTo("old content");
+      verify(files, times(1)).download("/file");
+
+      dropboxTag.rev = "abcdef0123";
+      assertThat(zipArchiveContent(dropboxTag)).isEqualTo("new content");
+      verify(files, times(2)).download("/file");
+    } finally {
+      FileSystemUtils.deleteRecursively(cacheDirectory.toFile());
+    }
+  }
+
+  /**
+   * The indexed sizes must be checked without asking Dropbox, only files without an indexed size are looked up and recorded
+   *
+   * @throws Exception
+   */
+  @Test
+  void downloadChecksIndexedSizesAndLooksUpUnknownFilesOnly() throws Exception {
+    when(files.getMetadata("/second")).thenReturn(new FileMetadata("second", "id:/second", new Date(), new Date(), "0123456789", 300));
+    DropboxTag first = new DropboxTag("1", "first.txt", "/first", TAGS);
+    first.size = 600L;
+    first.rev = "0123456789";
+    List<DropboxTag> dropboxTags = Arrays.asList(first, new DropboxTag("2", "second.txt", "/second", TAGS));
+
+    assertThrows(DropboxDownloadException.class,
+        () -> dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags, new DropboxTagSizeSum(1025, 1), new HttpHeaders(), new ZipArchiveAdmission.PermitHolder()));
+    verify(files, never()).getMetadata(anyString());
+
+    assertThat(dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags, new DropboxTagSizeSum(600, 1), new HttpHeaders(), new ZipArchiveAdmission.PermitHolder())
+        .getStatusCodeValue()).isEqualTo(200);
+    verify(files, times(1)).getMetadata(anyString());
+    verify(solrService).syncDropboxTags(argThat(changes -> changes.size() == 1 && changes.iterator().next().id.equals("2")
+        && changes.iterator().next().size == 300L), eq(Collections.emptyList()));
+  }
+
+  /**
+   * A file changed in Dropbox since its size was indexed must be checked again with its new size and have its metadata recorded
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeZipArchiveVerifiesChangedFilesAgain() throws Exception {
+    when(files.download(anyString())).thenAnswer(invocation -> downloaderFor(invocation.getArgument(0)));
+    DropboxTag unchanged = new DropboxTag("1", "first.txt", "/first", TAGS);
+    unchanged.size = 1000L;
+    unchanged.rev = "0123456789";
+    unchanged.crc32 = 1L;
+    DropboxTag changed = new DropboxTag("2", "second.txt", "/second", TAGS);
+    changed.size = 1L;
+    changed.rev = "abcdef0123";
+    List<DropboxTag> dropboxTags = Arrays.asList(unchanged, changed);
+
+    DropboxDownloadException exception = assertThrows(DropboxDownloadException.class,
+        () -> dropboxConnectionService.writeZipArchive("tag", dropboxTags, 1010, new ByteArrayOutputStream()));
+    assertThat(exception.getMessage()).contains("/second");
+    verify(solrService).syncDropboxTags(argThat(changes -> changes.size() == 1 && changes.iterator().next().id.equals("2")
+        && changes.iterator().next().rev.equals("0123456789")), eq(Collections.emptyList()));
+  }
+
+  /**
+   * A failing download must abort the archive with a {@link DropboxDownloadException} naming the file
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeZipArchiveReportsFailedDownload() throws Exception {
+    when(files.download("/broken")).thenThrow(mock(DownloadErrorException.class));
+    List<DropboxTag> dropboxTags = Arrays.asList(new DropboxTag("1", "broken.txt", "/broken", TAGS));
+
+    DropboxDownloadException exception = assertThrows(DropboxDownloadException.class,
+        () -> dropboxConnectionService.writeZipArchive("tag", dropboxTags, 0, new ByteArrayOutputStream()));
+    assertThat(exception.getMessage()).contains("/broken");
+  }
+
+  /**
+   * An archive aborted in parallel mode must delete the backing stores of its compression threads
+   * and the temporary files of its prefetched downloads
+   *
+   * @throws Exception
+   */
+  @Test
+  void abortedParallelZipArchiveDeletesBackingStores() throws Exception {
+    dropboxConnectionService = createDropboxConnectionService(true, false);
+    when(files.download(anyString())).thenAnswer(invocation -> downloaderFor(invocation.getArgument(0)));
+    when(files.download("/broken")).thenThrow(mock(DownloadErrorException.class));
+    List<DropboxTag> dropboxTags = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      dropboxTags.add(new DropboxTag(Integer.toString(i), "file" + i + ".txt", "/file" + i, TAGS));
+    }
+    dropboxTags.add(new DropboxTag("broken", "broken.txt", "/broken", TAGS));
+    List<String> backingStoresBefore = tempFiles("cktag-scatter");
+    List<String> downloadsBefore = tempFiles("cktag-download");
+
+    assertThrows(DropboxDownloadException.class,
+        () -> dropboxConnectionService.writeZipArchive("tag", dropboxTags, 0, new ByteArrayOutputStream()));
+    assertThat(tempFiles("cktag-scatter")).isSubsetOf(backingStoresBefore);
+    assertThat(tempFiles("cktag-download")).isSubsetOf(downloadsBefore);
+  }
+
+  /**
+   * With indexed CRC-32s the archive must be laid out STORED with its length up front, and a Range request must be answered
+   * with exactly that part of the archive, downloading only the ranges of the files it covers
+   *
+   * @throws Exception
+   */
+  @Test
+  void storedZipArchiveAnswersRangeRequests() throws Exception {
+    dropboxConnectionService = createDropboxConnectionService(false, true);
+    List<DropboxTag> dropboxTags = Arrays.asList(indexedDropboxTag("1", "/first"), indexedDropboxTag("2", "/second"));
+    when(files.downloadBuilder(anyString())).thenAnswer(invocation -> rangeDownloadBuilderFor(invocation.getArgument(0)));
+
+    ResponseEntity<StreamingResponseBody> response = dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags,
+        new DropboxTagSizeSum(40, 0), new HttpHeaders(), new ZipArchiveAdmission.PermitHolder());
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    byte[] archive = writeBody(response);
+    assertThat(response.getHeaders().getContentLength()).isEqualTo(archive.length);
+    List<String> contents = new ArrayList<>();
+    try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archive))) {
+      ZipEntry entry;
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+        contents.add(entry.getName() + ":" + new String(IOUtils.toByteArray(zipInputStream), StandardCharsets.UTF_8));
+      }
+    }
+    assertThat(contents).containsExactly("first.txt:content of first", "second.txt:content of second");
+
+    HttpHeaders rangeHeaders = new HttpHeaders();
+    rangeHeaders.set(HttpHeaders.RANGE, "bytes=60-");
+    rangeHeaders.set(HttpHeaders.IF_RANGE, response.getHeaders().getETag());
+    ResponseEntity<StreamingResponseBody> partial = dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags,
+        new DropboxTagSizeSum(40, 0), rangeHeaders, new ZipArchiveAdmission.PermitHolder());
+    assertThat(partial.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(partial.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 60-" + (archive.length - 1) + "/" + archive.length);
+    assertThat(writeBody(partial)).isEqualTo(Arrays.copyOfRange(archive, 60, archive.length));
+    verify(files, never()).download(anyString());
+
+    rangeHeaders.set(HttpHeaders.IF_RANGE, "\"outdated\"");
+    assertThat(dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags, new DropboxTagSizeSum(40, 0), rangeHeaders, new ZipArchiveAdmission.PermitHolder())
+        .getStatusCode()).isEqualTo(HttpStatus.OK);
+    rangeHeaders.remove(HttpHeaders.IF_RANGE);
+    rangeHeaders.set(HttpHeaders.RANGE, "bytes=" + archive.length + "-");
+    assertThat(dropboxConnectionService.downloadTaggedFilesToZipFileFromDropbox("tag", dropboxTags, new DropboxTagSizeSum(40, 0), rangeHeaders, new ZipArchiveAdmission.PermitHolder())
+        .getStatusCode()).isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  private DropboxTag indexedDropboxTag(String id, String path) {
+    byte[] content = ("content of " + path.substring(1)).getBytes(StandardCharsets.UTF_8);
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    DropboxTag dropboxTag = new DropboxTag(id, path.substring(1) + ".txt", path, TAGS);
+    dropboxTag.size = (long) content.length;
+    dropboxTag.rev = "0123456789" + id;
+    dropboxTag.crc32 = crc32.getValue();
+    dropboxTag.serverModified = new Date();
+    return dropboxTag;
+  }
+
+  @SuppressWarnings("unchecked")
+  private DownloadBuilder rangeDownloadBuilderFor(String revPath) throws Exception {
+    String path = revPath.equals("rev:01234567891") ? "/first" : "/second";
+    DbxDownloader<FileMetadata> downloader = downloaderFor(path);
+    byte[] content = IOUtils.toByteArray(downloader.getInputStream());
+    DownloadBuilder downloadBuilder = mock(DownloadBuilder.class);
+    when(downloadBuilder.range(anyLong(), anyLong())).thenAnswer(invocation -> {
+      int offset = ((Long) invocation.getArgument(0)).intValue();
+      int length = ((Long) invocation.getArgument(1)).intValue();
+      DbxDownloadStyleBuilder<FileMetadata> rangeBuilder = mock(DbxDownloadStyleBuilder.class);
+      when(rangeBuilder.start()).thenReturn(new DbxDownloader<>(downloader.getResult(), new ByteArrayInputStream(content, offset, length)));
+      return rangeBuilder;
+    });
+    return downloadBuilder;
+  }
+
+  private static byte[] writeBody(ResponseEntity<StreamingResponseBody> response) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    response.getBody().writeTo(outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private String zipArchiveContent(DropboxTag dropboxTag) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    dropboxConnectionService.writeZipArchive("tag", Collections.singletonList(dropboxTag), 0, outputStream);
+    try (ZipArchiveInputStream zipInputStream = new ZipArchiveInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      assertThat(zipInputStream.getNextZipEntry()).isNotNull();
+      return new String(IOUtils.toByteArray(zipInputStream), StandardCharsets.UTF_8);
+    }
+  }
+
+  private DropboxConnectionService createDropboxConnectionService(boolean parallelCompression, boolean rangesEnabled) {
+    return createDropboxConnectionService(parallelCompression, rangesEnabled, new DropboxFileCache(false, "", 0));
+  }
+
+  private DropboxConnectionService createDropboxConnectionService(boolean parallelCompression, boolean rangesEnabled, DropboxFileCache fileCache) {
+    ZipCompressionPolicy compressionPolicy = new ZipCompressionPolicy(6, new String[]{"jpg"}, new String[]{"video/*"}, parallelCompression, 2);
+    return new DropboxConnectionService(client, 1024, downloadExecutor, 2, downloadExecutor, new DropboxMetadataCache(100, 60),
+        fileCache, compressionPolicy, solrService,
+        new ZipArchiveAdmission(1 << 20, 4, 0, 30, new SimpleMeterRegistry()),
+        new DropboxRateLimiter(1, 4, 0.5, 2, 1, 10, new SimpleMeterRegistry()), rangesEnabled, meterRegistry);
+  }
+
+  private static List<String> tempFiles(String prefix) {
+    String[] names = new File(System.getProperty("java.io.tmpdir")).list((directory, name) -> name.startsWith(prefix));
+    return null == names ? Collections.emptyList() : Arrays.asList(names);
+  }
+
+  private DbxDownloader<FileMetadata> downloaderFor(String path) {
+    byte[] content = ("content of " + path.substring(1)).getBytes(StandardCharsets.UTF_8);
+    FileMetadata metadata = new FileMetadata(path.substring(1), "id:" + path, new Date(), new Date(), "0123456789", content.length);
+    return new DbxDownloader<>(metadata, new ByteArrayInputStream(content));
+  }
+
+  private static DbxDownloader<FileMetadata> downloaderFor(String path, String rev, String content) {
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    FileMetadata metadata = FileMetadata.newBuilder(path.substring(1), "id:" + path, new Date(), new Date(), rev, bytes.length)
+        .withContentHash(String.join("", Collections.nCopies(32, rev.substring(0, 2))))
+        .build();
+    return new DbxDownloader<>(metadata, new ByteArrayInputStream(bytes));
+  }
+}
@@ -0,0 +1,106 @@
+package de.christiankullmann.cktag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DropboxFileCacheTest {
+
+  private Path directory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("cktag-cache-test");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  /**
+   * A stored file must be readable by its content_hash, also after a restart
+   *
+   * @throws Exception
+   */
+  @Test
+  void storedFileCanBeOpenedAfterRestart() throws Exception {
+    DropboxFileCache cache = createCache(100);
+    try (FileChannel channel = cache.store("aa", content("0123456789"))) {
+      assertThat(read(channel)).isEqualTo("0123456789");
+    }
+
+    DropboxFileCache restartedCache = createCache(100);
+    try (FileChannel channel = restartedCache.open("aa")) {
+      assertThat(read(channel)).isEqualTo("0123456789");
+    }
+    assertThat(restartedCache.getCurrentSize()).isEqualTo(10);
+    assertThat(restartedCache.open("bb")).isNull();
+  }
+
+  /**
+   * The least recently used file must be evicted once the cache exceeds its maximum size
+   *
+   * @throws Exception
+   */
+  @Test
+  void leastRecentlyUsedFileIsEvicted() throws Exception {
+    DropboxFileCache cache = createCache(20);
+    cache.store("aa", content("0123456789")).close();
+    cache.store("bb", content("0123456789")).close();
+    cache.open("aa").close();
+    cache.store("cc", content("0123456789")).close();
+
+    assertThat(cache.open("bb")).isNull();
+    assertThat(Files.exists(directory.resolve("bb"))).isFalse();
+    try (FileChannel channel = cache.open("aa")) {
+      assertThat(channel).isNotNull();
+    }
+    assertThat(cache.getCurrentSize()).isEqualTo(20);
+  }
+
+  /**
+   * Files larger than the cache are readable once but not kept
+   *
+   * @throws Exception
+   */
+  @Test
+  void fileLargerThanCacheIsNotKept() throws Exception {
+    DropboxFileCache cache = createCache(5);
+    try (FileChannel channel = cache.store("aa", content("0123456789"))) {
+      assertThat(read(channel)).isEqualTo("0123456789");
+    }
+    assertThat(cache.open("aa")).isNull();
+    assertThat(cache.getCurrentSize()).isEqualTo(0);
+  }
+
+  private DropboxFileCache createCache(long maximumSize) throws IOException {
+    DropboxFileCache cache = new DropboxFileCache(true, directory.toString(), maximumSize);
+    cache.init();
+    return cache;
+  }
+
+  private static ByteArrayInputStream content(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+    channel.read(buffer, 0);
+    return new String(buffer.array(), StandardCharsets.UTF_8);
+  }
+}
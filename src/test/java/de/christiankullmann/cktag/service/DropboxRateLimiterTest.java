@@ -0,0 +1,161 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.BadRequestException;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.ServerException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DropboxRateLimiterTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final DropboxRateLimiter rateLimiter = new DropboxRateLimiter(1, 8, 0.5, 2, 1, 10, meterRegistry);
+
+  /**
+   * A rate-limited request must halve the limit once, wait for the Retry-After and succeed on the retry,
+   * successful requests must raise the limit again
+   *
+   * @throws Exception
+   */
+  @Test
+  void rateLimitHalvesLimitAndIsRetriedAfterRetryAfter() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    long start = System.nanoTime();
+
+    String result = rateLimiter.call("test", () -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new RateLimitException(null, "too many requests", 50, TimeUnit.MILLISECONDS);
+      }
+      return "done";
+    });
+
+    assertThat(result).isEqualTo("done");
+    assertThat(attempts.get()).isEqualTo(2);
+    assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+    assertThat(rateLimiter.getLimit()).isEqualTo(4 + 1 / 4.0);
+    assertThat(rateLimiter.getInFlight()).isZero();
+    assertThat(meterRegistry.get("cktag.dropbox.ratelimited").counter().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("cktag.dropbox.retries").counter().count()).isEqualTo(1);
+
+    for (int i = 0; i < 30; i++) {
+      rateLimiter.call("test", () -> "done");
+    }
+    assertThat(rateLimiter.getLimit()).isEqualTo(8);
+    assertThat(meterRegistry.get("cktag.dropbox.concurrency.limit").gauge().value()).isEqualTo(8);
+  }
+
+  /**
+   * Retryable errors must be given up after the maximum number of retries, other errors must be thrown at once
+   */
+  @Test
+  void retriesAreLimitedToRetryableErrors() {
+    AtomicInteger attempts = new AtomicInteger();
+    assertThrows(ServerException.class, () -> rateLimiter.call("test", () -> {
+      attempts.incrementAndGet();
+      throw new ServerException(null, "internal server error");
+    }));
+    assertThat(attempts.get()).isEqualTo(3);
+
+    attempts.set(0);
+    assertThrows(BadRequestException.class, () -> rateLimiter.call("test", () -> {
+      attempts.incrementAndGet();
+      throw new BadRequestException(null, "bad request");
+    }));
+    assertThat(attempts.get()).isEqualTo(1);
+    assertThat(rateLimiter.getLimit()).isEqualTo(8);
+    assertThat(rateLimiter.getInFlight()).isZero();
+  }
+
+  /**
+   * Requests started before a decrease must not lower the limit again when they are rate-limited as well
+   *
+   * @throws Exception
+   */
+  @Test
+  void limitIsDecreasedOncePerRound() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    DropboxRateLimiter.DropboxCall<String> inner = () -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new RateLimitException(null, "too many requests", 1, TimeUnit.MILLISECONDS);
+      }
+      return "inner";
+    };
+    // the outer request is in flight while the inner one lowers the limit and is rate-limited itself afterwards
+    AtomicInteger outerAttempts = new AtomicInteger();
+    String result = rateLimiter.call("outer", () -> {
+      if (outerAttempts.incrementAndGet() == 1) {
+        assertThat(callQuietly(inner)).isEqualTo("inner");
+        throw new RateLimitException(null, "too many requests", 1, TimeUnit.MILLISECONDS);
+      }
+      return "outer";
+    });
+
+    assertThat(result).isEqualTo("outer");
+    assertThat(meterRegistry.get("cktag.dropbox.ratelimited").counter().count()).isEqualTo(2);
+    assertThat(rateLimiter.getLimit()).isGreaterThan(4).isLessThan(5);
+  }
+
+  /**
+   * A request outside of the limit must not occupy a concurrent request, even when the limit is reached,
+   * but a rate limit must still lower the limit
+   *
+   * @throws Exception
+   */
+  @Test
+  void requestOutsideLimitDoesNotOccupyConcurrentRequest() throws Exception {
+    DropboxRateLimiter singleRateLimiter = new DropboxRateLimiter(1, 1, 0.5, 2, 1, 10, meterRegistry);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    Thread limited = new Thread(() -> {
+      try {
+        singleRateLimiter.call("limited", () -> {
+          started.countDown();
+          try {
+            finished.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "done";
+        });
+      } catch (DbxException | InterruptedIOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    limited.start();
+    started.await();
+
+    AtomicInteger attempts = new AtomicInteger();
+    String result = singleRateLimiter.callOutsideLimit("longpoll", () -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new RateLimitException(null, "too many requests", 1, TimeUnit.MILLISECONDS);
+      }
+      return "done";
+    });
+    assertThat(result).isEqualTo("done");
+    assertThat(attempts.get()).isEqualTo(2);
+    assertThat(singleRateLimiter.getInFlight()).isEqualTo(1);
+    assertThat(meterRegistry.get("cktag.dropbox.ratelimited").counter().count()).isEqualTo(1);
+
+    finished.countDown();
+    limited.join();
+    assertThat(singleRateLimiter.getInFlight()).isZero();
+  }
+
+  private String callQuietly(DropboxRateLimiter.DropboxCall<String> call) throws DbxException {
+    try {
+      return rateLimiter.call("inner", call);
+    } catch (InterruptedIOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
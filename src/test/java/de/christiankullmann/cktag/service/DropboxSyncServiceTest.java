@@ -0,0 +1,242 @@
+package de.christiankullmann.cktag.service;
+
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.DbxUserFilesRequests;
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.ListFolderLongpollResult;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.dropbox.core.v2.files.Metadata;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DropboxSyncServiceTest {
+
+  private static final String COLLECTION_NAME = "cktag";
+
+  private static final List<String> TAGS = Collections.singletonList("tag");
+
+  @Mock
+  private DbxClientV2 client;
+
+  @Mock
+  private DbxClientV2 longpollClient;
+
+  @Mock
+  private DbxUserFilesRequests files;
+
+  @Mock
+  private DropboxTagSolrService solrService;
+
+  private Path directory;
+
+  private Path cursorFile;
+
+  private DropboxSyncService dropboxSyncService;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("cktag-sync");
+    cursorFile = directory.resolve("sync.cursor");
+    dropboxSyncService = createDropboxSyncService("/docs");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    Files.deleteIfExists(cursorFile);
+    Files.deleteIfExists(directory);
+  }
+
+  /**
+   * A rename is reported as a deletion of the old path, it must move the DropboxTag with the same file id instead
+   */
+  @Test
+  void applyMovesRenamedFiles() {
+    DropboxTag dropboxTag = dropboxTag("1", "old.doc", "/docs/old.doc", "id:a");
+    when(solrService.findAllByFileIdsOrPaths(anyCollection(), anyCollection(), anyCollection()))
+        .thenReturn(Collections.singletonList(dropboxTag));
+
+    dropboxSyncService.apply(Arrays.asList(
+        deleted("/docs/old.doc"),
+        file("id:a", "/docs/New.doc")));
+
+    List<DropboxTag> changes = captureChanges(Collections.emptyList());
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).id).isEqualTo("1");
+    assertThat(changes.get(0).name).isEqualTo("New.doc");
+    assertThat(changes.get(0).path).isEqualTo("/docs/New.doc");
+    assertThat(changes.get(0).fileId).isEqualTo("id:a");
+  }
+
+  /**
+   * Deleted files and the files of deleted folders must be deleted, unaffected DropboxTags must be left alone
+   */
+  @Test
+  void applyDeletesDeletedFilesAndFolders() {
+    DropboxTag file = dropboxTag("1", "a.doc", "/docs/a.doc", "id:a");
+    DropboxTag inFolder = dropboxTag("2", "b.doc", "/docs/folder/b.doc", "id:b");
+    DropboxTag similarFolder = dropboxTag("3", "c.doc", "/docs/folder2/c.doc", "id:c");
+    when(solrService.findAllByFileIdsOrPaths(anyCollection(), anyCollection(), anyCollection()))
+        .thenReturn(Arrays.asList(file, inFolder, similarFolder));
+
+    dropboxSyncService.apply(Arrays.asList(deleted("/docs/a.doc"), deleted("/docs/folder")));
+
+    verify(solrService).syncDropboxTags(Collections.emptyList(), Arrays.asList(file, inFolder));
+  }
+
+  /**
+   * A file at the path of a DropboxTag without file id must record the file id and metadata, a known rev changes nothing
+   */
+  @Test
+  void applyRecordsFileIds() {
+    DropboxTag unknown = dropboxTag("1", "a.doc", "/docs/a.doc", null);
+    DropboxTag known = dropboxTag("2", "b.doc", "/docs/b.doc", "id:b");
+    known.rev = "0123456789";
+    when(solrService.findAllByFileIdsOrPaths(anyCollection(), anyCollection(), anyCollection()))
+        .thenReturn(Arrays.asList(unknown, known));
+
+    dropboxSyncService.apply(Arrays.asList(file("id:a", "/docs/a.doc"), file("id:b", "/docs/b.doc")));
+
+    List<DropboxTag> changes = captureChanges(Collections.emptyList());
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).id).isEqualTo("1");
+    assertThat(changes.get(0).path).isNull();
+    assertThat(changes.get(0).fileId).isEqualTo("id:a");
+    assertThat(changes.get(0).size).isEqualTo(600L);
+    assertThat(changes.get(0).rev).isEqualTo("0123456789");
+  }
+
+  /**
+   * The changes must be fetched after the longpoll reports them and the cursor must be saved for the next start
+   */
+  @Test
+  void syncChangesSavesTheCursor() throws Exception {
+    when(longpollClient.files()).thenReturn(files);
+    when(client.files()).thenReturn(files);
+    when(files.listFolderLongpoll(eq("cursor1"), anyLong())).thenReturn(new ListFolderLongpollResult(true, null));
+    when(files.listFolderContinue(anyString())).thenReturn(
+        new ListFolderResult(new ArrayList<>(), "cursor2", true),
+        new ListFolderResult(new ArrayList<>(), "cursor3", false));
+
+    assertThat(dropboxSyncService.syncChanges("cursor1")).isEqualTo("cursor3");
+
+    assertThat(dropboxSyncService.readCursor()).isEqualTo("cursor3");
+    assertThat(createDropboxSyncService("/other").readCursor()).isNull();
+    verify(files).listFolderContinue("cursor1");
+    verify(files).listFolderContinue("cursor2");
+    verifyZeroInteractions(solrService);
+  }
+
+  /**
+   * DropboxTags written without file metadata must have it resolved before the next longpoll
+   */
+  @Test
+  void syncChangesResolvesFileIdsOfNewDropboxTags() throws Exception {
+    when(longpollClient.files()).thenReturn(files);
+    when(client.files()).thenReturn(files);
+    when(files.getMetadata("/docs/a.doc")).thenReturn(file("id:a", "/docs/a.doc"));
+    when(files.listFolderLongpoll(eq("cursor1"), anyLong())).thenReturn(new ListFolderLongpollResult(false, null));
+
+    dropboxSyncService.onWrite(COLLECTION_NAME, null, dropboxTag("1", "a.doc", "/docs/a.doc", null));
+    DropboxTag known = dropboxTag("2", "b.doc", "/docs/b.doc", "id:b");
+    known.rev = "0123456789";
+    dropboxSyncService.onWrite(COLLECTION_NAME, null, known);
+    dropboxSyncService.onWrite("otherCollection", null, dropboxTag("3", "c.doc", "/docs/c.doc", null));
+    dropboxSyncService.syncChanges("cursor1");
+
+    List<DropboxTag> changes = captureChanges(new ArrayList<>());
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).id).isEqualTo("1");
+    assertThat(changes.get(0).fileId).isEqualTo("id:a");
+    verify(files, times(1)).getMetadata(any());
+  }
+
+  /**
+   * A rate limit while resolving the file metadata must not discard the files resolved before,
+   * the files not resolved must stay pending for the next longpoll
+   *
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  void syncChangesKeepsUnresolvedFilesPending() throws Exception {
+    RateLimitException rateLimitException = new RateLimitException(null, "too many requests", 1, TimeUnit.MILLISECONDS);
+    when(longpollClient.files()).thenReturn(files);
+    when(client.files()).thenReturn(files);
+    when(files.getMetadata("/docs/a.doc")).thenReturn(file("id:a", "/docs/a.doc"));
+    doThrow(rateLimitException, rateLimitException, rateLimitException)
+        .doReturn(file("id:b", "/docs/b.doc"))
+        .when(files).getMetadata("/docs/b.doc");
+    when(files.listFolderLongpoll(eq("cursor1"), anyLong())).thenReturn(new ListFolderLongpollResult(false, null));
+
+    dropboxSyncService.onWrite(COLLECTION_NAME, null, dropboxTag("1", "a.doc", "/docs/a.doc", null));
+    dropboxSyncService.onWrite(COLLECTION_NAME, null, dropboxTag("2", "b.doc", "/docs/b.doc", null));
+    assertThrows(RateLimitException.class, () -> dropboxSyncService.syncChanges("cursor1"));
+    dropboxSyncService.syncChanges("cursor1");
+
+    ArgumentCaptor<Collection<DropboxTag>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(solrService, times(2)).syncDropboxTags(captor.capture(), eq(new ArrayList<>()));
+    assertThat(captor.getAllValues()).extracting(changes -> changes.iterator().next().id).containsExactly("1", "2");
+    verify(files, times(1)).getMetadata("/docs/a.doc");
+    verify(files, times(4)).getMetadata("/docs/b.doc");
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DropboxTag> captureChanges(Collection<DropboxTag> deletions) {
+    ArgumentCaptor<Collection<DropboxTag>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(solrService).syncDropboxTags(captor.capture(), eq(deletions));
+    return new ArrayList<>(captor.getValue());
+  }
+
+  private DropboxSyncService createDropboxSyncService(String folderPath) {
+    DropboxRateLimiter rateLimiter = new DropboxRateLimiter(1, 4, 0.5, 2, 1, 10, new SimpleMeterRegistry());
+    return new DropboxSyncService(client, longpollClient, rateLimiter, solrService, COLLECTION_NAME, true, folderPath,
+        cursorFile.toString(), 30, 60);
+  }
+
+  private static DropboxTag dropboxTag(String id, String name, String path, String fileId) {
+    DropboxTag dropboxTag = new DropboxTag(id, name, path, TAGS);
+    dropboxTag.fileId = fileId;
+    return dropboxTag;
+  }
+
+  private static Metadata file(String fileId, String path) {
+    return FileMetadata.newBuilder(path.substring(path.lastIndexOf('/') + 1), fileId, new Date(), new Date(), "0123456789", 600)
+        .withPathLower(path.toLowerCase())
+        .withPathDisplay(path)
+        .build();
+  }
+
+  private static Metadata deleted(String path) {
+    return new DeletedMetadata(path.substring(path.lastIndexOf('/') + 1), path.toLowerCase(), path, null);
+  }
+}
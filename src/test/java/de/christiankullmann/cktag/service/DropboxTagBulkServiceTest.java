@@ -0,0 +1,54 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DropboxTagBulkServiceTest {
+
+  private static final String COLLECTION_NAME = "cktag";
+
+  @Mock
+  private SolrClientService clientService;
+
+  @Mock
+  private DropboxTagWriteListener failingListener;
+
+  @Mock
+  private DropboxTagWriteListener listener;
+
+  /**
+   * Every entry of a batch must be reported as added to every listener, even if a listener fails on one of them
+   */
+  @Test
+  void failingListenerDoesNotSkipTheRestOfTheBatch() {
+    doThrow(new IllegalStateException("failed")).doNothing()
+        .when(failingListener).onWrite(eq(COLLECTION_NAME), isNull(), any(DropboxTag.class));
+    DropboxTagBulkService bulkService = new DropboxTagBulkService(clientService, new ObjectMapper(), COLLECTION_NAME, 10,
+        Arrays.asList(failingListener, listener));
+
+    BulkIngestResult result = bulkService.addDropboxTagEntries(new ByteArrayInputStream(
+        ("{\"name\": \"a.doc\", \"path\": \"/a.doc\", \"tags\": \"a\"}\n"
+            + "{\"name\": \"b.doc\", \"path\": \"/b.doc\", \"tags\": \"b\"}\n"
+            + "{\"name\": \"c.doc\", \"path\": \"/c.doc\", \"tags\": \"c\"}\n").getBytes(StandardCharsets.UTF_8)));
+
+    assertThat(result.getSucceeded()).isEqualTo(3);
+    verify(failingListener, times(3)).onWrite(eq(COLLECTION_NAME), isNull(), any(DropboxTag.class));
+    ArgumentCaptor<DropboxTag> writtenCaptor = ArgumentCaptor.forClass(DropboxTag.class);
+    verify(listener, times(3)).onWrite(eq(COLLECTION_NAME), isNull(), writtenCaptor.capture());
+    assertThat(writtenCaptor.getAllValues()).extracting(dropboxTag -> dropboxTag.name).containsExactly("a.doc", "b.doc", "c.doc");
+  }
+}
@@ -0,0 +1,74 @@
+package de.christiankullmann.cktag.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.christiankullmann.cktag.exception.UnsupportedFormatException;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@ExtendWith(MockitoExtension.class)
+class DropboxTagExportServiceTest {
+
+  @Mock
+  private DropboxTagSolrService dropboxTagSolrService;
+
+  private DropboxTagExportService dropboxTagExportService;
+
+  private final List<DropboxTag> dropboxTags = Arrays.asList(
+      new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("cooking", "book")),
+      new DropboxTag("2", "say \"cheese\".jpg", "/say \"cheese\".jpg", Arrays.asList("holiday")));
+
+  @BeforeEach
+  void setUp() {
+    dropboxTagExportService = new DropboxTagExportService(dropboxTagSolrService, new ObjectMapper());
+  }
+
+  /**
+   * Every DropboxTag must be written as one JSON object per line
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeNdjsonWritesOneObjectPerLine() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    dropboxTagExportService.writeNdjson(dropboxTags, outputStream);
+
+    assertThat(new String(outputStream.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+        "{\"id\":\"1\",\"name\":\"myCookbook.doc\",\"path\":\"/myCookbook.doc\",\"tags\":[\"cooking\",\"book\"]}\n"
+            + "{\"id\":\"2\",\"name\":\"say \\\"cheese\\\".jpg\",\"path\":\"/say \\\"cheese\\\".jpg\",\"tags\":[\"holiday\"]}\n");
+  }
+
+  /**
+   * Fields containing separators or quotes must be quoted
+   *
+   * @throws Exception
+   */
+  @Test
+  void writeCsvQuotesFields() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    dropboxTagExportService.writeCsv(dropboxTags, outputStream);
+
+    assertThat(new String(outputStream.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+        "id,name,path,tags\r\n"
+            + "1,myCookbook.doc,/myCookbook.doc,\"cooking,book\"\r\n"
+            + "2,\"say \"\"cheese\"\".jpg\",\"/say \"\"cheese\"\".jpg\",holiday\r\n");
+  }
+
+  @Test
+  void exportByTagsRejectsUnknownFormat() {
+    assertThrows(UnsupportedFormatException.class, () -> dropboxTagExportService.exportByTags("tag", "xml"));
+  }
+}
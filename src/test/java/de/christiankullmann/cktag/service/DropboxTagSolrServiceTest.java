@@ -2,8 +2,13 @@ package de.christiankullmann.cktag.service;
 
 import de.christiankullmann.cktag.solr.DropboxTag;
 import de.christiankullmann.cktag.solr.DropboxTagAssembler;
-import de.christiankullmann.cktag.util.ApiUtils;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -11,11 +16,19 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.ResponseEntity;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -28,9 +41,6 @@ class DropboxTagSolrServiceTest {
 
   private DropboxTagAssembler assembler = new DropboxTagAssembler();
 
-  @Mock
-  private ApiUtils apiUtils;
-  
   private DropboxTagSolrService dropboxTagSolrServiceSpy;
 
   MapSolrParams queryParams = generateQueryParams();
@@ -48,7 +58,8 @@ class DropboxTagSolrServiceTest {
 
   @BeforeEach
   void setUp() {
-    dropboxTagSolrServiceSpy = spy(new DropboxTagSolrService(clientService, assembler, apiUtils, COLLECTION_NAME));
+    dropboxTagSolrServiceSpy = spy(new DropboxTagSolrService(clientService, assembler, new DropboxTagCache(100, 60), new DropboxTagQueryCache(1000),
+        new TagBitmapIndex(clientService, COLLECTION_NAME, false, 3600, 2), Collections.emptyList(), COLLECTION_NAME, 2));
   }
 
   @Test
@@ -60,9 +71,180 @@ class DropboxTagSolrServiceTest {
 
   @Test
   void addDropboxTagEntry() {
-    DropboxTag dropboxTag = new DropboxTag("","dropboxtagname","dropboxtagpath","dropboxtagtags");
+    DropboxTag dropboxTag = new DropboxTag("","dropboxtagname","dropboxtagpath",Arrays.asList("dropboxtagtags"));
     ResponseEntity responseEntity = dropboxTagSolrServiceSpy.addDropboxTagEntry(dropboxTag);
 
     assertNotNull(responseEntity);
   }
-}
\ No newline at end of file
+
+  /**
+   * All pages must be requested with the nextCursorMark of their predecessor until the cursor stops moving
+   */
+  @Test
+  void iterateAllByTagsWalksAllPagesWithCursorMark() {
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenAnswer(invocation -> {
+      MapSolrParams params = invocation.getArgument(1);
+      assertEquals("2", params.get("rows"));
+      switch (params.get(CursorMarkParams.CURSOR_MARK_PARAM)) {
+        case CursorMarkParams.CURSOR_MARK_START:
+          return queryResponse("A", "1", "2");
+        case "A":
+          return queryResponse("B", "3");
+        default:
+          return queryResponse("B");
+      }
+    });
+
+    List<String> ids = new ArrayList<>();
+    dropboxTagSolrServiceSpy.iterateAllByTags("tag").forEach(dropboxTag -> ids.add(dropboxTag.id));
+
+    assertEquals(Arrays.asList("1", "2", "3"), ids);
+    verify(clientService, times(3)).queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class));
+  }
+
+  /**
+   * Repeated lookups by id must be served from the entry cache until the entry is deleted
+   */
+  @Test
+  void getDropboxTagByIdUsesEntryCacheUntilDelete() {
+    SolrDocument document = new SolrDocument();
+    document.setField("id", "1");
+    document.setField("name", "name1");
+    document.setField("path", "/path1");
+    document.setField("tags", "tag");
+    when(clientService.getById(COLLECTION_NAME, "1")).thenReturn(document);
+
+    assertEquals("/path1", dropboxTagSolrServiceSpy.getDropboxTagById("1").getContent().path);
+    assertEquals("/path1", dropboxTagSolrServiceSpy.getDropboxTagById("1").getContent().path);
+    verify(clientService, times(1)).getById(COLLECTION_NAME, "1");
+
+    dropboxTagSolrServiceSpy.deleteDropboxTag("1");
+    dropboxTagSolrServiceSpy.getDropboxTagById("1");
+    verify(clientService, times(2)).getById(COLLECTION_NAME, "1");
+  }
+
+  /**
+   * Repeated searches must be answered from the query cache until a write advances the write generation
+   */
+  @Test
+  void getAllByTagsUsesQueryCacheUntilNextWrite() {
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(queryResponse("*", "1", "2"));
+    when(clientService.getWriteGeneration()).thenReturn(1L);
+
+    assertEquals(2, dropboxTagSolrServiceSpy.getAllByTagsAsList("tag1  AND tag2", "0", "10").size());
+    assertEquals(2, dropboxTagSolrServiceSpy.getAllByTagsAsList(" tag1 AND tag2", "0", "10").size());
+    verify(clientService, times(1)).queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class));
+
+    when(clientService.getWriteGeneration()).thenReturn(2L);
+    dropboxTagSolrServiceSpy.getAllByTagsAsList("tag1 AND tag2", "0", "10");
+    verify(clientService, times(2)).queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class));
+  }
+
+  /**
+   * The size check must be answered by one stats query, entries without an indexed size must be counted as unknown
+   */
+  @Test
+  void sumSizesByTagsUsesStatsQuery() {
+    NamedList<Object> sizeStats = new NamedList<>();
+    sizeStats.add("count", 2L);
+    sizeStats.add("missing", 1L);
+    sizeStats.add("sum", 1536.0);
+    NamedList<Object> statsFields = new NamedList<>();
+    statsFields.add("size", sizeStats);
+    NamedList<Object> stats = new NamedList<>();
+    stats.add("stats_fields", statsFields);
+    QueryResponse response = queryResponse("*");
+    response.getResponse().add("stats", stats);
+    response.setResponse(response.getResponse());
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(response);
+
+    DropboxTagSizeSum sizeSum = dropboxTagSolrServiceSpy.sumSizesByTags("tag");
+
+    assertEquals(1536L, sizeSum.getSize());
+    assertEquals(1L, sizeSum.getUnknown());
+    verify(clientService).queryClient(eq(COLLECTION_NAME), argThat(params -> "size".equals(params.get("stats.field"))
+        && "0".equals(params.get("rows"))));
+  }
+
+  /**
+   * The metadata of the file must be read from Solr, a new path must drop it in Solr as it belongs to the old file
+   */
+  @Test
+  void patchOfPathDropsFileMetadata() {
+    SolrDocument document = new SolrDocument();
+    document.setField("id", "1");
+    document.setField("path", "/path1");
+    document.setField("size", 42);
+    document.setField("rev", "0123456789");
+    document.setField("content_hash", "hash");
+    when(clientService.getById(COLLECTION_NAME, "1")).thenReturn(document);
+    DropboxTag dropboxTag = dropboxTagSolrServiceSpy.getDropboxTagById("1").getContent();
+    assertEquals(Long.valueOf(42), dropboxTag.size);
+    assertEquals("0123456789", dropboxTag.rev);
+    assertEquals("hash", dropboxTag.contentHash);
+
+    when(clientService.updateDropboxTags(eq(COLLECTION_NAME), any())).thenReturn(Collections.singletonMap("1", 2L));
+    dropboxTagSolrServiceSpy.patchUpdateDropboxTag("1", new DropboxTag(null, null, "/path2", null));
+
+    verify(clientService).updateDropboxTags(eq(COLLECTION_NAME), argThat(documents -> {
+      SolrInputDocument update = documents.iterator().next();
+      return update.getFieldValue("size").equals(Collections.singletonMap("set", null))
+          && update.getFieldValue("rev").equals(Collections.singletonMap("set", null))
+          && update.getFieldValue("path").equals(Collections.singletonMap("set", "/path2"));
+    }));
+  }
+
+  /**
+   * Patching the tags an entry carries already, or adding them again, must not move the suggested counts
+   */
+  @Test
+  void patchOfSameTagsKeepsSuggestedCounts() {
+    TagSuggestIndex tagSuggestIndex = new TagSuggestIndex(clientService, COLLECTION_NAME, 300);
+    DropboxTagSolrService dropboxTagSolrService = new DropboxTagSolrService(clientService, assembler, new DropboxTagCache(100, 60),
+        new DropboxTagQueryCache(1000), new TagBitmapIndex(clientService, COLLECTION_NAME, false, 3600, 2),
+        Collections.singletonList(tagSuggestIndex), COLLECTION_NAME, 2);
+    SolrDocument document = new SolrDocument();
+    document.setField("id", "1");
+    document.setField("name", "name1");
+    document.setField("path", "/path1");
+    document.setField("tags", Arrays.asList("cooking", "book"));
+    when(clientService.getById(COLLECTION_NAME, "1")).thenReturn(document);
+    when(clientService.updateDropboxTags(eq(COLLECTION_NAME), any())).thenReturn(Collections.singletonMap("1", 2L));
+    tagSuggestIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("1", "name1", "/path1", Arrays.asList("cooking", "book")));
+
+    try {
+      for (int i = 0; i < 2; i++) {
+        dropboxTagSolrService.patchUpdateDropboxTag("1", new DropboxTag(null, null, null, Arrays.asList("cooking", "book")));
+        dropboxTagSolrService.updateTags("1", new TagUpdate(null, Collections.singletonList("cooking"), null, null));
+      }
+      assertEquals(Arrays.asList("book:1", "cooking:1"), tagSuggestIndex.suggest("", 10).stream()
+          .map(tagCount -> tagCount.getTag() + ":" + tagCount.getCount())
+          .collect(Collectors.toList()));
+
+      dropboxTagSolrService.patchUpdateDropboxTag("1", new DropboxTag(null, null, null, Arrays.asList("cooking", "baking")));
+      assertEquals(Arrays.asList("baking:1", "cooking:1"), tagSuggestIndex.suggest("", 10).stream()
+          .map(tagCount -> tagCount.getTag() + ":" + tagCount.getCount())
+          .collect(Collectors.toList()));
+    } finally {
+      tagSuggestIndex.preDestroy();
+    }
+  }
+
+  private static QueryResponse queryResponse(String nextCursorMark, String... ids) {
+    SolrDocumentList documents = new SolrDocumentList();
+    for (String id : ids) {
+      SolrDocument document = new SolrDocument();
+      document.setField("id", id);
+      document.setField("name", "name" + id);
+      document.setField("path", "/path" + id);
+      document.setField("tags", "tag");
+      documents.add(document);
+    }
+    NamedList<Object> response = new NamedList<>();
+    response.add("response", documents);
+    response.add(CursorMarkParams.CURSOR_MARK_NEXT, nextCursorMark);
+    QueryResponse queryResponse = new QueryResponse();
+    queryResponse.setResponse(response);
+    return queryResponse;
+  }
+}
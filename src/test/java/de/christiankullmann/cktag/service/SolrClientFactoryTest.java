@@ -0,0 +1,82 @@
+package de.christiankullmann.cktag.service;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.LBHttpSolrClient;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SolrClientFactoryTest {
+
+  private static final String SOLR_URL = "http://localhost:8983/solr";
+
+  /**
+   * The default mode must send searches and writes to solr.hosturl with one client
+   *
+   * @throws Exception
+   */
+  @Test
+  void httpModeBuildsOneHttpSolrClient() throws Exception {
+    SolrClientFactory clientFactory = createClientFactory(SolrClientMode.HTTP, "", "");
+    try (SolrClient client = clientFactory.createClient()) {
+      assertThat(client).isInstanceOf(HttpSolrClient.class);
+      assertThat(((HttpSolrClient) client).getBaseURL()).isEqualTo(SOLR_URL);
+      assertThat(clientFactory.hasReadClient()).isFalse();
+    } finally {
+      clientFactory.preDestroy();
+    }
+  }
+
+  /**
+   * The load balanced mode must spread searches across the replicas and send writes to solr.hosturl
+   *
+   * @throws Exception
+   */
+  @Test
+  void loadBalancedModeBuildsReadClientForReplicas() throws Exception {
+    SolrClientFactory clientFactory = createClientFactory(SolrClientMode.LOAD_BALANCED,
+        "http://solr1:8983/solr, http://solr2:8983/solr", "");
+    try (SolrClient client = clientFactory.createClient(); SolrClient readClient = clientFactory.createReadClient()) {
+      assertThat(client).isInstanceOf(HttpSolrClient.class);
+      assertThat(clientFactory.hasReadClient()).isTrue();
+      assertThat(readClient).isInstanceOf(LBHttpSolrClient.class);
+      assertThat(((LBHttpSolrClient) readClient).getHttpClient()).isSameAs(((HttpSolrClient) client).getHttpClient());
+    } finally {
+      clientFactory.preDestroy();
+    }
+  }
+
+  /**
+   * The cloud mode must build a CloudSolrClient without connecting before the first request
+   *
+   * @throws Exception
+   */
+  @Test
+  void cloudModeBuildsCloudSolrClient() throws Exception {
+    SolrClientFactory clientFactory = createClientFactory(SolrClientMode.CLOUD, "", "zk1:2181,zk2:2181");
+    try (SolrClient client = clientFactory.createClient()) {
+      assertThat(client).isInstanceOf(CloudSolrClient.class);
+      assertThat(((CloudSolrClient) client).getZkHost()).isEqualTo("zk1:2181,zk2:2181");
+    } finally {
+      clientFactory.preDestroy();
+    }
+  }
+
+  /**
+   * A mode without its hosts must be rejected at startup
+   */
+  @Test
+  void modeWithoutHostsIsRejected() {
+    assertThatThrownBy(() -> createClientFactory(SolrClientMode.LOAD_BALANCED, "", ""))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> createClientFactory(SolrClientMode.CLOUD, "", " "))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static SolrClientFactory createClientFactory(SolrClientMode mode, String loadBalancedUrls, String zkHosts) {
+    return new SolrClientFactory(mode, SOLR_URL, loadBalancedUrls, zkHosts, "", 16, 4, 1000, 1000);
+  }
+}
@@ -0,0 +1,99 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the {@link CommitPolicy}s of the {@link SolrClientService} against a mocked Solr client
+ */
+@ExtendWith(MockitoExtension.class)
+class SolrClientServiceCommitPolicyTest {
+
+  @Mock
+  SolrClient clientMock;
+
+  @Mock
+  UpdateResponse updateResponseMock;
+
+  /**
+   * Writes with the COMMIT_WITHIN policy must be sent with commitWithin and without an explicit commit,
+   * the write generation must advance nevertheless
+   *
+   * @throws Exception
+   */
+  @Test
+  void commitDropboxTagWithCommitWithinPolicy() throws Exception {
+    SolrClientService solrClientServiceSpy = createSolrClientServiceSpy(CommitPolicy.COMMIT_WITHIN, 100);
+    when(clientMock.addBean(anyString(), any(DropboxTag.class), anyInt())).thenReturn(updateResponseMock);
+
+    DropboxTag inputTag = new DropboxTag("1", "name", "path", Arrays.asList("tag1", "tag2", "tag3"));
+    String collectionName = "cktag";
+
+    UpdateResponse response = solrClientServiceSpy.commitDropboxTag(collectionName, inputTag);
+
+    assertThat(response).isNotNull();
+    assertThat(solrClientServiceSpy.getVisibleWithin()).isEqualTo(1000);
+    assertThat(solrClientServiceSpy.getWriteGeneration()).isEqualTo(1);
+    verify(clientMock, times(1)).addBean(collectionName, inputTag, 1000);
+    verify(clientMock, never()).commit(anyString());
+    solrClientServiceSpy.preDestroy();
+  }
+
+  /**
+   * Concurrent writes with the GROUP_COMMIT policy must share one commit
+   *
+   * @throws Exception
+   */
+  @Test
+  void commitDropboxTagWithGroupCommitPolicy() throws Exception {
+    SolrClientService solrClientServiceSpy = createSolrClientServiceSpy(CommitPolicy.GROUP_COMMIT, 200);
+    when(clientMock.addBean(anyString(), any(DropboxTag.class))).thenReturn(updateResponseMock);
+    String collectionName = "cktag";
+
+    ExecutorService writers = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<UpdateResponse>> responses = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        DropboxTag inputTag = new DropboxTag(Integer.toString(i), "name", "path", Collections.singletonList("tag"));
+        responses.add(writers.submit(() -> solrClientServiceSpy.commitDropboxTag(collectionName, inputTag)));
+      }
+      for (Future<UpdateResponse> response : responses) {
+        assertThat(response.get(5, TimeUnit.SECONDS)).isNotNull();
+      }
+    } finally {
+      writers.shutdownNow();
+      solrClientServiceSpy.preDestroy();
+    }
+
+    assertThat(solrClientServiceSpy.getVisibleWithin()).isZero();
+    verify(clientMock, times(4)).addBean(anyString(), any(DropboxTag.class));
+    verify(clientMock, times(1)).commit(collectionName);
+  }
+
+  private SolrClientService createSolrClientServiceSpy(CommitPolicy commitPolicy, long groupCommitInterval) {
+    SolrClientService solrClientService = spy(new SolrClientService(mock(SolrClientFactory.class), commitPolicy, 1000, groupCommitInterval, new SimpleMeterRegistry()));
+    when(solrClientService.getSolrClient()).thenReturn(clientMock);
+    return solrClientService;
+  }
+}
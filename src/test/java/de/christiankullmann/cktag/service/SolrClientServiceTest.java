@@ -1,6 +1,7 @@
 package de.christiankullmann.cktag.service;
 
 import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
@@ -12,6 +13,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -38,12 +47,14 @@ class SolrClientServiceTest {
   @Mock
   UpdateResponse updateResponseMock;
 
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
   private SolrClientService solrClientServiceSpy;
 
   @BeforeEach
   void setup() {
-    solrClientServiceSpy = spy(new SolrClientService(""));
-    when(solrClientServiceSpy.getSolrClient()).thenReturn(clientMock);
+    solrClientServiceSpy = spy(new SolrClientService(mock(SolrClientFactory.class), CommitPolicy.IMMEDIATE, 1000, 100, meterRegistry));
+    doReturn(clientMock).when(solrClientServiceSpy).getSolrClient();
   }
 
   /**
@@ -62,6 +73,8 @@ class SolrClientServiceTest {
 
     assertThat(response).isNotNull();
     verify(clientMock, times(1)).query(collectionName,queryParams);
+    assertThat(meterRegistry.get("cktag.solr.requests")
+        .tags("operation", "query", "collection", collectionName, "outcome", "success").timer().count()).isEqualTo(1);
 
   }
 
@@ -74,7 +87,7 @@ class SolrClientServiceTest {
   void commitDropboxTag() throws Exception {
     when(clientMock.addBean(anyString(), any(DropboxTag.class))).thenReturn(updateResponseMock);
 
-    DropboxTag inputTag = new DropboxTag("1", "name", "path", "tag1, tag2, tag3");
+    DropboxTag inputTag = new DropboxTag("1", "name", "path", Arrays.asList("tag1", "tag2", "tag3"));
     String collectionName = "cktag";
 
 
@@ -104,4 +117,36 @@ class SolrClientServiceTest {
     verify(clientMock, times(1)).commit(collectionName);
 
   }
-}
\ No newline at end of file
+
+  /**
+   * Concurrent first requests must share one client instead of each building and leaking their own
+   *
+   * @throws Exception
+   */
+  @Test
+  void concurrentRequestsShareOneClient() throws Exception {
+    when(clientMock.query(anyString(), any(SolrParams.class))).thenReturn(queryResponseMock);
+    MapSolrParams queryParams = mock(MapSolrParams.class);
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<QueryResponse>> responses = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        responses.add(executor.submit(() -> {
+          start.await();
+          return solrClientServiceSpy.queryClient("cktag", queryParams);
+        }));
+      }
+      start.countDown();
+      for (Future<QueryResponse> response : responses) {
+        assertThat(response.get()).isNotNull();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(solrClientServiceSpy, times(1)).getSolrClient();
+    verify(clientMock, times(threads)).query("cktag", queryParams);
+  }
+}
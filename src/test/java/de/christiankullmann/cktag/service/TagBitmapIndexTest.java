@@ -0,0 +1,201 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.MapSolrParams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TagBitmapIndexTest {
+
+  private static final String COLLECTION_NAME = "cktag";
+
+  @Mock
+  private SolrClientService clientService;
+
+  @Mock
+  private QueryResponse queryResponse;
+
+  private TagBitmapIndex tagBitmapIndex;
+
+  @BeforeEach
+  void setUp() {
+    tagBitmapIndex = new TagBitmapIndex(clientService, COLLECTION_NAME, true, 3600, 100);
+  }
+
+  @AfterEach
+  void tearDown() {
+    tagBitmapIndex.preDestroy();
+  }
+
+  /**
+   * Boolean tag queries must be answered from the loaded index, ordered by id, without further requests to Solr
+   */
+  @Test
+  void refreshLoadsSolrAndAnswersBooleanQueries() {
+    SolrDocumentList documents = new SolrDocumentList();
+    documents.add(solrDocument("1", "cooking", "book"));
+    documents.add(solrDocument("2", "cooking"));
+    documents.add(solrDocument("3", "book", "travel"));
+    documents.add(solrDocument("4"));
+    when(queryResponse.getResults()).thenReturn(documents);
+    when(queryResponse.getNextCursorMark()).thenReturn(CursorMarkParams.CURSOR_MARK_START);
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(queryResponse);
+
+    tagBitmapIndex.refresh();
+
+    assertThat(ids("cooking AND book")).containsExactly("1");
+    assertThat(ids("cooking && book")).containsExactly("1");
+    assertThat(ids("cooking OR travel")).containsExactly("1", "2", "3");
+    assertThat(ids("cooking travel")).containsExactly("1", "2", "3");
+    assertThat(ids("book AND NOT travel")).containsExactly("1");
+    assertThat(ids("book -travel")).containsExactly("1");
+    assertThat(ids("(cooking OR travel) AND book")).containsExactly("1", "3");
+    assertThat(ids("NOT cooking")).containsExactly("3", "4");
+    assertThat(ids("\"cooking\"")).containsExactly("1", "2");
+    assertThat(ids("*")).containsExactly("1", "2", "3");
+    assertThat(ids("unknown")).isEmpty();
+    assertThat(tagBitmapIndex.findAllByTags("cooking OR travel", "1", "1").stream().map(dropboxTag -> dropboxTag.id))
+        .containsExactly("2");
+    verify(clientService, times(1)).queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class));
+  }
+
+  /**
+   * Queries whose meaning in Solr is not certain must be left to Solr
+   */
+  @Test
+  void findAllByTagsLeavesUnsupportedQueriesToSolr() {
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("1", "a.doc", "/a.doc", Arrays.asList("cooking")));
+    assertThat(tagBitmapIndex.findAllByTags("cooking")).isNull();
+
+    loadEmptyIndex();
+
+    assertThat(tagBitmapIndex.findAllByTags("cooking")).isEmpty();
+    assertThat(tagBitmapIndex.findAllByTags("cooking AND book OR travel")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("cook*")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("tags:cooking")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("cooking AND (NOT book)")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("(cooking")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("cooking AND")).isNull();
+    assertThat(tagBitmapIndex.findAllByTags("cooking", "x", "10")).isNull();
+    assertThat(new TagBitmapIndex(clientService, COLLECTION_NAME, false, 3600, 100).findAllByTags("cooking")).isNull();
+  }
+
+  /**
+   * Pages must stay in id order when entries were added and updated since the load
+   */
+  @Test
+  void pagesMergeWritesSinceTheLoadInIdOrder() {
+    SolrDocumentList documents = new SolrDocumentList();
+    documents.add(solrDocument("1", "book"));
+    documents.add(solrDocument("3", "book"));
+    documents.add(solrDocument("5", "book"));
+    when(queryResponse.getResults()).thenReturn(documents);
+    when(queryResponse.getNextCursorMark()).thenReturn(CursorMarkParams.CURSOR_MARK_START);
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(queryResponse);
+    tagBitmapIndex.refresh();
+
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("4", "4.doc", "/4.doc", Arrays.asList("book")));
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("2", "2.doc", "/2.doc", Arrays.asList("book")));
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("3", "3.doc", "/3.doc", Arrays.asList("book", "travel")));
+
+    assertThat(ids("book")).containsExactly("1", "2", "3", "4", "5");
+    assertThat(ids("book", "0", "2")).containsExactly("1", "2");
+    assertThat(ids("book", "2", "2")).containsExactly("3", "4");
+    assertThat(ids("book", "4", "2")).containsExactly("5");
+    assertThat(ids("book", "1", "10")).containsExactly("2", "3", "4", "5");
+    assertThat(ids("travel", "0", "1")).containsExactly("3");
+    assertThat(ids("travel", "1", "1")).isEmpty();
+  }
+
+  /**
+   * Writes must be visible at once, a patch must move the entry to its new tags
+   */
+  @Test
+  void onWriteUpdatesTheIndex() {
+    loadEmptyIndex();
+    DropboxTag cookbook = new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("cooking", "book"));
+    DropboxTag travelGuide = new DropboxTag("2", "travelGuide.doc", "/travelGuide.doc", Arrays.asList("travel", "book"));
+
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, cookbook);
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, travelGuide);
+    assertThat(ids("book")).containsExactly("1", "2");
+
+    DropboxTag patched = new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("baking"));
+    tagBitmapIndex.onWrite(COLLECTION_NAME, cookbook, patched);
+    assertThat(ids("book")).containsExactly("2");
+    assertThat(ids("baking")).containsExactly("1");
+
+    tagBitmapIndex.onWrite(COLLECTION_NAME, travelGuide, null);
+    tagBitmapIndex.onWrite("otherCollection", null, travelGuide);
+    assertThat(ids("book")).isEmpty();
+    assertThat(ids("*")).containsExactly("1");
+  }
+
+  /**
+   * Atomic updates must be applied to the indexed entry like Solr applies them, without the entry being read
+   */
+  @Test
+  void onUpdateAppliesAtomicUpdates() {
+    loadEmptyIndex();
+    tagBitmapIndex.onWrite(COLLECTION_NAME, null, new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("cooking", "book")));
+
+    DropboxTag changes = new DropboxTag("1", null, null, null);
+    changes.version = 42L;
+    tagBitmapIndex.onUpdate(COLLECTION_NAME, "1", changes, Arrays.asList("baking", "cooking"), Arrays.asList("book"));
+
+    assertThat(ids("baking AND cooking")).containsExactly("1");
+    assertThat(ids("book")).isEmpty();
+    DropboxTag updated = tagBitmapIndex.findAllByTags("baking").get(0);
+    assertThat(updated.tags).containsExactly("cooking", "baking");
+    assertThat(updated.name).isEqualTo("myCookbook.doc");
+    assertThat(updated.version).isEqualTo(42L);
+  }
+
+  private void loadEmptyIndex() {
+    when(queryResponse.getResults()).thenReturn(new SolrDocumentList());
+    when(queryResponse.getNextCursorMark()).thenReturn(CursorMarkParams.CURSOR_MARK_START);
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(queryResponse);
+    tagBitmapIndex.refresh();
+  }
+
+  private List<String> ids(String tags) {
+    return tagBitmapIndex.findAllByTags(tags).stream()
+        .map(dropboxTag -> dropboxTag.id)
+        .collect(Collectors.toList());
+  }
+
+  private List<String> ids(String tags, String start, String rows) {
+    return tagBitmapIndex.findAllByTags(tags, start, rows).stream()
+        .map(dropboxTag -> dropboxTag.id)
+        .collect(Collectors.toList());
+  }
+
+  private static SolrDocument solrDocument(String id, String... tags) {
+    SolrDocument document = new SolrDocument();
+    document.addField("id", id);
+    document.addField("name", id + ".doc");
+    document.addField("path", "/" + id + ".doc");
+    for (String tag : tags) {
+      document.addField("tags", tag);
+    }
+    return document;
+  }
+}
@@ -0,0 +1,71 @@
+package de.christiankullmann.cktag.service;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.MapSolrParams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TagFacetServiceTest {
+
+  private static final String COLLECTION_NAME = "cktag";
+
+  @Mock
+  private SolrClientService clientService;
+
+  @Mock
+  private QueryResponse queryResponse;
+
+  private TagFacetService tagFacetService;
+
+  @BeforeEach
+  void setUp() {
+    RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+    tagFacetService = new TagFacetService(clientService, COLLECTION_NAME, 60, 100);
+  }
+
+  @AfterEach
+  void tearDown() {
+    RequestContextHolder.resetRequestAttributes();
+  }
+
+  /**
+   * The counts must be read from the facet on the tags field and be served from the cache afterwards
+   */
+  @Test
+  void getTagCountsQueriesFacetOnceAndCachesCounts() {
+    FacetField facetField = new FacetField("tags");
+    facetField.add("book", 12);
+    facetField.add("cooking", 3);
+    when(queryResponse.getFacetField("tags")).thenReturn(facetField);
+    when(clientService.queryClient(eq(COLLECTION_NAME), any(MapSolrParams.class))).thenReturn(queryResponse);
+
+    List<TagCount> tagCounts = new ArrayList<>(tagFacetService.getTagCounts("", 10).getContent());
+    tagFacetService.getTagCounts("", 10);
+
+    assertThat(tagCounts).extracting(TagCount::getTag).containsExactly("book", "cooking");
+    assertThat(tagCounts).extracting(TagCount::getCount).containsExactly(12L, 3L);
+    ArgumentCaptor<MapSolrParams> queryParams = ArgumentCaptor.forClass(MapSolrParams.class);
+    verify(clientService, times(1)).queryClient(eq(COLLECTION_NAME), queryParams.capture());
+    assertThat(queryParams.getValue().get(FacetParams.FACET_FIELD)).isEqualTo("tags");
+    assertThat(queryParams.getValue().get("rows")).isEqualTo("0");
+  }
+}
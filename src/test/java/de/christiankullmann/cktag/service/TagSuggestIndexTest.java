@@ -0,0 +1,99 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.solr.DropboxTag;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.TermsResponse;
+import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.params.TermsParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TagSuggestIndexTest {
+
+  private static final String COLLECTION_NAME = "cktag";
+
+  @Mock
+  private SolrClientService clientService;
+
+  @Mock
+  private QueryResponse queryResponse;
+
+  private TagSuggestIndex tagSuggestIndex;
+
+  @BeforeEach
+  void setUp() {
+    tagSuggestIndex = new TagSuggestIndex(clientService, COLLECTION_NAME, 300);
+  }
+
+  @AfterEach
+  void tearDown() {
+    tagSuggestIndex.preDestroy();
+  }
+
+  /**
+   * The index must be loaded from the terms of the tags field and return the most frequent matches first
+   */
+  @Test
+  void refreshLoadsTermsAndSuggestMatchesPrefixByCount() {
+    NamedList<Object> tagTerms = new NamedList<>();
+    tagTerms.add("book", 12L);
+    tagTerms.add("cocktails", 1L);
+    tagTerms.add("cooking", 3L);
+    tagTerms.add("Cooking", 2L);
+    NamedList<NamedList<Object>> terms = new NamedList<>();
+    terms.add("tags", tagTerms);
+    when(queryResponse.getTermsResponse()).thenReturn(new TermsResponse(terms));
+    ArgumentCaptor<MapSolrParams> paramsCaptor = ArgumentCaptor.forClass(MapSolrParams.class);
+    when(clientService.queryClient(eq(COLLECTION_NAME), paramsCaptor.capture())).thenReturn(queryResponse);
+
+    tagSuggestIndex.refresh();
+
+    assertThat(paramsCaptor.getValue().get(TermsParams.TERMS_FIELD)).isEqualTo("tags");
+    assertThat(suggestedTags("CO", 10)).containsExactly("cooking:5", "cocktails:1");
+    assertThat(suggestedTags("co", 1)).containsExactly("cooking:5");
+    assertThat(suggestedTags("", 10)).containsExactly("book:12", "cooking:5", "cocktails:1");
+    assertThat(suggestedTags("x", 10)).isEmpty();
+  }
+
+  /**
+   * Writes must move the counts without a request to Solr, tags without entries must not be suggested
+   */
+  @Test
+  void onWriteUpdatesCountsIncrementally() {
+    DropboxTag cookbook = new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("cooking", "book"));
+    DropboxTag cocktails = new DropboxTag("2", "cocktails.doc", "/cocktails.doc", Arrays.asList("cocktails", "book"));
+
+    tagSuggestIndex.onWrite(COLLECTION_NAME, null, cookbook);
+    tagSuggestIndex.onWrite(COLLECTION_NAME, null, cocktails);
+    assertThat(suggestedTags("", 10)).containsExactly("book:2", "cocktails:1", "cooking:1");
+
+    DropboxTag patched = new DropboxTag("1", "myCookbook.doc", "/myCookbook.doc", Arrays.asList("baking"));
+    tagSuggestIndex.onWrite(COLLECTION_NAME, cookbook, patched);
+    tagSuggestIndex.onWrite(COLLECTION_NAME, cocktails, null);
+    tagSuggestIndex.onWrite("otherCollection", null, cocktails);
+
+    assertThat(suggestedTags("", 10)).containsExactly("baking:1");
+    verifyZeroInteractions(clientService);
+  }
+
+  private List<String> suggestedTags(String prefix, int limit) {
+    return tagSuggestIndex.suggest(prefix, limit).stream()
+        .map(tagCount -> tagCount.getTag() + ":" + tagCount.getCount())
+        .collect(Collectors.toList());
+  }
+}
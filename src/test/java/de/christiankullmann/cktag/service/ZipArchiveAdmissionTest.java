@@ -0,0 +1,90 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.exception.ArchiveBudgetExceededException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ZipArchiveAdmissionTest {
+
+  private static final long MIB = 1024 * 1024;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  /**
+   * Archives must be admitted while builds and bytes are left, be rejected with the Retry-After afterwards and be
+   * admitted again once a permit has been closed. An archive larger than the budget needs all of it.
+   */
+  @Test
+  void admitReservesBuildsAndBytes() {
+    ZipArchiveAdmission admission = new ZipArchiveAdmission(10 * MIB, 2, 0, 30, meterRegistry);
+
+    ZipArchiveAdmission.Permit first = admission.admit("a", 6 * MIB);
+    assertThat(gauge("cktag.zip.admission.bytes.reserved")).isEqualTo(6 * MIB);
+    ArchiveBudgetExceededException exception = assertThrows(ArchiveBudgetExceededException.class, () -> admission.admit("b", 6 * MIB));
+    assertThat(exception.getRetryAfter()).isEqualTo(30);
+    assertThat(gauge("cktag.zip.admission.builds.active")).isEqualTo(1);
+
+    ZipArchiveAdmission.Permit second = admission.admit("c", 4 * MIB);
+    assertThrows(ArchiveBudgetExceededException.class, () -> admission.admit("d", 0));
+    assertThat(meterRegistry.get("cktag.zip.admission.rejected").counter().count()).isEqualTo(2);
+
+    first.close();
+    first.close();
+    assertThat(gauge("cktag.zip.admission.bytes.reserved")).isEqualTo(4 * MIB);
+    assertThrows(ArchiveBudgetExceededException.class, () -> admission.admit("e", 100 * MIB));
+    second.close();
+    ZipArchiveAdmission.Permit whole = admission.admit("f", 100 * MIB);
+    assertThat(gauge("cktag.zip.admission.bytes.reserved")).isEqualTo(10 * MIB);
+    whole.close();
+    assertThat(gauge("cktag.zip.admission.builds.active")).isZero();
+    assertThat(gauge("cktag.zip.admission.bytes.reserved")).isZero();
+  }
+
+  /**
+   * An archive must wait in line until a permit is closed within the timeout
+   *
+   * @throws Exception
+   */
+  @Test
+  void admitWaitsForClosedPermits() throws Exception {
+    ZipArchiveAdmission admission = new ZipArchiveAdmission(10 * MIB, 1, 10000, 30, meterRegistry);
+    ZipArchiveAdmission.Permit first = admission.admit("a", MIB);
+
+    CompletableFuture<ZipArchiveAdmission.Permit> waiting = CompletableFuture.supplyAsync(() -> admission.admit("b", MIB));
+    while (gauge("cktag.zip.admission.waiting") < 1) {
+      Thread.sleep(10);
+    }
+    assertThat(waiting).isNotDone();
+    first.close();
+    waiting.get(5, TimeUnit.SECONDS).close();
+    assertThat(gauge("cktag.zip.admission.waiting")).isZero();
+  }
+
+  /**
+   * A permit held by a request must be released with the request, also if it is admitted after the request completed
+   */
+  @Test
+  void permitHolderReleasesPermitsAdmittedLate() {
+    ZipArchiveAdmission admission = new ZipArchiveAdmission(10 * MIB, 1, 0, 30, meterRegistry);
+    ZipArchiveAdmission.PermitHolder permitHolder = new ZipArchiveAdmission.PermitHolder();
+
+    permitHolder.hold(admission.admit("a", MIB));
+    assertThat(gauge("cktag.zip.admission.builds.active")).isEqualTo(1);
+    permitHolder.release();
+    assertThat(gauge("cktag.zip.admission.builds.active")).isZero();
+
+    permitHolder.hold(admission.admit("b", MIB));
+    assertThat(gauge("cktag.zip.admission.builds.active")).isZero();
+    assertThat(gauge("cktag.zip.admission.bytes.reserved")).isZero();
+  }
+
+  private double gauge(String name) {
+    return meterRegistry.get(name).gauge().value();
+  }
+}
@@ -0,0 +1,158 @@
+package de.christiankullmann.cktag.service;
+
+import de.christiankullmann.cktag.exception.DropboxDownloadException;
+import de.christiankullmann.cktag.exception.ZipJobNotFoundException;
+import de.christiankullmann.cktag.solr.DropboxTag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ZipJobServiceTest {
+
+  private static final List<String> TAGS = Collections.singletonList("tag");
+
+  @Mock
+  private DropboxTagSolrService solrService;
+
+  @Mock
+  private DropboxConnectionService connectionService;
+
+  private final List<Runnable> queuedJobs = new ArrayList<>();
+
+  private Path directory;
+
+  private ZipJobService zipJobService;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("cktag-zip-jobs");
+    zipJobService = new ZipJobService(solrService, connectionService, new TaskExecutorAdapter(queuedJobs::add),
+        new ZipArchiveAdmission(1 << 20, 1, 0, 30, new SimpleMeterRegistry()),
+        directory.toString(), 3600);
+    zipJobService.init();
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    zipJobService.preDestroy();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  /**
+   * Identical requests must share one job, a request selecting another revision of a file must get a new one
+   */
+  @Test
+  void submitSharesJobsOfIdenticalRequests() {
+    when(solrService.iterateAllByTags("tag")).thenReturn(
+        Arrays.asList(dropboxTag("1", "rev1"), dropboxTag("2", "rev1")),
+        Arrays.asList(dropboxTag("1", "rev1"), dropboxTag("2", "rev1")),
+        Arrays.asList(dropboxTag("1", "rev1"), dropboxTag("2", "rev2")));
+
+    ZipJob first = zipJobService.submit("tag");
+    ZipJob shared = zipJobService.submit("tag");
+    ZipJob changed = zipJobService.submit("tag");
+
+    assertThat(shared).isSameAs(first);
+    assertThat(changed).isNotSameAs(first);
+    assertThat(first.getStatus()).isEqualTo(ZipJob.Status.QUEUED);
+    assertThat(first.getFilesTotal()).isEqualTo(2);
+    assertThat(queuedJobs).hasSize(2);
+    assertThat(zipJobService.getJob(first.getId())).isSameAs(first);
+    assertThrows(ZipJobNotFoundException.class, () -> zipJobService.getJob("unknown"));
+  }
+
+  /**
+   * A job must spool the archive to its file and report the progress of the files added.
+   * The selection is read once, like a Solr cursor, and the archive must be built from the same files as the key.
+   *
+   * @throws Exception
+   */
+  @Test
+  void runSpoolsArchiveToFile() throws Exception {
+    List<DropboxTag> dropboxTags = Arrays.asList(dropboxTag("1", "rev1"), dropboxTag("2", "rev1"));
+    Iterator<DropboxTag> cursor = dropboxTags.iterator();
+    when(solrService.iterateAllByTags("tag")).thenReturn(() -> cursor);
+    when(connectionService.checkDownloadSize(eq(dropboxTags), argThat(sum -> sum.getSize() == 2000 && sum.getUnknown() == 0)))
+        .thenReturn(1000L);
+    doAnswer(invocation -> {
+      OutputStream outputStream = invocation.getArgument(3);
+      LongConsumer fileAdded = invocation.getArgument(4);
+      outputStream.write("archive".getBytes(StandardCharsets.UTF_8));
+      fileAdded.accept(600);
+      fileAdded.accept(400);
+      return null;
+    }).when(connectionService).writeZipArchive(eq("tag"), eq(dropboxTags), eq(1000L), any(), any());
+
+    ZipJob zipJob = zipJobService.submit("tag");
+    queuedJobs.forEach(Runnable::run);
+
+    assertThat(zipJob.getStatus()).isEqualTo(ZipJob.Status.DONE);
+    assertThat(zipJob.getFilesWritten()).isEqualTo(2);
+    assertThat(zipJob.getBytesWritten()).isEqualTo(1000L);
+    assertThat(zipJob.getBytesTotal()).isEqualTo(1000L);
+    assertThat(zipJob.getArchiveSize()).isEqualTo(7L);
+    assertThat(new String(Files.readAllBytes(zipJob.getFile()), StandardCharsets.UTF_8)).isEqualTo("archive");
+    verify(solrService, never()).sumSizesByTags(anyString());
+  }
+
+  /**
+   * A failed job must report its error, leave no file behind and not be shared with the next request
+   */
+  @Test
+  void failedJobIsNotShared() throws IOException {
+    when(solrService.iterateAllByTags("tag")).thenReturn(Collections.singletonList(dropboxTag("1", "rev1")));
+    when(connectionService.checkDownloadSize(any(), any()))
+        .thenThrow(new DropboxDownloadException("Size of selected files exceeds the maximum allowed size of [1]"));
+
+    ZipJob failed = zipJobService.submit("tag");
+    queuedJobs.forEach(Runnable::run);
+
+    assertThat(failed.getStatus()).isEqualTo(ZipJob.Status.FAILED);
+    assertThat(failed.getError()).contains("maximum allowed size");
+    assertThat(zipJobService.submit("tag")).isNotSameAs(failed);
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files.count()).isZero();
+    }
+    verify(connectionService, never()).writeZipArchive(anyString(), any(), anyLong(), any(), any());
+  }
+
+  private static DropboxTag dropboxTag(String id, String rev) {
+    DropboxTag dropboxTag = new DropboxTag(id, id + ".txt", "/" + id + ".txt", TAGS);
+    dropboxTag.rev = rev;
+    dropboxTag.size = 1000L;
+    return dropboxTag;
+  }
+}